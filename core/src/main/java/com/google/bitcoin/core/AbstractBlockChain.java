@@ -24,6 +24,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -103,6 +104,13 @@ public abstract class AbstractBlockChain {
     // locked most of the time.
     private final Object chainHeadLock = new Object();
 
+    // The hashes of the best chain by height, from the chain head down as far as anything has needed so far. Walking
+    // the store backwards is slow, so this is what lets locators and lookups by height skip to the block they need.
+    private final ReentrantLock heightIndexLock = Threading.lock("heightindex");
+    @GuardedBy("heightIndexLock") private final BlockHeightIndex heightIndex = new BlockHeightIndex();
+    // How many blocks building a locator may walk back through the store to extend the height index.
+    private static final int LOCATOR_MAX_WALK = 500;
+
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
@@ -145,6 +153,7 @@ public abstract class AbstractBlockChain {
         this.blockStore = blockStore;
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
+        updateHeightIndex(chainHead);
         this.params = params;
         this.listeners = new CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>>();
         for (BlockChainListener l : listeners) addListener(l, Threading.SAME_THREAD);
@@ -196,6 +205,13 @@ public abstract class AbstractBlockChain {
     public BlockStore getBlockStore() {
         return blockStore;
     }
+
+    /**
+     * Stops any threads the chain uses to process blocks. The block store is left open, as the chain doesn't own it.
+     * No more blocks should be added to the chain afterwards.
+     */
+    public void close() {
+    }
     
     /**
      * Adds/updates the given {@link Block} with the block store.
@@ -751,6 +767,113 @@ public abstract class AbstractBlockChain {
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
+        updateHeightIndex(chainHead);
+    }
+
+    /**
+     * Brings the height index in line with a new chain head, replacing the entries for blocks that are no longer on
+     * the best chain. Usually the new head just builds on the old one, and nothing has to be read from the store.
+     */
+    void updateHeightIndex(StoredBlock newHead) throws BlockStoreException {
+        heightIndexLock.lock();
+        try {
+            // The blocks to index, top down, until one builds on a block that is already indexed.
+            List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+            boolean joined = false;
+            StoredBlock cursor = newHead;
+            while (cursor != null) {
+                blocks.add(cursor);
+                int below = cursor.getHeight() - 1;
+                if (heightIndex.isEmpty() || below < heightIndex.getLowestHeight())
+                    break;  // Walked past the bottom of the index without meeting it, so none of it is right.
+                if (cursor.getHeader().getPrevBlockHash().equals(heightIndex.get(below))) {
+                    joined = true;
+                    break;
+                }
+                cursor = cursor.getPrev(blockStore);
+            }
+            int lowest = blocks.get(blocks.size() - 1).getHeight();
+            if (joined)
+                heightIndex.truncateAbove(lowest - 1);
+            else
+                heightIndex.clear();
+            for (int i = blocks.size() - 1; i >= 0; i--)
+                heightIndex.put(blocks.get(i).getHeight(), blocks.get(i).getHeader().getHash());
+        } finally {
+            heightIndexLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of the best chain block at the given height, extending the index downwards by walking back
+     * through the store at most maxWalk blocks. Returns null if the height isn't reached, or the store doesn't have
+     * the blocks that far back.
+     */
+    @GuardedBy("heightIndexLock")
+    @Nullable
+    private Sha256Hash getHashAtHeight(int height, int maxWalk) throws BlockStoreException {
+        if (heightIndex.isEmpty() || height < 0 || height > heightIndex.getHighestHeight())
+            return null;
+        if (height >= heightIndex.getLowestHeight())
+            return heightIndex.get(height);
+        StoredBlock cursor = blockStore.get(checkNotNull(heightIndex.get(heightIndex.getLowestHeight())));
+        for (int i = 0; cursor != null && cursor.getHeight() > height && i < maxWalk; i++) {
+            cursor = cursor.getPrev(blockStore);
+            if (cursor != null)
+                heightIndex.put(cursor.getHeight(), cursor.getHeader().getHash());
+        }
+        return heightIndex.get(height);
+    }
+
+    /**
+     * Returns the block on the best chain at the given height, or null if the chain isn't that high yet or the block
+     * store no longer has the block, as happens with an {@link com.google.bitcoin.store.SPVBlockStore} for blocks
+     * far enough back.
+     */
+    @Nullable
+    public StoredBlock getBlockAtHeight(int height) throws BlockStoreException {
+        Sha256Hash hash;
+        heightIndexLock.lock();
+        try {
+            hash = getHashAtHeight(height, Integer.MAX_VALUE);
+        } finally {
+            heightIndexLock.unlock();
+        }
+        return hash == null ? null : blockStore.get(hash);
+    }
+
+    /**
+     * <p>Returns a block locator for the current chain head, suitable for a getblocks or getheaders message. It holds
+     * the hashes of the top ten blocks and then of blocks further and further apart, doubling the gap each time, so a
+     * peer can find the point where our chain and its own diverge however deep that is. The genesis block always
+     * comes last.</p>
+     *
+     * <p>If the store only has recent blocks, or building it would mean walking back through many blocks that haven't
+     * been indexed yet, the locator stops short and goes straight to the genesis block.</p>
+     */
+    public List<Sha256Hash> getBlockLocator() {
+        heightIndexLock.lock();
+        try {
+            List<Sha256Hash> locator = new ArrayList<Sha256Hash>(32);
+            int lowest = heightIndex.getLowestHeight();
+            int step = 1;
+            for (int height = heightIndex.getHighestHeight(); height > 0; height -= step) {
+                int walked = lowest - heightIndex.getLowestHeight();
+                Sha256Hash hash = getHashAtHeight(height, LOCATOR_MAX_WALK - walked);
+                if (hash == null)
+                    break;
+                locator.add(hash);
+                if (locator.size() >= 10)
+                    step *= 2;
+            }
+            locator.add(params.getGenesisBlock().getHash());
+            return locator;
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
+        } finally {
+            heightIndexLock.unlock();
+        }
     }
 
     /**
@@ -957,26 +1080,39 @@ public abstract class AbstractBlockChain {
 
     /**
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
-     * block. This is useful for turning transaction lock times into human readable times. Note that a height in
-     * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * block. This is useful for turning transaction lock times into human readable times. Heights on the best chain
+     * that are in the height index give the actual time of their block, and heights below the index are estimated
+     * from the lowest block in it. Nothing is read back through the store to get a better answer.
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
+        StoredBlock base = null;
+        heightIndexLock.lock();
+        try {
+            if (!heightIndex.isEmpty()) {
+                int nearest = Math.max(heightIndex.getLowestHeight(), Math.min(heightIndex.getHighestHeight(), height));
+                base = blockStore.get(checkNotNull(heightIndex.get(nearest)));
+            }
+        } catch (BlockStoreException e) {
+            log.warn("Failed to read block for estimating time", e);
+        } finally {
+            heightIndexLock.unlock();
         }
+        if (base == null)
+            base = getChainHead();
+        long offset = height - base.getHeight();
+        long baseTime = base.getHeader().getTimeSeconds();
+        long estimated = (baseTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
      * Returns a future that completes when the block chain has reached the given height. Yields the
-     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread.
+     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread, or
+     * straight away with the block at that height if the chain is already that high.
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
         final SettableFuture<StoredBlock> result = SettableFuture.create();
-        addListener(new AbstractBlockChainListener() {
+        BlockChainListener listener = new AbstractBlockChainListener() {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
                 if (block.getHeight() >= height) {
@@ -984,12 +1120,22 @@ public abstract class AbstractBlockChain {
                     result.set(block);
                 }
             }
-        }, Threading.SAME_THREAD);
+        };
+        addListener(listener, Threading.SAME_THREAD);
+        // The height may have been reached already, in which case the block is found through the height index.
+        if (getBestChainHeight() >= height) {
+            removeListener(listener);
+            StoredBlock block;
+            try {
+                block = getBlockAtHeight(height);
+            } catch (BlockStoreException e) {
+                block = null;
+            }
+            result.set(block != null ? block : getChainHead());
+        }
         return result;
     }
 
-
-
     /**
      * The false positive rate is the average over all blockchain transactions of:
      *
@@ -17,6 +17,7 @@
 package com.google.bitcoin.core;
 
 
+import com.google.bitcoin.net.PooledBufferOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +26,9 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -67,6 +71,7 @@ public class BitcoinSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -129,6 +134,46 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Writes the message, header and all, to the given stream. Cached message bytes are shared with the stream rather
+     * than copied, and a cached checksum is reused, so relaying the same message to many peers serializes and hashes
+     * it only once.
+     */
+    public void serialize(Message message, PooledBufferOutputStream out) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        ByteBuffer header = out.reserve(4 + COMMAND_LEN + 4 + 4 /* checksum */);
+        int start = out.size();
+        int mark = out.mark();
+        message.bitcoinSerializeShared(out);
+        int length = out.size() - start;
+
+        // A checksum kept from the received header only matches the bytes just written if they were the cached ones.
+        byte[] checksum = message.isCached() ? message.getChecksum() : null;
+        if (checksum == null) {
+            MessageDigest digest = Utils.threadDigest();
+            out.digest(mark, digest);
+            byte[] hash = new byte[32];
+            Utils.finishDoubleDigest(digest, hash, 0);
+            checksum = Arrays.copyOf(hash, 4);
+            if (message.isCached())
+                message.setChecksum(checksum);
+        }
+
+        header.putInt((int) params.getPacketMagic());
+        // Zero padded, as NULL termination of the command isn't required.
+        for (int i = 0; i < COMMAND_LEN; i++)
+            header.put(i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        header.order(ByteOrder.LITTLE_ENDIAN).putInt(length);
+        header.put(checksum);
+        header.flip();
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {} with {} byte payload", name, bytesToHexString(header.array()), length);
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -168,10 +213,16 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, doubleDigest(payloadBytes));
+    }
 
+    /**
+     * Verifies the checksum of a payload that has already been read and hashed, for instance by a
+     * {@link MessageDecoder} as its bytes arrived, and builds the message from it. The message may keep the payload
+     * array, so the caller must not reuse it.
+     */
+    Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -227,6 +278,8 @@ public class BitcoinSerializer {
             return new AlertMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(params, payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -31,11 +31,11 @@ import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
-import static com.google.bitcoin.core.Utils.doubleDigest;
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
@@ -501,9 +501,12 @@ public class Block extends Message {
      */
     private Sha256Hash calculateHash() {
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            // Work out the merkle root first if it's needed, as that uses this thread's digest too.
+            if (!headerBytesValid || bytes == null)
+                getMerkleRoot();
+            DoubleDigestOutputStream digest = DoubleDigestOutputStream.forThread();
+            writeHeader(digest);
+            return new Sha256Hash(Utils.reverseBytes(digest.doubleDigest()));
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -684,11 +687,10 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        return new Sha256Hash(Utils.reverseBytes(buildMerkleRoot()));
     }
 
-    private List<byte[]> buildMerkleTree() {
+    private byte[] buildMerkleRoot() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -720,27 +722,31 @@ public class Block extends Message {
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
+        // The hashes are held in wire (little endian) order in a single flat array, so sibling nodes are adjacent and
+        // can be hashed straight out of it without any copying. Each level is collapsed in place: the parent of nodes
+        // 2i and 2i+1 overwrites node i, which is safe because both children have been hashed by the time it's written.
+        int levelSize = transactions.size();
+        byte[] tree = new byte[levelSize * 32];
+        int pos = 0;
         for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
+            byte[] hash = t.getHash().getBytes();
+            for (int j = 31; j >= 0; j--)
+                tree[pos++] = hash[j];
         }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+        for (; levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
             for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                if (left + 1 < levelSize) {
+                    Utils.doubleDigestInto(tree, left * 32, 64, tree, (left / 2) * 32);
+                } else {
+                    // The right hand node is the same as the left hand, as we don't have enough transactions.
+                    byte[] hash = doubleDigestTwoBuffers(tree, left * 32, 32, tree, left * 32, 32);
+                    System.arraycopy(hash, 0, tree, (left / 2) * 32, 32);
+                }
             }
-            // Move to the next level.
-            levelOffset += levelSize;
         }
-        return tree;
+        return Arrays.copyOf(tree, 32);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Maps the heights of a contiguous run of blocks on the best chain to their hashes. {@link AbstractBlockChain} keeps
+ * one up to date as the chain head moves, and extends it downwards from the block store when asked about heights below
+ * the ones it has. Hashes are kept packed in fixed size chunks so that a long run costs little more than 32 bytes a
+ * block, and heights that were never indexed cost nothing. Not thread safe.
+ */
+class BlockHeightIndex {
+    private static final int CHUNK_BITS = 11;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int HASH_LENGTH = 32;
+
+    private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    // The indexed heights are low to high inclusive, and there are none if high < low.
+    private int low = 0, high = -1;
+
+    /** Returns the lowest indexed height. Only meaningful if the index isn't empty. */
+    int getLowestHeight() {
+        return low;
+    }
+
+    /** Returns the highest indexed height, or -1 if the index is empty. */
+    int getHighestHeight() {
+        return isEmpty() ? -1 : high;
+    }
+
+    boolean isEmpty() {
+        return high < low;
+    }
+
+    /** Returns the hash of the block at the given height, or null if that height isn't indexed. */
+    @Nullable
+    Sha256Hash get(int height) {
+        if (height < low || height > high)
+            return null;
+        byte[] chunk = chunks.get(height >>> CHUNK_BITS);
+        int offset = (height & (CHUNK_SIZE - 1)) * HASH_LENGTH;
+        return new Sha256Hash(Arrays.copyOfRange(chunk, offset, offset + HASH_LENGTH));
+    }
+
+    /**
+     * Sets the hash at the given height, which must be indexed already or be next to the indexed run. If the index
+     * is empty any height may be given.
+     */
+    void put(int height, Sha256Hash hash) {
+        checkArgument(height >= 0);
+        if (isEmpty()) {
+            low = high = height;
+        } else {
+            checkArgument(height >= low - 1 && height <= high + 1, "Height %s is not next to %s-%s", height, low, high);
+            low = Math.min(low, height);
+            high = Math.max(high, height);
+        }
+        int chunkIndex = height >>> CHUNK_BITS;
+        while (chunks.size() <= chunkIndex)
+            chunks.add(null);
+        byte[] chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE * HASH_LENGTH];
+            chunks.set(chunkIndex, chunk);
+        }
+        System.arraycopy(hash.getBytes(), 0, chunk, (height & (CHUNK_SIZE - 1)) * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    /** Forgets every height above the given one. */
+    void truncateAbove(int height) {
+        if (height >= high)
+            return;
+        if (height < low) {
+            clear();
+            return;
+        }
+        high = height;
+        // Drop the chunks that now hold nothing, so a reorg onto a shorter chain doesn't leave them behind.
+        while (chunks.size() > (high >>> CHUNK_BITS) + 1)
+            chunks.remove(chunks.size() - 1);
+    }
+
+    void clear() {
+        chunks.clear();
+        low = 0;
+        high = -1;
+    }
+}
@@ -21,6 +21,7 @@ import com.google.common.base.Objects;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Collection;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -44,7 +45,11 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    // The filter's bits, packed little endian so that bit i of the filter as serialized is bit (i % 64) of
+    // bits[i / 64]. Working a word at a time makes merging and comparing filters cheap.
+    private long[] bits;
+    // How many bytes the filter is when serialized, which needn't be a whole number of words.
+    private int byteLength;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -105,30 +110,51 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = Math.min((int)(-1  / (Math.pow(Math.log(2), 2)) * elements * Math.log(falsePositiveRate)),
                             (int)MAX_FILTER_SIZE * 8) / 8;
-        data = new byte[size <= 0 ? 1 : size];
+        byteLength = size <= 0 ? 1 : size;
+        bits = new long[(byteLength + 7) / 8];
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = Math.min((int)(data.length * 8 / (double)elements * Math.log(2)), MAX_HASH_FUNCS);
+        hashFuncs = Math.min((int)(byteLength * 8 / (double)elements * Math.log(2)), MAX_HASH_FUNCS);
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    private BloomFilter(BloomFilter other) {
+        this.bits = Arrays.copyOf(other.bits, other.bits.length);
+        this.byteLength = other.byteLength;
+        this.hashFuncs = other.hashFuncs;
+        this.nTweak = other.nTweak;
+        this.nFlags = other.nFlags;
+    }
+
+    /**
+     * Returns a copy of this filter, which can be inserted into without changing this one while it may still be in
+     * the middle of being sent to a peer.
+     */
+    BloomFilter copy() {
+        return new BloomFilter(this);
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (byteLength * 8)), hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + byteLength + " with " + hashFuncs + " hash functions.";
     }
 
     @Override
     void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        byteLength = data.length;
+        bits = new long[(byteLength + 7) / 8];
+        for (int i = 0; i < byteLength; i++)
+            bits[i >>> 3] |= (data[i] & 0xFFL) << ((i & 7) * 8);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -141,7 +167,10 @@ public class BloomFilter extends Message {
      * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
      */
     void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(new VarInt(data.length).encode());
+        byte[] data = new byte[byteLength];
+        for (int i = 0; i < byteLength; i++)
+            data[i] = (byte) (bits[i >>> 3] >>> ((i & 7) * 8));
+        stream.write(new VarInt(byteLength).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
         Utils.uint32ToByteStreamLE(nTweak, stream);
@@ -156,77 +185,147 @@ public class BloomFilter extends Message {
     private static int rotateLeft32(int x, int r) {
         return (x << r) | (x >>> (32 - r));
     }
-    
-    private int hash(int hashNum, byte[] object) {
-        // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+
+    // Scratch space for the mixed blocks of the object being hashed, grown as needed, so that hashing doesn't allocate.
+    private static final ThreadLocal<int[]> blocks = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[32];
+        }
+    };
+
+    private static int[] blocksFor(byte[] object) {
+        int[] scratch = blocks.get();
+        if (scratch.length < object.length / 4 + 1) {
+            scratch = new int[object.length / 4 + 1];
+            blocks.set(scratch);
+        }
+        return scratch;
+    }
+
+    // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
+    // Each hash function is Murmur3 with a different seed, but the mixing of each 32 bit block of the object doesn't
+    // depend on the seed. So the object is read and its blocks (and the tail, in the last slot) mixed into the given
+    // array just once, and only the steps that do depend on the seed are repeated for each hash function.
+    private static void mixBlocks(byte[] object, int[] mixed) {
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
-        // body
-        for(int i = 0; i < numBlocks; i += 4) {
-            int k1 = (object[i] & 0xFF) |
-                  ((object[i+1] & 0xFF) << 8) |
-                  ((object[i+2] & 0xFF) << 16) |
-                  ((object[i+3] & 0xFF) << 24);
-            
+        int numBlocks = object.length / 4;
+        for (int i = 0, j = 0; i < numBlocks; i++, j += 4) {
+            int k1 = (object[j] & 0xFF) |
+                  ((object[j+1] & 0xFF) << 8) |
+                  ((object[j+2] & 0xFF) << 16) |
+                  ((object[j+3] & 0xFF) << 24);
             k1 *= c1;
             k1 = rotateLeft32(k1, 15);
             k1 *= c2;
-
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            mixed[i] = k1;
         }
-        
+
+        int tail = numBlocks * 4;
         int k1 = 0;
         switch(object.length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
                 // Fall through.
             default:
                 // Do nothing.
                 break;
         }
+        mixed[numBlocks] = k1;
+    }
+
+    // Returns the bit the given hash function maps an object to, given the object's length and mixed blocks.
+    private int hash(int hashNum, int[] mixed, int length) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int numBlocks = length / 4;
+        // body
+        for (int i = 0; i < numBlocks; i++) {
+            h1 ^= mixed[i];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        // tail, which is zero if there isn't one
+        h1 ^= mixed[numBlocks];
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+
+        return (int)((h1&0xFFFFFFFFL) % (byteLength * 8));
     }
-    
+
+    private boolean contains(byte[] object, int[] mixed) {
+        mixBlocks(object, mixed);
+        for (int i = 0; i < hashFuncs; i++) {
+            int bit = hash(i, mixed, object.length);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void insert(byte[] object, int[] mixed) {
+        mixBlocks(object, mixed);
+        for (int i = 0; i < hashFuncs; i++) {
+            int bit = hash(i, mixed, object.length);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
     /**
      * Returns true if the given object matches the filter
      * (either because it was inserted, or because we have a false-positive)
      */
     public boolean contains(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
-                return false;
+        return contains(object, blocksFor(object));
+    }
+
+    /**
+     * Returns true if any of the given objects match the filter, checking them in order and stopping at the first
+     * that does.
+     */
+    public boolean containsAny(Collection<byte[]> objects) {
+        int[] mixed = blocks.get();
+        for (byte[] object : objects) {
+            if (mixed.length < object.length / 4 + 1)
+                mixed = blocksFor(object);
+            if (contains(object, mixed))
+                return true;
         }
-        return true;
+        return false;
     }
-    
+
     /**
      * Insert the given arbitrary data into the filter
      */
     public void insert(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+        insert(object, blocksFor(object));
+    }
+
+    /**
+     * Inserts all the given objects into the filter, for example every key and outpoint of a wallet.
+     */
+    public void insertAll(Collection<byte[]> objects) {
+        int[] mixed = blocks.get();
+        for (byte[] object : objects) {
+            if (mixed.length < object.length / 4 + 1)
+                mixed = blocksFor(object);
+            insert(object, mixed);
+        }
     }
 
     /**
@@ -237,7 +336,8 @@ public class BloomFilter extends Message {
      * transaction instead of 100-300 bytes as per usual.
      */
     public void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+        bits = new long[] {0xFFL};
+        byteLength = 1;
     }
 
     /**
@@ -246,13 +346,13 @@ public class BloomFilter extends Message {
      */
     public void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            checkArgument(filter.byteLength == this.byteLength &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            for (int i = 0; i < bits.length; i++)
+                this.bits[i] |= filter.bits[i];
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -261,10 +361,13 @@ public class BloomFilter extends Message {
      * for when this can be a useful thing to do.
      */
     public boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
+        int fullWords = byteLength / 8;
+        for (int i = 0; i < fullWords; i++)
+            if (bits[i] != -1L)
                 return false;
-        return true;
+        // The bytes of a partly used last word.
+        long lastMask = (1L << ((byteLength & 7) * 8)) - 1;
+        return (byteLength & 7) == 0 || (bits[fullWords] & lastMask) == lastMask;
     }
     
     @Override
@@ -272,11 +375,12 @@ public class BloomFilter extends Message {
         return other instanceof BloomFilter &&
                 ((BloomFilter) other).hashFuncs == this.hashFuncs &&
                 ((BloomFilter) other).nTweak == this.nTweak &&
-                Arrays.equals(((BloomFilter) other).data, this.data);
+                ((BloomFilter) other).byteLength == this.byteLength &&
+                Arrays.equals(((BloomFilter) other).bits, this.bits);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(bits));
     }
 }
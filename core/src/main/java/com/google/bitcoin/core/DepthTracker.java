@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Counts the blocks, and the work in them, that a {@link Wallet} has seen added to the best chain, so that the depth
+ * and work done of the transactions in it can be derived when asked for instead of being incremented one by one for
+ * every block. A {@link TransactionConfidence} attached to a tracker remembers where the tracker was when its depth was
+ * last set, and adds on however many blocks have been counted since then.</p>
+ *
+ * <p>The counters are not chain heights. They move by exactly one block per new best block and back by the number of
+ * blocks a re-org removes, which is how depths have always been maintained, and so they don't care if the wallet's idea
+ * of the chain height is unknown or gets reset.</p>
+ *
+ * <p>Confidence listeners only hear about depth changes of transactions that somebody is waiting on through
+ * {@link TransactionConfidence#getDepthFuture(int)}, and the tracker keeps the set of those so the wallet can announce
+ * them without visiting every transaction it holds.</p>
+ */
+class DepthTracker implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int blocks;
+    private BigInteger work = BigInteger.ZERO;
+    // Listeners don't survive serialization, so neither do the watched confidences.
+    private transient Set<TransactionConfidence> watched;
+
+    /** Returns how many blocks have been counted in total. */
+    synchronized int getBlocks() {
+        return blocks;
+    }
+
+    /** Returns the total work of the blocks that have been counted. */
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    /**
+     * Counts the given number of blocks with the given total work. Both are negative when a re-org removes blocks from
+     * the best chain.
+     */
+    synchronized void add(int numBlocks, BigInteger blockWork) {
+        blocks += numBlocks;
+        work = work.add(blockWork);
+    }
+
+    synchronized void watch(TransactionConfidence confidence) {
+        if (watched == null)
+            watched = new HashSet<TransactionConfidence>();
+        watched.add(confidence);
+    }
+
+    synchronized void unwatch(TransactionConfidence confidence) {
+        if (watched != null)
+            watched.remove(confidence);
+    }
+
+    /** Returns a snapshot of the confidences which have depth futures waiting on them. */
+    synchronized List<TransactionConfidence> getWatched() {
+        if (watched == null)
+            return new ArrayList<TransactionConfidence>(0);
+        return new ArrayList<TransactionConfidence>(watched);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * <p>An {@link OutputStream} that feeds everything written to it into a SHA-256 digest instead of a buffer. This lets
+ * a message be hashed while it is being serialized, without first copying it into a byte array, and lets data
+ * arriving in pieces (for instance from the network) be hashed incrementally via {@link #update(ByteBuffer)}.</p>
+ *
+ * <p>Each instance made with the public constructor owns its own digest, so instances can be used from different
+ * threads without contending on anything, but a single instance is not thread safe. For one-shot hashing prefer the
+ * static methods on {@link Utils}, which reuse a per-thread digest, or {@link #forThread()}.</p>
+ */
+public class DoubleDigestOutputStream extends OutputStream {
+    private final MessageDigest digest;
+
+    public DoubleDigestOutputStream() {
+        this(Utils.newSha256Digest());
+    }
+
+    private DoubleDigestOutputStream(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns a stream over this thread's shared digest, reset and ready for use, so that one-shot hashing doesn't
+     * look up a new digest each time. Nothing else may hash on this thread until the result has been taken.
+     */
+    static DoubleDigestOutputStream forThread() {
+        return new DoubleDigestOutputStream(Utils.threadDigest());
+    }
+
+    @Override
+    public void write(int b) {
+        digest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        digest.update(b, off, len);
+    }
+
+    /**
+     * Hashes the remaining bytes of the given buffer, which may be direct, and advances its position to its limit.
+     */
+    public void update(ByteBuffer buffer) {
+        digest.update(buffer);
+    }
+
+    /**
+     * Finishes the hash of everything written so far, hashes that again and returns the result in big endian form.
+     * The stream is reset afterwards and may be reused.
+     */
+    public byte[] doubleDigest() {
+        byte[] out = new byte[32];
+        doubleDigestInto(out, 0);
+        return out;
+    }
+
+    /**
+     * As {@link #doubleDigest()} but writes the 32 byte result into the given array rather than allocating one.
+     */
+    public void doubleDigestInto(byte[] out, int offset) {
+        Utils.finishDoubleDigest(digest, out, offset);
+    }
+
+    /**
+     * Finishes and returns the single SHA-256 hash of everything written so far. The stream is reset afterwards.
+     */
+    public byte[] singleDigest() {
+        return digest.digest();
+    }
+
+    /**
+     * Returns a new stream that starts from the current state of this one, so a common prefix only needs to be hashed
+     * once.
+     */
+    public DoubleDigestOutputStream copy() {
+        try {
+            return new DoubleDigestOutputStream((MessageDigest) digest.clone());
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Cannot happen, the built in SHA-256 implementation is cloneable.
+        }
+    }
+
+    /** Discards everything written so far. */
+    public void reset() {
+        digest.reset();
+    }
+}
@@ -22,13 +22,8 @@ import com.google.bitcoin.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
+import java.util.*;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -76,6 +71,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        updateHeightIndex(chainHead);
     }
 
     @Override
@@ -110,36 +106,31 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
-        }
+    /**
+     * Returns the scheduler which checks input scripts for this chain, which can be queried for verification
+     * statistics.
+     */
+    public ScriptVerificationScheduler getScriptVerificationScheduler() {
+        return scriptVerificationScheduler;
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
+    /** Stops the threads that check input scripts, once any block being connected now is done. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            scriptVerificationScheduler.shutdown();
+        } finally {
+            lock.unlock();
         }
     }
-    
+
+    //TODO: Remove lots of duplicated code in the two connectTransactions
+
+    // Checks input scripts in parallel, one task per input, largest transactions first. The threads are kept across
+    // blocks, even when one fails to verify.
+    private final ScriptVerificationScheduler scriptVerificationScheduler = new ScriptVerificationScheduler();
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -155,25 +146,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();  
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-        
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+
+        ScriptVerificationScheduler.Batch scriptVerification = scriptVerificationScheduler.newBatch(enforcePayToScriptHash);
         try {
-            if (!params.isCheckpoint(height)) {
-                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
-                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
-                // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
-                for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
-                    if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
-                        sigOps += tx.getSigOpCount();
-                }
+            // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
+            // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
+            // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
+            boolean checkBIP30 = !params.isCheckpoint(height);
+            Map<TransactionOutPoint, StoredTransactionOutput> unspent = getUnspentOutputs(block.transactions, checkBIP30);
+            if (checkBIP30 && enforcePayToScriptHash) {
+                // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+                for (Transaction tx : block.transactions)
+                    sigOps += tx.getSigOpCount();
             }
             BigInteger totalFees = BigInteger.ZERO;
             BigInteger coinbaseValue = null;
@@ -181,14 +165,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 BigInteger valueIn = BigInteger.ZERO;
                 BigInteger valueOut = BigInteger.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        // Removing it means a second spend of the same output in this block won't find it.
+                        StoredTransactionOutput prevOut = unspent.remove(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -209,7 +193,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -219,7 +202,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    unspent.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -235,35 +218,24 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // The inputs are checked on the scheduler's threads while we carry on connecting the rest of
+                    // the block.
+                    scriptVerification.submit(tx, prevOutScripts);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            updateUnspentOutputs(txOutsSpent, txOutsCreated);
+            scriptVerification.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
+        } finally {
+            // Whatever went wrong, don't leave the rest of the block's inputs to be checked for nothing.
+            scriptVerification.cancel();
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
@@ -286,6 +258,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Batch scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -293,29 +266,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
                 long sigOps = 0;
                 final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
-                    for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                }
+                Map<TransactionOutPoint, StoredTransactionOutput> unspent =
+                        getUnspentOutputs(transactions, !params.isCheckpoint(newBlock.getHeight()));
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+
+                scriptVerification = scriptVerificationScheduler.newBatch(enforcePayToScriptHash);
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
                     BigInteger valueOut = BigInteger.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            final StoredTransactionOutput prevOut = unspent.remove(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -331,7 +296,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             
                             prevOutScripts.add(new Script(prevOut.getScriptBytes()));
                             
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
@@ -341,7 +305,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
+                        unspent.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -356,51 +320,36 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
                     
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase)
+                        scriptVerification.submit(tx, prevOutScripts);
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
+                updateUnspentOutputs(txOutsSpent, txOutsCreated);
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for(StoredTransactionOutput out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+                if (!params.isCheckpoint(newBlock.getHeight())) {
+                    List<TransactionOutPoint> created = new ArrayList<TransactionOutPoint>(txOutChanges.txOutsCreated.size());
+                    for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
+                        created.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                    for (StoredTransactionOutput out : blockStore.getTransactionOutputs(created))
+                        if (out != null)
                             throw new VerificationException("Block failed BIP30 test!");
-                    }
-                for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                }
+                updateUnspentOutputs(txOutChanges.txOutsSpent, txOutChanges.txOutsCreated);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
+        } finally {
+            if (scriptVerification != null)
+                scriptVerification.cancel();
         }
         return txOutChanges;
     }
@@ -417,10 +366,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for(StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
-            for(StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+            updateUnspentOutputs(txOutChanges.txOutsCreated, txOutChanges.txOutsSpent);
         } catch (PrunedException e) {
             blockStore.abortDatabaseBatchWrite();
             throw e;
@@ -430,6 +376,61 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    /**
+     * Fetches the outputs spent by the given transactions in a single call to the store, which is a handful of queries
+     * instead of one per input for the database backed stores. The result doesn't include outputs created by the
+     * transactions themselves, which the caller adds as it connects them. If checkBIP30 is set, the outputs the
+     * transactions create are looked up as well and the block is rejected if any of them already exist.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> getUnspentOutputs(List<Transaction> transactions,
+                                                                                  boolean checkBIP30)
+            throws BlockStoreException, VerificationException {
+        List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs())
+                outpoints.add(in.getOutpoint());
+        }
+        int numSpent = outpoints.size();
+        if (checkBIP30) {
+            // If we already have unspent outputs for a hash, we saw the tx already. Either the block is being added
+            // twice (bug) or the block is a BIP30 violator.
+            for (Transaction tx : transactions) {
+                Sha256Hash hash = tx.getHash();
+                for (int i = 0; i < tx.getOutputs().size(); i++)
+                    outpoints.add(new TransactionOutPoint(params, i, hash));
+            }
+        }
+        List<StoredTransactionOutput> outputs = blockStore.getTransactionOutputs(outpoints);
+        for (int i = numSpent; i < outputs.size(); i++)
+            if (outputs.get(i) != null)
+                throw new VerificationException("Block failed BIP30 test!");
+        Map<TransactionOutPoint, StoredTransactionOutput> unspent =
+                new HashMap<TransactionOutPoint, StoredTransactionOutput>(numSpent * 2);
+        for (int i = 0; i < numSpent; i++)
+            if (outputs.get(i) != null)
+                unspent.put(outpoints.get(i), outputs.get(i));
+        return unspent;
+    }
+
+    /**
+     * Removes the spent outputs from the store and adds the created ones in one bulk write. Outputs which appear in
+     * both lists, because they were created and spent within the same block, never touch the store.
+     */
+    private void updateUnspentOutputs(List<StoredTransactionOutput> spent, List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        Set<StoredTransactionOutput> both = new HashSet<StoredTransactionOutput>(spent);
+        both.retainAll(created);
+        if (!both.isEmpty()) {
+            spent = new ArrayList<StoredTransactionOutput>(spent);
+            spent.removeAll(both);
+            created = new ArrayList<StoredTransactionOutput>(created);
+            created.removeAll(both);
+        }
+        blockStore.updateUnspentTransactionOutputs(spent, created);
+    }
+
     @Override
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
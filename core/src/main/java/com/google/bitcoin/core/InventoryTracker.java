@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides which peer each announced transaction is downloaded from, for all the peers of a {@link PeerGroup}.
+ * Every peer that announces a transaction is remembered. It is only asked of the first, but if that peer disconnects,
+ * says it doesn't have it, or doesn't deliver it in time, the next announcer is asked, so a transaction being sent to
+ * us isn't missed because one peer dropped it. Requests that have to be made again are batched into one getdata per
+ * peer.</p>
+ *
+ * <p>The time from when a transaction was first announced to when it arrived is recorded, and its statistics are
+ * available from the getters here.</p>
+ */
+public class InventoryTracker {
+    private static final Logger log = LoggerFactory.getLogger(InventoryTracker.class);
+
+    /**
+     * How long a peer has to deliver a transaction it was asked for before the next announcer is asked, unless four
+     * of its ping times is longer.
+     */
+    public static final long REQUEST_TIMEOUT_MSEC = 5000;
+    /** How long a transaction nobody has delivered is tracked before it is given up on. */
+    public static final long EXPIRY_MSEC = 2 * 60 * 1000;
+    // How many announcers are remembered for each transaction, and how many transactions are tracked at once, so that
+    // peers spamming announcements can't use up our memory. Once that many are tracked, the oldest is given up on to
+    // make room for each new one.
+    private static final int MAX_ANNOUNCERS = 8;
+    static final int MAX_TRACKED = 20000;
+
+    private final ReentrantLock lock = Threading.lock("inventorytracker");
+    private final NetworkParameters params;
+    private final MemoryPool memoryPool;
+
+    // A transaction that has been announced but hasn't arrived yet.
+    private static class Entry {
+        final long firstSeen;
+        // Announcers that haven't been asked for it yet, in the order they announced it.
+        final ArrayDeque<Peer> announcers = new ArrayDeque<Peer>(2);
+        // The peer it was last asked of, or null if it is waiting for another announcer.
+        @Nullable Peer requestedFrom;
+        long requestTime;
+
+        Entry(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+    }
+
+    // In the order they were first announced, which is also the order they expire in.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>();
+    // Requests to send once the lock is released, by peer. A failed send can close the connection there and then,
+    // which calls back into PeerGroup and from there into removePeer, so sending is never done with the lock held.
+    @GuardedBy("lock") private final Map<Peer, List<InventoryItem>> outbox = new LinkedHashMap<Peer, List<InventoryItem>>();
+
+    @GuardedBy("lock") private long receivedCount;
+    @GuardedBy("lock") private long totalLatency;
+    @GuardedBy("lock") private long maxLatency;
+    @GuardedBy("lock") private long refetchCount;
+    @GuardedBy("lock") private long expiredCount;
+
+    InventoryTracker(NetworkParameters params, MemoryPool memoryPool) {
+        this.params = checkNotNull(params);
+        this.memoryPool = checkNotNull(memoryPool);
+    }
+
+    /**
+     * Records that the given peer announced the given transactions, and returns the ones that should be requested of
+     * it now. The caller sends those itself, along with anything else it wants.
+     */
+    List<InventoryItem> announced(Peer peer, List<InventoryItem> items) {
+        List<InventoryItem> request = new ArrayList<InventoryItem>();
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Entry entry = entries.get(item.hash);
+                if (entry == null) {
+                    // Anything the memory pool knows about has either arrived already, or was announced so long ago
+                    // that we gave up on it.
+                    if (memoryPool.maybeWasSeen(item.hash))
+                        continue;
+                    if (entries.size() >= MAX_TRACKED)
+                        expireOldest();
+                    entry = new Entry(now);
+                    entries.put(item.hash, entry);
+                } else if (entry.requestedFrom == peer || entry.announcers.contains(peer)) {
+                    continue;
+                }
+                if (entry.requestedFrom == null) {
+                    entry.requestedFrom = peer;
+                    entry.requestTime = now;
+                    request.add(item);
+                } else if (entry.announcers.size() < MAX_ANNOUNCERS) {
+                    entry.announcers.add(peer);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return request;
+    }
+
+    /** Records that the given transaction arrived from the given peer. */
+    void received(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.remove(hash);
+            if (entry == null)
+                return;
+            long latency = Math.max(0, Utils.currentTimeMillis() - entry.firstSeen);
+            receivedCount++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            if (log.isDebugEnabled())
+                log.debug("{}: Received tx {} {}ms after it was first announced", peer, hash, latency);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Asks the next announcers for whichever of the given transactions the given peer said it doesn't have. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Entry entry = entries.get(item.hash);
+                if (entry != null && entry.requestedFrom == peer)
+                    requestFromNext(item.hash, entry, Utils.currentTimeMillis());
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /** Forgets the given peer, asking the next announcers for whatever it was asked for and hadn't delivered. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Sha256Hash, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                entry.announcers.remove(peer);
+                if (entry.requestedFrom == peer)
+                    requestFromNext(e.getKey(), entry, now);
+            }
+            outbox.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /**
+     * Asks the next announcers for transactions whose requests have timed out, and gives up on ones that have been
+     * waited for too long. Called regularly by {@link PeerGroup}.
+     */
+    void checkTimeouts() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Iterator<Map.Entry<Sha256Hash, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Entry> e = it.next();
+                Entry entry = e.getValue();
+                if (now - entry.firstSeen > EXPIRY_MSEC) {
+                    log.info("Giving up on tx {} which no peer delivered", e.getKey());
+                    expiredCount++;
+                    it.remove();
+                    continue;
+                }
+                Peer peer = entry.requestedFrom;
+                if (peer != null && now - entry.requestTime > Math.max(REQUEST_TIMEOUT_MSEC, 4 * pingTime(peer))) {
+                    log.info("{}: Timed out fetching tx {}", peer, e.getKey());
+                    requestFromNext(e.getKey(), entry, now);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    // Gives up on the transaction announced longest ago, which is the one least likely to still arrive. A new one is
+    // still requested, rather than being dropped, even if peers are flooding us with announcements.
+    @GuardedBy("lock")
+    private void expireOldest() {
+        Iterator<Map.Entry<Sha256Hash, Entry>> it = entries.entrySet().iterator();
+        Sha256Hash hash = it.next().getKey();
+        it.remove();
+        expiredCount++;
+        log.debug("Too many txns being tracked, giving up on {}", hash);
+    }
+
+    @GuardedBy("lock")
+    private void requestFromNext(Sha256Hash hash, Entry entry, long now) {
+        entry.requestedFrom = entry.announcers.poll();
+        entry.requestTime = now;
+        if (entry.requestedFrom == null)
+            return;  // Wait for somebody else to announce it.
+        refetchCount++;
+        List<InventoryItem> items = outbox.get(entry.requestedFrom);
+        if (items == null) {
+            items = new ArrayList<InventoryItem>();
+            outbox.put(entry.requestedFrom, items);
+        }
+        items.add(new InventoryItem(InventoryItem.Type.Transaction, hash));
+    }
+
+    private void sendQueued() {
+        Map<Peer, List<InventoryItem>> requests;
+        lock.lock();
+        try {
+            if (outbox.isEmpty())
+                return;
+            requests = new LinkedHashMap<Peer, List<InventoryItem>>(outbox);
+            outbox.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<InventoryItem>> request : requests.entrySet()) {
+            Peer peer = request.getKey();
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (InventoryItem item : request.getValue())
+                getdata.addItem(item);
+            log.info("{}: Asking for {} txns other peers didn't deliver", peer, getdata.getItems().size());
+            try {
+                peer.sendMessage(getdata);
+            } catch (NotYetConnectedException e) {
+                // The peer is on its way out, and what it was asked for moves on when it's removed.
+                log.debug("{}: Not connected, dropping getdata", peer);
+            }
+        }
+    }
+
+    private static long pingTime(Peer peer) {
+        long ping = peer.getPingTime();
+        return ping == Long.MAX_VALUE ? 0 : ping;
+    }
+
+    /** Returns how many announced transactions arrived while they were being tracked. */
+    public long getReceivedCount() {
+        lock.lock();
+        try {
+            return receivedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average time in milliseconds between a transaction first being announced and it arriving, or zero
+     * if none have arrived yet.
+     */
+    public long getAverageLatencyMillis() {
+        lock.lock();
+        try {
+            return receivedCount == 0 ? 0 : totalLatency / receivedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the longest time in milliseconds between a transaction first being announced and it arriving. */
+    public long getMaxLatencyMillis() {
+        lock.lock();
+        try {
+            return maxLatency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times a transaction was asked of another announcer because the first didn't deliver it. */
+    public long getRefetchCount() {
+        lock.lock();
+        try {
+            return refetchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many transactions were given up on because no announcer delivered them, either in time or before
+     * too many newer ones were announced.
+     */
+    public long getExpiredCount() {
+        lock.lock();
+        try {
+            return expiredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many announced transactions are being waited for. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
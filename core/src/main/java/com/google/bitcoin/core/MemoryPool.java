@@ -17,19 +17,19 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +43,25 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The pool holds at most a given number of transactions and announced hashes, and at most a given number of bytes
+ * of transactions. Once full, the least recently used entries are evicted to make room. Transactions that something
+ * is listening to the confidence of, such as those in a wallet, are set aside rather than evicted so they stay the one
+ * canonical instance, but they may only take up half of the pool, beyond which they're evicted like anything else.
+ * Entries are spread over independently locked segments by hash, so peers on different threads rarely wait for each
+ * other, and every operation takes constant time.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
+
+    /** The max number of entries in a memory pool created with the no-args constructor. */
+    public static final int MAX_SIZE = 1000;
+    /** The max number of bytes of transactions in a memory pool created without giving one. */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    // A rough count of what an entry costs beyond the transaction itself, so a flood of announced hashes is bounded by
+    // the byte limit as well as the count.
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    private static final int SEGMENTS = 16;
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -56,49 +71,139 @@ public class MemoryPool {
     // Before we see the full transaction, we need to track how many peers advertised it, so we can estimate its
     // confidence pre-chain inclusion assuming an un-tampered with network connection. After we see the full transaction
     // we need to switch from tracking that data in the Entry to tracking it in the TransactionConfidence object itself.
-    private static class WeakTransactionReference extends WeakReference<Transaction> {
-        public Sha256Hash hash;
-        public WeakTransactionReference(Transaction tx, ReferenceQueue<Transaction> queue) {
-            super(tx, queue);
-            hash = tx.getHash();
-        }
-    }
     private static class Entry {
         // Invariants: one of the two fields must be null, to indicate which is used.
         Set<PeerAddress> addresses;
-        // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
-        // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
-        // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
-        // allowing us to delete the associated entry (the tx itself has already gone away).
-        WeakTransactionReference tx;
+        Transaction tx;
+        // What this entry was counted as against the byte limit.
+        long bytes;
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
-    // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    private class Segment {
+        final ReentrantLock lock = Threading.lock("mempool");
+        // In access order, so the eldest entry is the least recently used.
+        @GuardedBy("lock") final LinkedHashMap<Sha256Hash, Entry> entries =
+                new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true);
+        // Watched transactions that reached the least recently used end of the entries above, kept apart in their own
+        // access order so eviction doesn't step over them again. They count against the segment's limits and may take
+        // up half of them, past which the least recently used is evicted. A wallet still holds such a transaction, so
+        // it's simply interned again the next time it's seen.
+        @GuardedBy("lock") final LinkedHashMap<Sha256Hash, Entry> watched =
+                new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true);
+        // Bytes of all the entries, watched or not, and of the watched ones alone.
+        @GuardedBy("lock") long bytes;
+        @GuardedBy("lock") long watchedBytes;
+        final int maxCount;
+        final long maxBytes;
 
-    /** The max size of a memory pool created with the no-args constructor. */
-    public static final int MAX_SIZE = 1000;
+        Segment(int maxCount, long maxBytes) {
+            this.maxCount = maxCount;
+            this.maxBytes = maxBytes;
+        }
+
+        @GuardedBy("lock")
+        @Nullable
+        Entry get(Sha256Hash hash) {
+            Entry entry = entries.get(hash);
+            return entry != null ? entry : watched.get(hash);
+        }
+
+        @GuardedBy("lock")
+        int size() {
+            return entries.size() + watched.size();
+        }
+
+        @GuardedBy("lock")
+        void put(Sha256Hash hash, Entry entry) {
+            entries.put(hash, entry);
+            bytes += entry.bytes;
+            evict();
+        }
+
+        @GuardedBy("lock")
+        void setTransaction(Entry entry, Transaction tx) {
+            bytes -= entry.bytes;
+            entry.tx = tx;
+            entry.bytes = ENTRY_OVERHEAD_BYTES + tx.getMessageSize();
+            bytes += entry.bytes;
+            evict();
+        }
+
+        // Evicts least recently used entries until the segment is within its limits. Each step takes one entry off the
+        // unwatched ones, so this takes time in proportion to what's evicted.
+        @GuardedBy("lock")
+        private void evict() {
+            while (size() > maxCount || bytes > maxBytes) {
+                if (entries.isEmpty()) {
+                    evictEldest(watched);
+                    continue;
+                }
+                Map.Entry<Sha256Hash, Entry> eldest = entries.entrySet().iterator().next();
+                Entry entry = eldest.getValue();
+                if (entry.tx != null && entry.tx.getConfidence().hasEventListeners()) {
+                    entries.remove(eldest.getKey());
+                    watched.put(eldest.getKey(), entry);
+                    watchedBytes += entry.bytes;
+                    while (!watched.isEmpty() && (watched.size() > maxCount / 2 || watchedBytes > maxBytes / 2))
+                        evictEldest(watched);
+                } else {
+                    evictEldest(entries);
+                }
+            }
+        }
+
+        @GuardedBy("lock")
+        private void evictEldest(LinkedHashMap<Sha256Hash, Entry> map) {
+            Map.Entry<Sha256Hash, Entry> eldest = map.entrySet().iterator().next();
+            Entry entry = eldest.getValue();
+            map.remove(eldest.getKey());
+            bytes -= entry.bytes;
+            if (map == watched)
+                watchedBytes -= entry.bytes;
+            evictionCount.incrementAndGet();
+            evictedBytes.addAndGet(entry.bytes);
+        }
+    }
+
+    /**
+     * @deprecated No longer used: the pool is guarded by a lock per segment, so holding this one doesn't stop the
+     * pool's own methods from running concurrently. Kept so existing subclasses still compile and link.
+     */
+    @Deprecated
+    protected ReentrantLock lock = Threading.lock("mempool");
+
+    private final Segment[] segments;
+    private final int maxCount;
+    private final long maxBytes;
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * Creates a memory pool that will track at most the given number of transactions and hashes, and at most the
+     * given number of bytes of them, evicting the least recently used once full.
+     */
+    public MemoryPool(int maxCount, long maxBytes) {
+        checkArgument(maxCount > 0 && maxBytes > 0);
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        // Small pools get fewer segments, so that each can still hold a useful number of entries.
+        int numSegments = Math.max(1, Math.min(SEGMENTS, Integer.highestOneBit(maxCount / 16)));
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            // Spread any remainder over the first segments, so the limits add up to the ones given.
+            int count = maxCount / numSegments + (i < maxCount % numSegments ? 1 : 0);
+            long bytes = maxBytes / numSegments + (i < maxBytes % numSegments ? 1 : 0);
+            segments[i] = new Segment(count, bytes);
+        }
+    }
 
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
-     * usage).
-     * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
+     * usage), and at most {@link MemoryPool#DEFAULT_MAX_BYTES} of them.
+     * @param size Max number of transactions to track. Once full, the least recently used are evicted.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<Transaction>();
+        this(size, DEFAULT_MAX_BYTES);
     }
 
     /**
@@ -109,35 +214,20 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
-    /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
-     */
-    private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
-        }
+    private Segment segmentFor(Sha256Hash hash) {
+        int h = hash.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
     }
 
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        Segment segment = segmentFor(txHash);
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            Entry entry = segment.get(txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
@@ -146,20 +236,11 @@ public class MemoryPool {
                 checkNotNull(entry.addresses);
                 return entry.addresses.size();
             } else {
-                final Transaction tx = entry.tx.get();
-                if (tx == null) {
-                    // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
-                    // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
-                    // just delete it from the map.
-                    memoryPool.remove(txHash);
-                    return 0;
-                } else {
-                    checkState(entry.addresses == null);
-                    return tx.getConfidence().numBroadcastPeers();
-                }
+                checkState(entry.addresses == null);
+                return entry.tx.getConfidence().numBroadcastPeers();
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -169,48 +250,48 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        Segment segment = segmentFor(tx.getHash());
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
-                // This TX or its hash have been previously interned.
-                if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
-                    // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
-                }
+            return intern(segment, tx);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @GuardedBy("segment.lock")
+    private Transaction intern(Segment segment, Transaction tx) {
+        Entry entry = segment.get(tx.getHash());
+        if (entry != null) {
+            // This TX or its hash have been previously interned.
+            if (entry.tx != null) {
+                // We already interned it. We only want one canonical object instance for a transaction no matter how
+                // many times it is deserialized, so hand back the canonical copy.
+                checkState(entry.addresses == null);
+                return entry.tx;
             } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
-                entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                checkNotNull(entry.addresses);
+                Set<PeerAddress> addrs = entry.addresses;
+                entry.addresses = null;
+                segment.setTransaction(entry, tx);
+                TransactionConfidence confidence = tx.getConfidence();
+                log.debug("Adding tx [{}] {} to the memory pool",
+                        confidence.numBroadcastPeers(), tx.getHashAsString());
+                for (PeerAddress a : addrs) {
+                    markBroadcast(a, tx);
+                }
                 return tx;
             }
-        } finally {
-            lock.unlock();
+        } else {
+            // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+            // dependencies of a relevant transaction (see Peer.downloadDependencies).
+            log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+            entry = new Entry();
+            entry.tx = tx;
+            entry.bytes = ENTRY_OVERHEAD_BYTES + tx.getMessageSize();
+            segment.put(tx.getHash(), entry);
+            return tx;
         }
     }
 
@@ -221,13 +302,14 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        Segment segment = segmentFor(tx.getHash());
+        segment.lock.lock();
         try {
-            final Transaction interned = intern(tx);
+            final Transaction interned = intern(segment, tx);
             markBroadcast(byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -236,23 +318,17 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            Entry entry = segment.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
                     checkState(entry.addresses == null);
-                    Transaction tx = entry.tx.get();
-                    if (tx != null) {
-                        markBroadcast(byPeer, tx);
-                        log.debug("{}: Peer announced transaction we have seen before [{}] {}",
-                                byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
-                    } else {
-                        // The inv is telling us about a transaction that we previously downloaded, and threw away
-                        // because nothing found it interesting enough to keep around. So do nothing.
-                    }
+                    markBroadcast(byPeer, entry.tx);
+                    log.debug("{}: Peer announced transaction we have seen before [{}] {}",
+                            byPeer, entry.tx.getConfidence().numBroadcastPeers(), entry.tx.getHashAsString());
                 } else {
                     checkNotNull(entry.addresses);
                     entry.addresses.add(byPeer);
@@ -265,16 +341,16 @@ public class MemoryPool {
                 // TODO: Using hashsets here is inefficient compared to just having an array.
                 entry.addresses = new HashSet<PeerAddress>();
                 entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                entry.bytes = ENTRY_OVERHEAD_BYTES;
+                segment.put(hash, entry);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
-    private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+    private static void markBroadcast(PeerAddress byPeer, Transaction tx) {
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -282,37 +358,82 @@ public class MemoryPool {
 
     /**
      * Returns the {@link Transaction} for the given hash if we have downloaded it, or null if that hash is unknown or
-     * we only saw advertisements for it yet or it has been downloaded but garbage collected due to nowhere else
-     * holding a reference to it.
+     * we only saw advertisements for it yet or it has been evicted.
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = segment.get(hash);
             if (entry == null) return null;  // Unknown.
-            if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            return entry.tx;  // Null if it was only seen in advertisements.
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
     /**
      * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that a transaction that
-     * was broadcast, downloaded and nothing kept a reference to it will eventually be cleared out by the garbage
-     * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
+     * was broadcast will eventually be evicted to make room for newer ones, and wasSeen() will return false - it does
+     * not keep a permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
+            // A hash that is being asked about is still in use, so this counts as using it.
+            return segment.get(hash) != null;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions and announced hashes the pool holds. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return size;
+    }
+
+    /** Returns roughly how many bytes the transactions and announced hashes in the pool take up. */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                bytes += segment.bytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns the most transactions and announced hashes the pool holds before evicting. */
+    public int getMaxSize() {
+        return maxCount;
+    }
+
+    /** Returns the most bytes the pool holds before evicting. */
+    public long getMaxSizeInBytes() {
+        return maxBytes;
+    }
+
+    /** Returns how many entries have been evicted to make room for others. */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** Returns how many bytes of entries have been evicted to make room for others. */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
     }
 }
@@ -16,6 +16,7 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.PooledBufferOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -368,6 +369,19 @@ public abstract class Message implements Serializable {
         bitcoinSerializeToStream(stream);
     }
 
+    /**
+     * Like {@link #bitcoinSerialize(OutputStream)}, except that cached bytes are handed to the stream to be written out
+     * later rather than copied, so they can go to many peers without being duplicated for each one.
+     */
+    final void bitcoinSerializeShared(PooledBufferOutputStream stream) throws IOException {
+        if (bytes != null && length != UNKNOWN_LENGTH) {
+            stream.writeShared(bytes, offset, length);
+            return;
+        }
+
+        bitcoinSerializeToStream(stream);
+    }
+
     /**
      * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
      */
@@ -383,6 +397,22 @@ public abstract class Message implements Serializable {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Returns the double SHA-256 hash of this message's serialization. Cached bytes are hashed where they lie,
+     * otherwise the message is serialized straight into the digest rather than into a temporary byte array.
+     */
+    byte[] doubleDigestSerialization() {
+        if (bytes != null && length != UNKNOWN_LENGTH)
+            return Utils.doubleDigest(bytes, offset, length);
+        DoubleDigestOutputStream stream = DoubleDigestOutputStream.forThread();
+        try {
+            bitcoinSerializeToStream(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen, the digest does no I/O.
+        }
+        return stream.doubleDigest();
+    }
+
     /**
      * This should be overridden to extract correct message size in the case of lazy parsing.  Until this method is
      * implemented in a subclass of ChildMessage lazy parsing may have no effect.
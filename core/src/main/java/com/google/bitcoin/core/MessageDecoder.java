@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decodes a stream of messages from buffers of whatever size the network hands over, keeping its place between
+ * calls so a message can arrive in any number of pieces. Each payload is copied exactly once, straight from the read
+ * buffer into the array the message is parsed from, and is hashed as it arrives so the checksum is ready as soon as
+ * the last byte is in. Nothing else is allocated per message beyond what the message itself needs.</p>
+ *
+ * <p>Like {@link BitcoinSerializer#deserialize(ByteBuffer)}, garbage before the magic bytes is skipped. Not thread
+ * safe, and one decoder must only ever be fed a single connection's bytes.</p>
+ */
+class MessageDecoder {
+    private static final int HEADER_LENGTH = BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+
+    private final BitcoinSerializer serializer;
+    private final long packetMagic;
+    // Owned rather than taken from Utils, as hashing a payload spans calls between which the thread's digest may be
+    // used by message processing.
+    private final MessageDigest digest = Utils.newSha256Digest();
+    private final byte[] headerBytes = new byte[HEADER_LENGTH];
+    private final byte[] hash = new byte[32];
+
+    // Which byte of the magic we're looking for, counting down from 3, or -1 once they have all been seen.
+    private int magicCursor = 3;
+    private int headerPos;
+    @Nullable private BitcoinSerializer.BitcoinPacketHeader header;
+    @Nullable private byte[] payload;
+    private int payloadPos;
+
+    MessageDecoder(BitcoinSerializer serializer, NetworkParameters params) {
+        this.serializer = checkNotNull(serializer);
+        this.packetMagic = params.getPacketMagic();
+    }
+
+    /**
+     * Consumes bytes from the given buffer until a whole message has been read, and returns it. Returns null if the
+     * buffer ran out first, in which case every remaining byte has been consumed and decoding will carry on from the
+     * same place when more arrive.
+     */
+    @Nullable
+    Message decode(ByteBuffer in) throws ProtocolException {
+        while (magicCursor >= 0) {
+            if (!in.hasRemaining())
+                return null;
+            byte expectedByte = (byte) (0xFF & packetMagic >>> (magicCursor * 8));
+            byte b = in.get();
+            if (b == expectedByte)
+                magicCursor--;
+            else
+                // A mismatch may itself be the first byte of the real magic.
+                magicCursor = b == (byte) (0xFF & packetMagic >>> 24) ? 2 : 3;
+        }
+        if (header == null) {
+            int n = Math.min(in.remaining(), HEADER_LENGTH - headerPos);
+            in.get(headerBytes, headerPos, n);
+            headerPos += n;
+            if (headerPos < HEADER_LENGTH)
+                return null;
+            header = new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(headerBytes));
+            payload = new byte[header.size];
+            payloadPos = 0;
+            digest.reset();
+        }
+        int n = Math.min(in.remaining(), payload.length - payloadPos);
+        in.get(payload, payloadPos, n);
+        digest.update(payload, payloadPos, n);
+        payloadPos += n;
+        if (payloadPos < payload.length)
+            return null;
+
+        Utils.finishDoubleDigest(digest, hash, 0);
+        BitcoinSerializer.BitcoinPacketHeader completeHeader = header;
+        byte[] completePayload = payload;
+        reset();
+        return serializer.deserializePayload(completeHeader, completePayload, hash);
+    }
+
+    private void reset() {
+        magicCursor = 3;
+        headerPos = 0;
+        header = null;
+        payload = null;
+        payloadPos = 0;
+    }
+}
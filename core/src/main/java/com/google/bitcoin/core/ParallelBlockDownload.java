@@ -0,0 +1,628 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first and then fetches the blocks, or filtered blocks, from all the peers it
+ * is given at once, handing them to the block chain in order. {@link PeerGroup} uses one of these for every peer when
+ * {@link PeerGroup#setParallelDownload(boolean)} is on, and the peers pass it the headers and blocks it asked for
+ * instead of processing them themselves.</p>
+ *
+ * <p>Headers come from a single peer in batches of up to {@link HeadersMessage#MAX_HEADERS}, and are only fetched far
+ * enough ahead of the chain to keep the other peers busy. Each peer gets a window of block requests in flight, sized
+ * from how fast it has delivered blocks so far and its ping time. A peer that sits on a request for too long has all
+ * its requests taken back and given to the others, and so does the peer holding up the block that the others have
+ * already delivered a backlog of blocks behind.</p>
+ */
+class ParallelBlockDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownload.class);
+
+    /** The number of blocks a peer may have requested of it before we know how fast it is. */
+    static final int INITIAL_WINDOW = 16;
+    static final int MIN_WINDOW = 2;
+    static final int MAX_WINDOW = 128;
+    /** A peer whose oldest request is older than this, or four of its ping times if that's more, has stalled. */
+    static final long STALL_TIMEOUT_MSEC = 10 * 1000;
+    // Once this many blocks are waiting for the next one to go into the chain, that one is asked of another peer if it
+    // has been outstanding for more than two of its peer's ping times, and at least HEAD_OF_LINE_MSEC.
+    private static final int REORDER_BACKLOG = 64;
+    private static final long HEAD_OF_LINE_MSEC = 2000;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+
+    private static class PeerState {
+        int inFlight;
+        // Blocks per second this peer has delivered as a moving average, or zero until the first arrives.
+        double rate;
+        // When it last delivered a block, or was given requests while it had none.
+        long lastDelivery;
+        // Blocks it told us it doesn't have.
+        final Set<Sha256Hash> notFound = new HashSet<Sha256Hash>();
+    }
+
+    // A block that still has to go into the chain.
+    private static class Request {
+        final long seq;
+        final Sha256Hash hash;
+        final int height;
+        // The peer it was last asked of, while it is outstanding.
+        @Nullable Peer peer;
+        long sentTime;
+        // A peer it was taken back from for holding everything up, which it shouldn't be asked of again.
+        @Nullable Peer avoid;
+
+        Request(long seq, Sha256Hash hash, int height) {
+            this.seq = seq;
+            this.hash = hash;
+            this.height = height;
+        }
+    }
+
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<Peer, PeerState>();
+    // The peer the download was started from, which reports progress to listeners.
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    // The peer headers are requested of: the download peer, unless it stalled.
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") private boolean headersInFlight;
+    @GuardedBy("lock") private long headersSentTime;
+    // Set when the headers peer sent a short batch, meaning it has no more.
+    @GuardedBy("lock") private boolean headersDone = true;
+    // The last header received, which the next getheaders continues from, or null to start from the chain head.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeader;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    // Whether blocks are being fetched in full yet, rather than just having their headers added to the chain.
+    @GuardedBy("lock") private boolean downloadBlockBodies;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+
+    // Every block that still has to go into the chain, by hash and in chain order, the ones nobody has been asked for
+    // and the ones that arrived but are waiting for earlier blocks.
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> pending = new HashMap<Sha256Hash, Request>();
+    @GuardedBy("lock") private final TreeMap<Long, Request> queue = new TreeMap<Long, Request>();
+    @GuardedBy("lock") private final TreeMap<Long, Request> unassigned = new TreeMap<Long, Request>();
+    @GuardedBy("lock") private final TreeMap<Long, Message> received = new TreeMap<Long, Message>();
+    @GuardedBy("lock") private long nextSeq;
+    @GuardedBy("lock") private long deliverSeq;
+    // Set while some thread is adding blocks to the chain, so they go in one at a time and in order.
+    @GuardedBy("lock") private boolean delivering;
+    // Messages to send once the lock is released. A failed send can close the connection there and then, which calls
+    // back into PeerGroup and from there into removePeer, so sending is never done with the lock held.
+    @GuardedBy("lock") private final List<Map.Entry<Peer, Message>> outbox = new ArrayList<Map.Entry<Peer, Message>>();
+
+    ParallelBlockDownload(NetworkParameters params, AbstractBlockChain chain) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+    }
+
+    /** Makes the given peer available for block requests. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState());
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /** Stops using the given peer, handing whatever it hadn't delivered yet to the others. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            int taken = takeBack(peer);
+            if (taken > 0)
+                log.info("{}: Peer gone, reassigning {} blocks", peer, taken);
+            if (peer == downloadPeer)
+                downloadPeer = null;
+            if (peer == headersPeer) {
+                headersPeer = null;
+                headersInFlight = false;
+            }
+            maybeRequestHeaders();
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /**
+     * Starts or continues downloading the chain, with headers from the given peer. Called by the peer in place of
+     * sending a getblocks or getheaders.
+     */
+    void start(Peer peer, long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState());
+            downloadPeer = peer;
+            if (headersPeer != peer) {
+                headersPeer = peer;
+                headersInFlight = false;
+            }
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+            if (headersDone) {
+                headersDone = false;
+                if (pending.isEmpty()) {
+                    // Nothing under way, so start again from the chain head.
+                    lastHeader = null;
+                    downloadBlockBodies = false;
+                }
+            }
+            maybeRequestHeaders();
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /** Forgets everything that hasn't been delivered yet. */
+    void stop() {
+        lock.lock();
+        try {
+            reset();
+            headersDone = true;
+            headersInFlight = false;
+            lastHeader = null;
+            outbox.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void reset() {
+        pending.clear();
+        queue.clear();
+        unassigned.clear();
+        received.clear();
+        deliverSeq = nextSeq;
+        for (PeerState state : peers.values())
+            state.inFlight = 0;
+    }
+
+    @GuardedBy("lock")
+    private void maybeRequestHeaders() {
+        if (headersPeer == null)
+            headersPeer = downloadPeer;
+        if (headersPeer == null || headersInFlight || headersDone || pending.size() >= HeadersMessage.MAX_HEADERS)
+            return;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        if (lastHeader != null)
+            locator.add(lastHeader);
+        locator.addAll(chain.getBlockLocator());
+        headersInFlight = true;
+        headersSentTime = Utils.currentTimeMillis();
+        send(headersPeer, new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    /**
+     * Called by a peer with the headers it received, which it should not process itself. Headers that come from the
+     * wrong peer, or that weren't asked for, are ignored.
+     */
+    void headersReceived(Peer peer, HeadersMessage m) throws ProtocolException {
+        lock.lock();
+        try {
+            if (peer != headersPeer || !headersInFlight) {
+                log.debug("{}: Ignoring {} unrequested headers", peer, m.getBlockHeaders().size());
+                return;
+            }
+            headersInFlight = false;
+            BlockStore store = chain.getBlockStore();
+            List<Block> headers = m.getBlockHeaders();
+            for (int i = 0; i < headers.size(); i++) {
+                Block header = headers.get(i);
+                Sha256Hash prev = header.getPrevBlockHash();
+                if (i == 0 && !prev.equals(lastHeader)) {
+                    // Either this is the first batch, or the peer didn't recognize the last header we had from it and
+                    // went by the chain head instead, because it has since switched to another fork.
+                    StoredBlock fork = store.get(prev);
+                    if (fork == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    if (lastHeader != null) {
+                        log.info("{}: Headers peer switched chains, dropping {} queued blocks", peer, pending.size());
+                        reset();
+                        downloadBlockBodies = false;
+                    }
+                    lastHeaderHeight = fork.getHeight();
+                } else if (!prev.equals(lastHeader)) {
+                    throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                }
+                header.verifyHeader();
+                lastHeader = header.getHash();
+                lastHeaderHeight++;
+                if (store.get(lastHeader) != null)
+                    continue;  // Already in the chain: the locator reached back further than we needed.
+                Request request = new Request(nextSeq++, lastHeader, lastHeaderHeight);
+                pending.put(request.hash, request);
+                queue.put(request.seq, request);
+                // Up to the fast catchup time only headers are needed, except for the one at the top of the chain,
+                // which always comes in full to show we're done.
+                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
+                boolean reachedTop = lastHeaderHeight >= peer.getBestHeight();
+                if (passedTime || reachedTop)
+                    downloadBlockBodies = true;
+                if (downloadBlockBodies)
+                    unassigned.put(request.seq, request);
+                else
+                    received.put(request.seq, header);
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            log.debug("{}: Got {} headers, {} blocks queued", peer, headers.size(), pending.size());
+            maybeRequestHeaders();
+            assign();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } catch (VerificationException e) {
+            throw new ProtocolException(e);
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+        deliverReadyBlocks();
+    }
+
+    /**
+     * Called by a peer with a block it received. Returns true if the block was one of ours, in which case it goes into
+     * the chain from here and the peer should do nothing more with it.
+     */
+    boolean blockReceived(Peer peer, Block block) {
+        return received(peer, block.getHash(), block);
+    }
+
+    /** Like {@link #blockReceived(Peer, Block)}, for filtered blocks. */
+    boolean filteredBlockReceived(Peer peer, FilteredBlock block) {
+        return received(peer, block.getBlockHeader().getHash(), block);
+    }
+
+    private boolean received(Peer peer, Sha256Hash hash, Message message) {
+        lock.lock();
+        try {
+            Request request = pending.get(hash);
+            if (request == null)
+                return false;
+            if (received.containsKey(request.seq))
+                return true;  // A second copy, after it was asked of another peer too.
+            if (request.peer != null) {
+                PeerState owner = peers.get(request.peer);
+                if (owner != null)
+                    owner.inFlight--;
+                request.peer = null;
+            }
+            unassigned.remove(request.seq);
+            PeerState state = peers.get(peer);
+            if (state != null) {
+                long now = Utils.currentTimeMillis();
+                double sample = 1000.0 / Math.max(1, now - state.lastDelivery);
+                state.rate = state.rate == 0 ? sample : state.rate * 0.8 + sample * 0.2;
+                state.lastDelivery = now;
+            }
+            received.put(request.seq, message);
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+        deliverReadyBlocks();
+        return true;
+    }
+
+    /** Called by a peer with the blocks it said it doesn't have, so they can be asked of the others instead. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null)
+                return;
+            for (InventoryItem item : items) {
+                Request request = pending.get(item.hash);
+                if (request == null || request.peer != peer)
+                    continue;
+                state.notFound.add(item.hash);
+                state.inFlight--;
+                request.peer = null;
+                unassigned.put(request.seq, request);
+            }
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    /** Returns how many blocks the given peer may have requested of it at once. */
+    @GuardedBy("lock")
+    private static int window(Peer peer, PeerState state) {
+        if (state.rate == 0)
+            return INITIAL_WINDOW;
+        long ping = peer.getPingTime();
+        double roundTrip = ping == Long.MAX_VALUE ? 1.0 : ping / 1000.0;
+        // Enough to keep it busy for a round trip and a second more at the rate it has been going.
+        int window = (int) Math.ceil(state.rate * (roundTrip + 1.0));
+        return Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    /** Fills up the window of every peer with the earliest blocks nobody has been asked for, fastest peers first. */
+    @GuardedBy("lock")
+    private void assign() {
+        if (unassigned.isEmpty())
+            return;
+        List<Map.Entry<Peer, PeerState>> byRate = new ArrayList<Map.Entry<Peer, PeerState>>(peers.entrySet());
+        Collections.sort(byRate, new Comparator<Map.Entry<Peer, PeerState>>() {
+            public int compare(Map.Entry<Peer, PeerState> a, Map.Entry<Peer, PeerState> b) {
+                return Double.compare(b.getValue().rate, a.getValue().rate);
+            }
+        });
+        long now = Utils.currentTimeMillis();
+        for (Map.Entry<Peer, PeerState> entry : byRate) {
+            Peer peer = entry.getKey();
+            PeerState state = entry.getValue();
+            int room = window(peer, state) - state.inFlight;
+            if (room <= 0)
+                continue;
+            boolean filtered = useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported();
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (Iterator<Request> it = unassigned.values().iterator(); room > 0 && it.hasNext(); ) {
+                Request request = it.next();
+                if (request.height > peer.getBestHeight() || state.notFound.contains(request.hash) ||
+                        (request.avoid == peer && peers.size() > 1))
+                    continue;
+                it.remove();
+                if (state.inFlight == 0)
+                    state.lastDelivery = now;
+                request.peer = peer;
+                request.sentTime = now;
+                state.inFlight++;
+                room--;
+                getdata.addItem(new InventoryItem(
+                        filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block, request.hash));
+            }
+            if (getdata.getItems().isEmpty())
+                continue;
+            send(peer, getdata);
+            // Like in Peer.processInv, the pong ends any filtered block whose transactions didn't all come.
+            if (filtered)
+                send(peer, new Ping((long) (Math.random() * Long.MAX_VALUE)));
+            if (unassigned.isEmpty())
+                break;
+        }
+    }
+
+    /** Returns the given peer's requests to the unassigned queue, returning how many there were. */
+    @GuardedBy("lock")
+    private int takeBack(Peer peer) {
+        int taken = 0;
+        for (Request request : queue.values()) {
+            if (request.peer == peer) {
+                request.peer = null;
+                unassigned.put(request.seq, request);
+                taken++;
+            }
+        }
+        PeerState state = peers.get(peer);
+        if (state != null)
+            state.inFlight = 0;
+        return taken;
+    }
+
+    /**
+     * Takes back the requests of peers that have stalled, and the block holding up a backlog of others, so they can
+     * be asked of other peers. Should be called every second or so.
+     */
+    void checkStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Set<Peer> stalled = new HashSet<Peer>();
+            for (Request request : queue.values()) {
+                if (request.peer != null && now - request.sentTime > stallTimeout(request.peer))
+                    stalled.add(request.peer);
+            }
+            for (Peer peer : stalled) {
+                log.info("{}: Stalled, reassigning {} blocks", peer, takeBack(peer));
+                PeerState state = peers.get(peer);
+                if (state != null)
+                    state.rate = state.rate > 0 ? state.rate / 2 : 1;
+            }
+            Map.Entry<Long, Request> head = queue.firstEntry();
+            if (head != null && received.size() >= REORDER_BACKLOG) {
+                Request request = head.getValue();
+                Peer peer = request.peer;
+                if (peer != null && now - request.sentTime > Math.max(HEAD_OF_LINE_MSEC, 2 * pingTime(peer))) {
+                    log.info("{}: {} blocks waiting on block {}, asking another peer", peer, received.size(), request.hash);
+                    PeerState state = peers.get(peer);
+                    if (state != null)
+                        state.inFlight--;
+                    request.peer = null;
+                    request.avoid = peer;
+                    unassigned.put(request.seq, request);
+                }
+            }
+            if (headersInFlight && headersPeer != null && now - headersSentTime > stallTimeout(headersPeer)) {
+                Peer fastest = null;
+                for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+                    if (entry.getKey() == headersPeer || entry.getKey().getBestHeight() < headersPeer.getBestHeight())
+                        continue;
+                    if (fastest == null || entry.getValue().rate > peers.get(fastest).rate)
+                        fastest = entry.getKey();
+                }
+                if (fastest != null) {
+                    log.info("{}: Stalled sending headers, asking {} instead", headersPeer, fastest);
+                    headersPeer = fastest;
+                    headersInFlight = false;
+                    maybeRequestHeaders();
+                }
+            }
+            assign();
+        } finally {
+            lock.unlock();
+        }
+        sendQueued();
+    }
+
+    @GuardedBy("lock")
+    private void send(Peer peer, Message message) {
+        outbox.add(new AbstractMap.SimpleImmutableEntry<Peer, Message>(peer, message));
+    }
+
+    private void sendQueued() {
+        List<Map.Entry<Peer, Message>> messages;
+        lock.lock();
+        try {
+            if (outbox.isEmpty())
+                return;
+            messages = new ArrayList<Map.Entry<Peer, Message>>(outbox);
+            outbox.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, Message> entry : messages) {
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (NotYetConnectedException e) {
+                // The peer is on its way out, and its requests go back in the queue when it's removed.
+                log.debug("{}: Not connected, dropping {}", entry.getKey(), entry.getValue().getClass().getSimpleName());
+            }
+        }
+    }
+
+    private static long pingTime(Peer peer) {
+        long ping = peer.getPingTime();
+        return ping == Long.MAX_VALUE ? 0 : ping;
+    }
+
+    private static long stallTimeout(Peer peer) {
+        return Math.max(STALL_TIMEOUT_MSEC, 4 * pingTime(peer));
+    }
+
+    /**
+     * Adds blocks to the chain for as long as the next one in order has arrived. Only one thread does this at a time:
+     * any other just leaves its block for that one to find.
+     */
+    private void deliverReadyBlocks() {
+        lock.lock();
+        try {
+            if (delivering)
+                return;
+            delivering = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                long seq;
+                Message message;
+                Peer eventPeer;
+                lock.lock();
+                try {
+                    Map.Entry<Long, Message> next = received.firstEntry();
+                    if (next == null || next.getKey() != deliverSeq) {
+                        delivering = false;
+                        done = true;
+                        return;
+                    }
+                    seq = next.getKey();
+                    message = received.remove(seq);
+                    eventPeer = downloadPeer;
+                } finally {
+                    lock.unlock();
+                }
+                Block block = addToChain(message);
+                lock.lock();
+                try {
+                    // Unless everything was dropped while the block went in.
+                    if (deliverSeq == seq) {
+                        deliverSeq++;
+                        Request request = queue.remove(seq);
+                        pending.remove(request.hash);
+                        if (block == null) {
+                            // Either the block was bad or didn't connect. The blocks after it won't connect either,
+                            // so start over from wherever the chain head is now.
+                            log.warn("Block {} did not go into the chain, restarting download", request.hash);
+                            reset();
+                            lastHeader = null;
+                            headersDone = false;
+                            headersInFlight = false;
+                            downloadBlockBodies = false;
+                        } else if (headersDone && pending.isEmpty()) {
+                            log.info("Parallel chain download caught up at height {}", lastHeaderHeight);
+                        }
+                        maybeRequestHeaders();
+                        assign();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                sendQueued();
+                if (block != null && eventPeer != null)
+                    eventPeer.invokeOnBlocksDownloaded(block);
+            }
+        } finally {
+            if (!done) {
+                lock.lock();
+                try {
+                    delivering = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Adds the given block, filtered block or header to the chain, returning its header if that worked. */
+    @Nullable
+    private Block addToChain(Message message) {
+        try {
+            if (message instanceof FilteredBlock) {
+                FilteredBlock filteredBlock = (FilteredBlock) message;
+                return chain.add(filteredBlock) ? filteredBlock.getBlockHeader() : null;
+            }
+            Block block = (Block) message;
+            return chain.add(block) ? block : null;
+        } catch (VerificationException e) {
+            log.warn("Block verification failed", e);
+            return null;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -100,8 +100,13 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
-    // The last filtered block we received, we're waiting to fill it out with transactions.
-    private FilteredBlock currentFilteredBlock = null;
+    // Filtered blocks we're waiting to fill out with transactions, in the order they arrived, and the block each
+    // transaction still to come belongs to. Transactions are matched to their block by hash, so a block goes to the
+    // chain as soon as the last of its transactions arrives rather than when some later message shows they've ended.
+    // Only used by the thread processing this peer's messages.
+    private final ArrayDeque<PendingFilteredBlock> pendingFilteredBlocks = new ArrayDeque<PendingFilteredBlock>();
+    private final HashMap<Sha256Hash, PendingFilteredBlock> awaitedTransactions =
+            new HashMap<Sha256Hash, PendingFilteredBlock>();
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
     // refresh the server-side side filter by sending a new one (it degrades over time as false positives are added
     // on the remote side, see BIP 37 for a discussion of this).
@@ -139,6 +144,12 @@ public class Peer extends PeerSocketHandler {
     private volatile VersionMessage vPeerVersionMessage;
     private boolean isAcked;
 
+    // Set by PeerGroup when blocks are downloaded from all peers at once, in which case the chain download goes through
+    // it instead of getblocks, and the headers and blocks it asked for are handed to it.
+    @Nullable private volatile ParallelBlockDownload vParallelDownload;
+    // Set by PeerGroup to decide which of its peers announced transactions are fetched from.
+    @Nullable private volatile InventoryTracker vInventoryTracker;
+
     // A settable future which completes (with this) when the connection is open
     private final SettableFuture<Peer> connectionOpenFuture = SettableFuture.create();
 
@@ -294,12 +305,11 @@ public class Peer extends PeerSocketHandler {
         }
         if (m == null) return;
 
-        // If we are in the middle of receiving transactions as part of a filtered block push from the remote node,
-        // and we receive something that's not a transaction, then we're done.
-        if (currentFilteredBlock != null && !(m instanceof Transaction)) {
-            endFilteredBlock(currentFilteredBlock);
-            currentFilteredBlock = null;
-        }
+        // Filtered blocks normally end when the last of their transactions arrives. But the remote node doesn't
+        // send transactions it thinks we already have, which we can't always tell, so once it sends something other
+        // than a transaction or another filtered block we know it has sent all it is going to.
+        if (!pendingFilteredBlocks.isEmpty() && !(m instanceof Transaction) && !(m instanceof FilteredBlock))
+            endFilteredBlocks();
 
         if (m instanceof NotFoundMessage) {
             // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
@@ -389,12 +399,36 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // A filtered block and how many of its transactions are still to come.
+    private static class PendingFilteredBlock {
+        final FilteredBlock block;
+        int awaiting;
+
+        PendingFilteredBlock(FilteredBlock block) {
+            this.block = block;
+        }
+    }
+
     private void startFilteredBlock(FilteredBlock m) {
         // Filtered blocks come before the data that they refer to, so stash it here and then fill it out as
-        // messages stream in. We'll call endFilteredBlock when a non-tx message arrives (eg, another
-        // FilteredBlock) or when a tx that isn't needed by that block is found. A ping message is sent after
-        // a getblocks, to force the non-tx message path.
-        currentFilteredBlock = m;
+        // transactions stream in. Any matched transaction whose body is already in the memory pool won't be sent
+        // again, so it's provided from there, and the block waits only for the rest.
+        PendingFilteredBlock pending = new PendingFilteredBlock(m);
+        try {
+            for (Sha256Hash hash : m.getTransactionHashes()) {
+                Transaction tx = memoryPool != null ? memoryPool.get(hash) : null;
+                if (tx != null) {
+                    m.provideTransaction(tx);
+                } else if (!awaitedTransactions.containsKey(hash)) {
+                    awaitedTransactions.put(hash, pending);
+                    pending.awaiting++;
+                }
+            }
+        } catch (VerificationException e) {
+            // The merkle tree doesn't match the header. Wait for nothing, and the chain will reject the block.
+            pending.awaiting = 0;
+        }
+        pendingFilteredBlocks.add(pending);
         // Potentially refresh the server side filter. Because the remote node adds hits back into the filter
         // to save round-tripping back through us, the filter degrades over time as false positives get added,
         // triggering yet more false positives. We refresh it every so often to get the FP rate back down.
@@ -402,9 +436,41 @@ public class Peer extends PeerSocketHandler {
         if (filteredBlocksReceived % RESEND_BLOOM_FILTER_BLOCK_COUNT == RESEND_BLOOM_FILTER_BLOCK_COUNT - 1) {
             sendMessage(vBloomFilter);
         }
+        endCompletedFilteredBlocks();
+    }
+
+    // Gives the transaction to the filtered block waiting for it, if there is one, returning whether there was.
+    private boolean provideFilteredBlockTransaction(Transaction tx) throws VerificationException {
+        PendingFilteredBlock pending = awaitedTransactions.remove(tx.getHash());
+        if (pending == null)
+            return false;
+        pending.block.provideTransaction(tx);
+        pending.awaiting--;
+        endCompletedFilteredBlocks();
+        return true;
+    }
+
+    // Passes on the filtered blocks that have all their transactions, stopping at the first that doesn't so that
+    // blocks still reach the chain in the order they arrived.
+    private void endCompletedFilteredBlocks() {
+        while (!pendingFilteredBlocks.isEmpty() && pendingFilteredBlocks.peek().awaiting == 0)
+            endFilteredBlock(pendingFilteredBlocks.poll().block);
+    }
+
+    // Passes on all the filtered blocks, with whatever transactions they have.
+    private void endFilteredBlocks() {
+        awaitedTransactions.clear();
+        while (!pendingFilteredBlocks.isEmpty())
+            endFilteredBlock(pendingFilteredBlocks.poll().block);
     }
 
     private void processNotFoundMessage(NotFoundMessage m) {
+        ParallelBlockDownload download = vParallelDownload;
+        if (download != null)
+            download.notFound(this, m.getItems());
+        InventoryTracker tracker = vInventoryTracker;
+        if (tracker != null)
+            tracker.notFound(this, m.getItems());
         // This is received when we previously did a getdata but the peer couldn't find what we requested in it's
         // memory pool. Typically, because we are downloading dependencies of a relevant transaction and reached
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
@@ -439,6 +505,11 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void processHeaders(HeadersMessage m) throws ProtocolException {
+        ParallelBlockDownload download = vParallelDownload;
+        if (download != null) {
+            download.headersReceived(this, m);
+            return;
+        }
         // Runs in network loop thread for this peer.
         //
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
@@ -547,6 +618,9 @@ public class Peer extends PeerSocketHandler {
                 // We may get back a different transaction object.
                 tx = memoryPool.seen(tx, getAddress());
             }
+            InventoryTracker tracker = vInventoryTracker;
+            if (tracker != null)
+                tracker.received(this, tx.getHash());
             fTx = tx;
             // Label the transaction as coming in from the P2P network (as opposed to being created by us, direct import,
             // etc). This helps the wallet decide how to risk analyze it later.
@@ -554,12 +628,7 @@ public class Peer extends PeerSocketHandler {
             if (maybeHandleRequestedData(fTx)) {
                 return;
             }
-            if (currentFilteredBlock != null) {
-                if (!currentFilteredBlock.provideTransaction(tx)) {
-                    // Got a tx that didn't fit into the filtered block, so we must have received everything.
-                    endFilteredBlock(currentFilteredBlock);
-                    currentFilteredBlock = null;
-                }
+            if (provideFilteredBlockTransaction(tx)) {
                 // Don't tell wallets or listeners about this tx as they'll learn about it when the filtered block is
                 // fully downloaded instead.
                 return;
@@ -780,6 +849,8 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        ParallelBlockDownload download = vParallelDownload;
+        if (download != null && download.blockReceived(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -836,6 +907,8 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        ParallelBlockDownload download = vParallelDownload;
+        if (download != null && download.filteredBlockReceived(this, m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -916,7 +989,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -969,35 +1042,47 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
-        Iterator<InventoryItem> it = transactions.iterator();
-        while (it.hasNext()) {
-            InventoryItem item = it.next();
-            if (memoryPool == null) {
-                if (downloadData) {
-                    // If there's no memory pool only download transactions if we're configured to.
-                    getdata.addItem(item);
-                }
-            } else {
-                // Only download the transaction if we are the first peer that saw it be advertised. Other peers will also
-                // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
-                // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
-                // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
-                // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-                // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-                if (memoryPool.maybeWasSeen(item.hash)) {
-                    // Some other peer already announced this so don't download.
-                    it.remove();
+        InventoryTracker tracker = vInventoryTracker;
+        if (memoryPool != null && tracker != null && !transactions.isEmpty()) {
+            // The tracker asks the first peer to announce a transaction for it, and the next one if that peer doesn't
+            // deliver, so what was announced here is only requested here if we are first or everyone before failed.
+            for (InventoryItem item : tracker.announced(this, transactions)) {
+                log.debug("{}: getdata on tx {}", getAddress(), item.hash);
+                getdata.addItem(item);
+            }
+            // This can trigger transaction confidence listeners.
+            for (InventoryItem item : transactions)
+                memoryPool.seen(item.hash, this.getAddress());
+        } else {
+            Iterator<InventoryItem> it = transactions.iterator();
+            while (it.hasNext()) {
+                InventoryItem item = it.next();
+                if (memoryPool == null) {
+                    if (downloadData) {
+                        // If there's no memory pool only download transactions if we're configured to.
+                        getdata.addItem(item);
+                    }
                 } else {
-                    log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                    getdata.addItem(item);
+                    // Only download the transaction if we are the first peer that saw it be advertised. Other peers
+                    // will also see it be advertised in inv packets asynchronously, they co-ordinate via the memory
+                    // pool. We could potentially download transactions faster by always asking every peer for a tx
+                    // when advertised, as remote peers run at different speeds. However to conserve bandwidth on
+                    // mobile devices we try to only download a transaction once. This means we can miss broadcasts if
+                    // the peer disconnects between sending us an inv and sending us the transaction: without a
+                    // PeerGroup's tracker we'll never try to re-fetch after a timeout.
+                    if (memoryPool.maybeWasSeen(item.hash)) {
+                        // Some other peer already announced this so don't download.
+                        it.remove();
+                    } else {
+                        log.debug("{}: getdata on tx {}", getAddress(), item.hash);
+                        getdata.addItem(item);
+                    }
+                    // This can trigger transaction confidence listeners.
+                    memoryPool.seen(item.hash, this.getAddress());
                 }
-                // This can trigger transaction confidence listeners.
-                memoryPool.seen(item.hash, this.getAddress());
             }
         }
 
-        // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
-        // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
         lock.lock();
@@ -1051,6 +1136,9 @@ public class Peer extends PeerSocketHandler {
             sendMessage(getdata);
         }
 
+        // Filtered blocks normally end as soon as their last transaction arrives, but if the remote node leaves one
+        // out the block would wait for whatever message comes next. The pong is sent once the getdata is done with,
+        // so it makes sure something does.
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
     }
@@ -1179,17 +1267,14 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-        //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        // When PeerGroup downloads from all its peers at once, none of this applies: the downloader fetches headers
+        // from us and spreads the blocks over every peer.
+        ParallelBlockDownload download = vParallelDownload;
+        if (download != null) {
+            download.start(this, fastCatchupTimeSecs, useFilteredBlocks);
+            return;
+        }
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
@@ -1198,20 +1283,7 @@ public class Peer extends PeerSocketHandler {
         }
         log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                 toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null) {
-            blockLocator.add(params.getGenesisBlock().getHash());
-        }
+        List<Sha256Hash> blockLocator = blockChain.getBlockLocator();
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
@@ -1401,6 +1473,16 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /** Has the given tracker decide which announced transactions this peer fetches, or the memory pool if null. */
+    void setInventoryTracker(@Nullable InventoryTracker tracker) {
+        this.vInventoryTracker = tracker;
+    }
+
+    /** Makes the chain download go through the given downloader, or through this peer alone if null. */
+    void setParallelDownload(@Nullable ParallelBlockDownload download) {
+        this.vParallelDownload = download;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
       return vPeerVersionMessage;
@@ -1460,6 +1542,27 @@ public class Peer extends PeerSocketHandler {
         sendMessage(new MemoryPoolMessage());
     }
 
+    /**
+     * <p>Inserts the given elements into the filter already set on this connection, by sending them one filteradd
+     * message each rather than sending the whole filter again. The given filter must be the one previously set with
+     * the elements added, and replaces it as the filter that is periodically re-sent. A mempool message follows, as
+     * for {@link #setBloomFilter(BloomFilter)}.</p>
+     *
+     * <p>Returns false and sends nothing if no filter has been set, in which case the caller should set the full
+     * filter instead.</p>
+     */
+    public boolean addToBloomFilter(BloomFilter filter, List<byte[]> elements) {
+        checkNotNull(filter);
+        if (vBloomFilter == null)
+            return false;
+        vBloomFilter = filter;
+        log.info("{}: Adding {} elements to Bloom filter", this, elements.size());
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+        sendMessage(new MemoryPoolMessage());
+        return true;
+    }
+
     /**
      * Returns the last {@link BloomFilter} set by {@link Peer#setBloomFilter(BloomFilter)}. Bloom filters tell
      * the remote node what transactions to send us, in a compact manner.
@@ -97,6 +97,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Decides which peer each announced transaction is fetched from, and re-fetches ones that don't arrive.
+    private final InventoryTracker inventoryTracker;
+    private static final long INVENTORY_CHECK_INTERVAL_MSEC = 1000;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -110,6 +113,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
+    // Downloads the chain from all peers at once when that is turned on, and is null otherwise.
+    @GuardedBy("lock") @Nullable private ParallelBlockDownload parallelDownload;
+    // Runs on the ping timer while the parallel download exists, to move requests away from peers that stall.
+    @GuardedBy("lock") @Nullable private TimerTask stallCheckTask;
+    private static final long STALL_CHECK_INTERVAL_MSEC = 1000;
+
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
@@ -156,12 +165,23 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
         }
 
+        private void queueAdd(final Wallet wallet, List<ECKey> keys, List<Script> scripts) {
+            log.info("Queuing addition of {} keys and {} scripts to the Bloom filter", keys.size(), scripts.size());
+            final List<ECKey> addedKeys = new ArrayList<ECKey>(keys);
+            final List<Script> addedScripts = new ArrayList<Script>(scripts);
+            Uninterruptibles.putUninterruptibly(jobQueue, new Runnable() {
+                @Override public void run() {
+                    addToFilter(wallet, addedKeys, addedScripts);
+                }
+            });
+        }
+
         @Override public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
-            queueRecalc(true);
+            queueAdd(wallet, Collections.<ECKey>emptyList(), scripts);
         }
 
         @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
-            queueRecalc(true);
+            queueAdd(wallet, keys, Collections.<Script>emptyList());
         }
 
         @Override
@@ -246,10 +266,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private int lastBloomFilterElementCount;
+    // How many elements bloomFilter holds, which may be fewer than it was sized for, and whether it was made with
+    // BloomUpdate.UPDATE_ALL. They decide whether new keys and scripts can be added to it or it must be rebuilt.
+    private int bloomFilterElementCount;
+    private boolean bloomFilterUpdateAll;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
     private volatile int vConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    @Nullable private volatile Executor vMessageExecutor;
 
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
@@ -292,6 +317,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.versionMessage = new VersionMessage(params, height, true);
 
         memoryPool = new MemoryPool();
+        inventoryTracker = new InventoryTracker(params, memoryPool);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
@@ -677,6 +703,24 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                // The timer is shared with pinging, which an exception would stop too.
+                try {
+                    inventoryTracker.checkTimeouts();
+                } catch (Throwable e) {
+                    log.error("Error checking for transactions that weren't delivered", e);
+                }
+            }
+        }, INVENTORY_CHECK_INTERVAL_MSEC, INVENTORY_CHECK_INTERVAL_MSEC);
+        lock.lock();
+        try {
+            if (parallelDownload != null)
+                scheduleStallChecks();
+        } finally {
+            lock.unlock();
+        }
         channels.startAndWait();
         triggerConnections();
     }
@@ -810,6 +854,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 boolean send = false;
 
                 bloomFilter = filter;
+                bloomFilterElementCount = elements;
+                bloomFilterUpdateAll = requiresUpdateAll;
 
                 switch (mode) {
                     case SEND_IF_CHANGED: send = changed; break;
@@ -838,6 +884,42 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
     
+    /**
+     * Adds the given keys and scripts, which have just been added to the given wallet, to the bloom filter given to
+     * peers. Where the current filter was sized with room for them, they're inserted into it and sent to each peer as
+     * filteradd messages, which saves going over every element of every wallet and sending every peer the whole
+     * filter. Otherwise the filter is recalculated as by {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)}.
+     */
+    private void addToFilter(Wallet wallet, List<ECKey> keys, List<Script> scripts) {
+        lock.lock();
+        try {
+            if (chain != null && chain.shouldVerifyTransactions())
+                return;
+            List<byte[]> elements = Wallet.getBloomFilterElements(keys, scripts);
+            boolean rebuild = bloomFilter == null || bloomFilter.matchesAll() ||
+                    bloomFilterElementCount + elements.size() > lastBloomFilterElementCount ||
+                    (wallet.isRequiringUpdateAllBloomFilter() && !bloomFilterUpdateAll);
+            // A key older than the fast catchup time means blocks we skipped have to be downloaded after all.
+            for (ECKey key : keys)
+                rebuild = rebuild || key.getCreationTimeSeconds() - 86400 * 7 < fastCatchupTimeSecs;
+            if (rebuild) {
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                return;
+            }
+            BloomFilter filter = bloomFilter.copy();
+            filter.insertAll(elements);
+            bloomFilter = filter;
+            bloomFilterElementCount += elements.size();
+            log.info("Added {} elements to the Bloom filter", elements.size());
+            for (Peer peer : peers) {
+                if (!peer.addToBloomFilter(filter, elements))
+                    peer.setBloomFilter(filter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -891,6 +973,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageExecutor(vMessageExecutor);
         pendingPeers.add(peer);
 
         try {
@@ -984,6 +1067,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (bloomFilter != null) peer.setBloomFilter(bloomFilter);
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            peer.setInventoryTracker(inventoryTracker);
+            if (parallelDownload != null) {
+                peer.setParallelDownload(parallelDownload);
+                parallelDownload.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1111,6 +1199,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return memoryPool;
     }
 
+    /**
+     * Returns the tracker that decides which peer each announced transaction is downloaded from. Its statistics show
+     * how long transactions take to arrive after they are first announced, and how often a peer failed to deliver one.
+     */
+    public InventoryTracker getInventoryTracker() {
+        return inventoryTracker;
+    }
+
     /**
      * Tells the PeerGroup to download only block headers before a certain time and bodies after that. Call this
      * before starting block chain download.
@@ -1159,6 +1255,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died", address);
+            inventoryTracker.removePeer(peer);
+            if (parallelDownload != null)
+                parallelDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1392,6 +1491,18 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return vMinRequiredProtocolVersion;
     }
 
+    /**
+     * Has messages from peers connected after this call processed on the given executor, for instance
+     * {@link Threading#THREAD_POOL}, rather than on the network thread that read them. Each peer's messages are still
+     * processed one at a time and in order, but different peers' messages, such as blocks being parsed and checked,
+     * can then be processed in parallel. Combined with a {@link com.google.bitcoin.net.ParallelNioClientManager} this
+     * spreads the network work over several cores. Pass null, the default, to process messages on the network thread.
+     * See {@link PeerSocketHandler#setMessageExecutor(Executor)}.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        vMessageExecutor = executor;
+    }
+
     /**
      * Returns our peers most commonly reported chain height. If multiple heights are tied, the highest is returned.
      * If no peers are connected, returns zero.
@@ -1497,6 +1608,71 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return candidates2.get(0).peer;
     }
 
+    /**
+     * <p>If set to true, the block chain is downloaded from all connected peers at once instead of just the download
+     * peer. Headers are fetched from the download peer first, and the blocks, or filtered blocks, they lead to are
+     * then requested from every peer that has them, as many at a time as each peer keeps up with. Blocks still go into
+     * the chain in order, and {@link PeerEventListener#onBlocksDownloaded(Peer, Block, int)} is still called with the
+     * download peer. Peers that fall behind have their blocks handed to the others.</p>
+     *
+     * <p>This requires a block chain, and should be set before starting the chain download. It is off by default.</p>
+     */
+    public void setParallelDownload(boolean parallelDownload) {
+        lock.lock();
+        try {
+            if (parallelDownload == (this.parallelDownload != null))
+                return;
+            if (parallelDownload) {
+                checkState(chain != null, "Parallel download needs a block chain");
+                this.parallelDownload = new ParallelBlockDownload(params, chain);
+                for (Peer peer : peers) {
+                    peer.setParallelDownload(this.parallelDownload);
+                    this.parallelDownload.addPeer(peer);
+                }
+                if (vPingTimer != null)
+                    scheduleStallChecks();
+            } else {
+                for (Peer peer : peers)
+                    peer.setParallelDownload(null);
+                this.parallelDownload.stop();
+                this.parallelDownload = null;
+                if (stallCheckTask != null) {
+                    stallCheckTask.cancel();
+                    stallCheckTask = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the block chain is downloaded from all peers at once. See {@link #setParallelDownload(boolean)}. */
+    public boolean isParallelDownload() {
+        lock.lock();
+        try {
+            return parallelDownload != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void scheduleStallChecks() {
+        final ParallelBlockDownload download = checkNotNull(parallelDownload);
+        stallCheckTask = new TimerTask() {
+            @Override
+            public void run() {
+                // The timer is shared with pinging, which an exception would stop too.
+                try {
+                    download.checkStalls();
+                } catch (Throwable e) {
+                    log.error("Error checking for stalled block downloads", e);
+                }
+            }
+        };
+        vPingTimer.schedule(stallCheckTask, STALL_CHECK_INTERVAL_MSEC, STALL_CHECK_INTERVAL_MSEC);
+    }
+
     /**
      * Returns the currently selected download peer. Bear in mind that it may have changed as soon as this method
      * returns. Can return null if no peer was selected.
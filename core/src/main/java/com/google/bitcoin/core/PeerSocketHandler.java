@@ -17,20 +17,24 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.AbstractTimeoutHandler;
+import com.google.bitcoin.net.BufferPool;
 import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.net.PooledBufferOutputStream;
+import com.google.bitcoin.net.ReadPausableTarget;
 import com.google.bitcoin.net.StreamParser;
+import com.google.bitcoin.utils.SerialExecutor;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -42,6 +46,12 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    /**
+     * How many decoded messages may wait for processing, when a {@link #setMessageExecutor(Executor) message executor}
+     * is set, before reading from the peer is paused.
+     */
+    public static final int MAX_QUEUED_MESSAGES = 100;
+
     private final BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
@@ -50,21 +60,41 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     @VisibleForTesting MessageWriteTarget writeTarget = null;
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
-    // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // will receive, so messages are decoded incrementally as their bytes arrive, with no intermediate buffer.
+    private final MessageDecoder decoder;
+    // If set, decoded messages are processed here rather than on the network thread, one at a time and in order.
+    @Nullable private volatile SerialExecutor messageExecutor;
+
+    // Pauses reading from the peer whilst too many of its messages wait to be processed.
+    private final SerialExecutor.Listener backPressure = new SerialExecutor.Listener() {
+        @Override
+        public void onQueueFull() {
+            setReadingPaused(true);
+        }
+
+        @Override
+        public void onQueueNotFull() {
+            setReadingPaused(false);
+        }
+
+        private void setReadingPaused(boolean paused) {
+            MessageWriteTarget target = writeTarget;
+            if (target instanceof ReadPausableTarget)
+                ((ReadPausableTarget) target).setReadingPaused(paused);
+        }
+    };
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        decoder = new MessageDecoder(serializer, params);
         this.peerAddress = new PeerAddress(remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        decoder = new MessageDecoder(serializer, params);
         this.peerAddress = checkNotNull(peerAddress);
     }
 
@@ -81,11 +111,23 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Serialize into pooled buffers that the write target sends with a gathering write and then reuses, so the
+        // message bytes are written once and never copied again on their way to the socket.
+        PooledBufferOutputStream out = new PooledBufferOutputStream();
+        ByteBuffer[] buffers;
         try {
             serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            buffers = out.toBuffers();
+        } catch (IOException e) {
+            out.release();
+            exceptionCaught(e);
+            return;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        try {
+            BufferPool.write(writeTarget, buffers);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -123,66 +165,56 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
-            // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
-            for (int i = 0; true; i++) {
-                // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
-                    // This can only happen in the first iteration
-                    checkState(i == 0);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
-                    } else // ...or just returning if we don't have enough bytes yet
-                        return buff.position();
-                }
-                // Now try to deserialize any messages left in buff
-                Message message;
-                int preSerializePosition = buff.position();
-                try {
-                    message = serializer.deserialize(buff);
-                } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
-                    if (i == 0 && buff.limit() == buff.capacity()) {
-                        // ...so reposition the buffer to 0 and read the next message header
-                        buff.position(0);
-                        try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
-                        } catch (BufferUnderflowException e1) {
-                            // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
-                            // that we use to deserialize the magic+header, but that is rather complicated when the buff
-                            // should probably be at least that big anyway (for efficiency)
-                            throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
-                        }
-                    } else {
-                        // Reposition the buffer to its original position, which saves us from skipping messages by
-                        // seeking past part of the magic bytes before all of them are in the buffer
-                        buff.position(preSerializePosition);
-                    }
-                    return buff.position();
-                }
-                // Process our freshly deserialized message
-                processMessage(message);
+            // Decode as many messages as buff holds. Whatever is left of a partial message is consumed too, and the
+            // decoder picks up where it left off on the next call.
+            Message message;
+            while ((message = decoder.decode(buff)) != null) {
+                SerialExecutor executor = messageExecutor;
+                if (executor == null)
+                    processMessage(message);
+                else
+                    executor.execute(new ProcessMessageTask(message));
             }
+            return buff.position();
         } catch (Exception e) {
             exceptionCaught(e);
             return -1; // Returning -1 also throws an IllegalStateException upstream and kills the connection
         }
     }
 
+    private class ProcessMessageTask implements Runnable {
+        private final Message message;
+
+        ProcessMessageTask(Message message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processMessage(message);
+            } catch (Exception e) {
+                exceptionCaught(e);
+            }
+        }
+    }
+
+    /**
+     * <p>Has messages from this peer processed on the given executor, typically a pool shared by every peer, rather
+     * than on the network thread that read them. They are still processed one at a time and in the order they
+     * arrived, but the network thread can go straight back to reading, and different peers' messages can be processed
+     * in parallel.</p>
+     *
+     * <p>Once {@link #MAX_QUEUED_MESSAGES} messages are queued, reading from this peer is paused until half of them
+     * have been processed, if the write target is a {@link ReadPausableTarget} as the built in ones are. The network
+     * thread never waits, so other peers on the same thread aren't held up. Messages read after the connection closes
+     * may still be processed. Pass null to go back to processing on the network thread. This should be set before the
+     * connection opens.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        messageExecutor = executor == null ? null : new SerialExecutor(executor, MAX_QUEUED_MESSAGES, backPressure);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link com.google.bitcoin.net.NioClient} or
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A long lived pool of threads which checks the input scripts of transactions for a {@link FullPrunedBlockChain}.</p>
+ *
+ * <p>Work is split per input rather than per transaction, so a transaction with hundreds of inputs is spread over every
+ * thread instead of becoming the long tail of its block. Queued inputs are taken from the transactions with the most
+ * inputs first. Each block gets its own {@link Batch}; when one of its inputs fails to verify, the remaining queued
+ * inputs of that batch are skipped, but the threads themselves are kept for the next block.</p>
+ *
+ * <p>The scheduler keeps some simple statistics, see {@link #getInputsVerified()}, {@link #getInputsPerSecond()} and
+ * {@link #getQueueDepth()}.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    private final ThreadPoolExecutor executor;
+    // Used to order tasks: earlier batches first, then larger transactions, then submission order.
+    private final AtomicLong taskCounter = new AtomicLong();
+    private final AtomicLong batchCounter = new AtomicLong();
+
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong batchInputs = new AtomicLong();
+
+    /** Creates a scheduler with one thread per available processor. */
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a scheduler that verifies inputs on the given number of threads. */
+    public ScriptVerificationScheduler(int numThreads) {
+        checkArgument(numThreads > 0);
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("Script verification thread");
+                        // Don't keep the JVM alive just because a block chain was created.
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /** Starts a new batch, which should be used to verify the transactions of a single block. */
+    public Batch newBatch(boolean enforcePayToScriptHash) {
+        return new Batch(batchCounter.getAndIncrement(), enforcePayToScriptHash);
+    }
+
+    /** Returns how many inputs have been successfully verified since the scheduler was created. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /**
+     * Returns the average rate at which inputs have been verified while batches were in progress, or zero if no batch
+     * has completed yet.
+     */
+    public double getInputsPerSecond() {
+        long nanos = batchNanos.get();
+        if (nanos == 0)
+            return 0;
+        return batchInputs.get() * 1000000000.0 / nanos;
+    }
+
+    /** Returns the number of inputs waiting for a free thread. */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Checks that the given input correctly spends the output it's connected to. Runs on a verification thread. */
+    @VisibleForTesting
+    void verifyInput(Transaction tx, int index, Script prevOutScript, boolean enforcePayToScriptHash)
+            throws VerificationException {
+        tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScript, enforcePayToScriptHash);
+    }
+
+    /**
+     * Stops the verification threads, as {@link FullPrunedBlockChain#close()} does. Batches which are still in
+     * progress will never complete, and no more can be submitted.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The inputs of a single block. Transactions are submitted as they are connected, which lets their scripts be
+     * checked while later transactions of the block are still being looked up in the block store, and then
+     * {@link #await()} is called once all of them have been submitted.
+     */
+    public class Batch {
+        private final long id;
+        private final boolean enforcePayToScriptHash;
+        private final long startTime = System.nanoTime();
+        // Guarded by this.
+        private int pending;
+        private int submitted;
+        private VerificationException failure;
+        // Set once the outcome is known, after which queued inputs of this batch are skipped.
+        private volatile boolean cancelled;
+
+        private Batch(long id, boolean enforcePayToScriptHash) {
+            this.id = id;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+        }
+
+        /**
+         * Queues each input of the given transaction for verification against the script of the output it spends.
+         * prevOutScripts must hold one script per input, in input order.
+         */
+        public void submit(Transaction tx, List<Script> prevOutScripts) {
+            int numInputs = tx.getInputs().size();
+            checkArgument(prevOutScripts.size() == numInputs);
+            synchronized (this) {
+                pending += numInputs;
+                submitted += numInputs;
+            }
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts)
+                executor.execute(new InputTask(this, tx, index++, prevOutScript, numInputs));
+        }
+
+        /**
+         * Waits for every submitted input to be verified, returning as soon as any of them fails.
+         *
+         * @throws VerificationException the first failure seen, after which the rest of the batch is cancelled.
+         */
+        public void await() throws VerificationException {
+            VerificationException e;
+            int verified;
+            synchronized (this) {
+                try {
+                    while (pending > 0 && failure == null)
+                        wait();
+                } catch (InterruptedException thrownE) {
+                    throw new RuntimeException(thrownE);  // Shouldn't happen
+                }
+                e = failure;
+                verified = submitted - pending;
+            }
+            cancelled = true;
+            batchNanos.addAndGet(System.nanoTime() - startTime);
+            batchInputs.addAndGet(verified);
+            if (e != null)
+                throw e;
+        }
+
+        /** Skips any inputs of this batch which haven't started verifying yet. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private synchronized void complete(@Nullable VerificationException e) {
+            if (e != null && failure == null) {
+                failure = e;
+                cancelled = true;
+            }
+            pending--;
+            if (pending == 0 || failure != null)
+                notifyAll();
+        }
+    }
+
+    private class InputTask implements Runnable, Comparable<InputTask> {
+        private final Batch batch;
+        private final Transaction tx;
+        private final int index;
+        private final Script prevOutScript;
+        private final int txInputCount;
+        private final long sequence;
+
+        InputTask(Batch batch, Transaction tx, int index, Script prevOutScript, int txInputCount) {
+            this.batch = batch;
+            this.tx = tx;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
+            this.txInputCount = txInputCount;
+            this.sequence = taskCounter.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            if (batch.cancelled) {
+                batch.complete(null);
+                return;
+            }
+            VerificationException result = null;
+            try {
+                verifyInput(tx, index, prevOutScript, batch.enforcePayToScriptHash);
+                inputsVerified.incrementAndGet();
+            } catch (VerificationException e) {
+                result = e;
+            } catch (Throwable t) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + t);
+                result = new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", t);
+            }
+            batch.complete(result);
+        }
+
+        @Override
+        public int compareTo(InputTask other) {
+            if (batch.id != other.batch.id)
+                return batch.id < other.batch.id ? -1 : 1;
+            if (txInputCount != other.txInputCount)
+                return txInputCount > other.txInputCount ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -24,8 +24,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -59,12 +58,7 @@ public class Sha256Hash implements Serializable, Comparable {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(Utils.singleDigest(contents, 0, contents.length));
     }
 
     /**
@@ -74,6 +68,13 @@ public class Sha256Hash implements Serializable, Comparable {
         return new Sha256Hash(Utils.doubleDigest(contents));
     }
 
+    /**
+     * Calculates the hash of the hash of the remaining bytes in the given buffer, which is left at its limit.
+     */
+    public static Sha256Hash createDouble(ByteBuffer contents) {
+        return new Sha256Hash(Utils.doubleDigest(contents));
+    }
+
     /**
      * Returns a hash of the given files contents. Reads the file fully into memory before hashing so only use with
      * small files.
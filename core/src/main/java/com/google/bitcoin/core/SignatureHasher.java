@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Calculates signature hashes for a {@link Transaction} without modifying it.</p>
+ *
+ * <p>A signature hash covers a simplified copy of the transaction in which every input script is blanked except the
+ * one being signed, and in which the sequence numbers and outputs may be cleared depending on the SIGHASH flags. The
+ * parts of that copy which don't depend on the input being signed (the blanked inputs and the serialized outputs)
+ * are captured once when the hasher is created, and each signature hash then streams the relevant ranges straight
+ * into a digest. As instances are immutable, the inputs of one transaction can be checked from several threads at
+ * once without any locking.</p>
+ *
+ * <p>A hasher reflects the transaction as it was when created, so the transaction discards its cached instance
+ * whenever it is modified.</p>
+ */
+class SignatureHasher {
+    // Every blanked input is serialized as a 36 byte outpoint, an empty script (a single zero length byte) and a four
+    // byte sequence number.
+    private static final int OUTPOINT_SIZE = 36;
+    private static final int BLANK_INPUT_SIZE = OUTPOINT_SIZE + 1 + 4;
+
+    // The "null" output used by SIGHASH_SINGLE: a value of -1 followed by an empty script.
+    private static final byte[] NULL_OUTPUT = {-1, -1, -1, -1, -1, -1, -1, -1, 0};
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+
+    // See hashForSignature: Satoshi's code returns the number 1 instead of a hash on this error path.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG_HASH =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final long version;
+    private final long lockTime;
+    private final int numInputs;
+    private final int numOutputs;
+    // All inputs, serialized with empty scripts.
+    private final byte[] blankInputs;
+    // All outputs serialized back to back, and the offset of each one (plus the total length at the end).
+    private final byte[] outputs;
+    private final int[] outputOffsets;
+
+    SignatureHasher(Transaction tx) {
+        this.version = tx.getVersion();
+        this.lockTime = tx.getLockTime();
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        this.numInputs = inputs.size();
+        this.numOutputs = outputs.size();
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(numInputs * BLANK_INPUT_SIZE);
+            for (TransactionInput input : inputs) {
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            this.blankInputs = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(numOutputs * 34);
+            this.outputOffsets = new int[numOutputs + 1];
+            for (int i = 0; i < numOutputs; i++) {
+                outputOffsets[i] = bos.size();
+                outputs.get(i).bitcoinSerialize(bos);
+            }
+            outputOffsets[numOutputs] = bos.size();
+            this.outputs = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Calculates the signature hash for the given input, exactly as {@link Transaction#hashForSignature(int, byte[], byte)}
+     * describes.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, numInputs);
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        boolean anyoneCanPay = (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= numOutputs) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return SIGHASH_SINGLE_BUG_HASH;
+        }
+
+        MessageDigest digest = Utils.threadDigest();
+        updateUint32(digest, version);
+
+        // Inputs: every script is empty except the one being signed, which is set to the script of its output.
+        // Satoshi does this but the step has no obvious purpose as the signature covers the hash of the prevout
+        // transaction which obviously includes the output script already. With SIGHASH_NONE/SINGLE the other inputs
+        // have their sequence numbers cleared, so the signature isn't broken by new versions of the transaction
+        // issued by other parties. SIGHASH_ANYONECANPAY means the signature in the input is not broken by
+        // changes/additions/removals of other inputs, so they are left out entirely.
+        if (anyoneCanPay) {
+            updateVarInt(digest, 1);
+            updateSigningInput(digest, inputIndex, connectedScript);
+        } else {
+            updateVarInt(digest, numInputs);
+            if (none || single) {
+                for (int i = 0; i < numInputs; i++) {
+                    if (i == inputIndex) {
+                        updateSigningInput(digest, i, connectedScript);
+                    } else {
+                        digest.update(blankInputs, i * BLANK_INPUT_SIZE, OUTPOINT_SIZE + 1);
+                        digest.update(ZERO_SEQUENCE);
+                    }
+                }
+            } else {
+                digest.update(blankInputs, 0, inputIndex * BLANK_INPUT_SIZE);
+                updateSigningInput(digest, inputIndex, connectedScript);
+                int next = (inputIndex + 1) * BLANK_INPUT_SIZE;
+                digest.update(blankInputs, next, blankInputs.length - next);
+            }
+        }
+
+        // Outputs: SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank
+        // cheque". SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output): the
+        // outputs after it are deleted and the ones before it are "nulled out". Unintuitively, the value in a "null"
+        // output is set to -1.
+        if (none) {
+            updateVarInt(digest, 0);
+        } else if (single) {
+            updateVarInt(digest, inputIndex + 1);
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+        } else {
+            updateVarInt(digest, numOutputs);
+            digest.update(outputs);
+        }
+
+        updateUint32(digest, lockTime);
+        // sigHashType is actually an unsigned char.
+        updateUint32(digest, 0x000000ff & sigHashType);
+        // Note that this is NOT reversed to ensure it will be signed correctly.
+        byte[] hash = new byte[32];
+        Utils.finishDoubleDigest(digest, hash, 0);
+        return new Sha256Hash(hash);
+    }
+
+    private void updateSigningInput(MessageDigest digest, int inputIndex, byte[] script) {
+        int start = inputIndex * BLANK_INPUT_SIZE;
+        digest.update(blankInputs, start, OUTPOINT_SIZE);
+        updateVarInt(digest, script.length);
+        digest.update(script);
+        digest.update(blankInputs, start + OUTPOINT_SIZE + 1, 4);
+    }
+
+    private static void updateUint32(MessageDigest digest, long val) {
+        digest.update((byte) (0xFF & val));
+        digest.update((byte) (0xFF & (val >> 8)));
+        digest.update((byte) (0xFF & (val >> 16)));
+        digest.update((byte) (0xFF & (val >> 24)));
+    }
+
+    private static void updateVarInt(MessageDigest digest, long val) {
+        if (val < 253)
+            digest.update((byte) val);
+        else
+            digest.update(new VarInt(val).encode());
+    }
+}
@@ -54,7 +54,9 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. The confidences of transactions in a {@link Wallet}
+ * instead derive them from a block counter shared by the whole wallet, so a new block doesn't have to touch each of
+ * them.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -75,6 +77,13 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // When attached to the tracker of a wallet, depth and workDone are the values as of when the tracker had counted
+    // trackerBlocks and trackerWork, and blocks counted since then are added on while the transaction is BUILDING.
+    @Nullable private DepthTracker tracker;
+    private int trackerBlocks;
+    private BigInteger trackerWork = BigInteger.ZERO;
+    // How many depth futures are waiting on this object.
+    private transient int depthFutures;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -162,7 +171,10 @@ public class TransactionConfidence implements Serializable {
 
             /**
              * Occurs when a transaction that is in the best known block chain gets buried by another block. If you're
-             * waiting for a certain number of confirmations, this is the reason to watch out for.
+             * waiting for a certain number of confirmations, this is the reason to watch out for. Transactions held
+             * by a {@link Wallet} only announce this while a future from
+             * {@link TransactionConfidence#getDepthFuture(int)} is waiting on them, otherwise just read
+             * {@link TransactionConfidence#getDepthInBlocks()} when you need it.
              */
             DEPTH,
 
@@ -210,6 +222,11 @@ public class TransactionConfidence implements Serializable {
         return ListenerRegistration.removeFromList(listener, listeners);
     }
 
+    /** Returns true if anything, such as a wallet, is listening for changes to this confidence. */
+    boolean hasEventListeners() {
+        return listeners != null && !listeners.isEmpty();
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -228,8 +245,8 @@ public class TransactionConfidence implements Serializable {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        setDepthInBlocks(1);
     }
 
     /**
@@ -246,6 +263,8 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        // Depth only grows with the chain while BUILDING, so freeze it at its current value or start counting now.
+        syncWithTracker();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -333,6 +352,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        syncWithTracker();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -349,13 +369,16 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (tracker == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + tracker.getBlocks() - trackerBlocks;
     }
 
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        syncWithTracker();
         this.depth = depth;
     }
 
@@ -367,13 +390,54 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (tracker == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(tracker.getWork()).subtract(trackerWork);
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        syncWithTracker();
         this.workDone = workDone;
     }
 
+    /**
+     * Makes depth and workDone reflect the blocks the tracker has counted so far, so that they can be modified or
+     * frozen, or the tracker replaced.
+     */
+    private void syncWithTracker() {
+        if (tracker == null)
+            return;
+        int blocks = tracker.getBlocks();
+        BigInteger work = tracker.getWork();
+        if (confidenceType == ConfidenceType.BUILDING) {
+            depth += blocks - trackerBlocks;
+            workDone = workDone.add(work).subtract(trackerWork);
+        }
+        trackerBlocks = blocks;
+        trackerWork = work;
+    }
+
+    /**
+     * Attaches this object to the tracker of the wallet that holds the transaction. From then on, the depth and work
+     * done grow as the tracker counts new blocks rather than through {@link #notifyWorkDone(Block)}.
+     */
+    synchronized void setDepthTracker(DepthTracker tracker) {
+        if (tracker == this.tracker)
+            return;
+        syncWithTracker();
+        if (this.tracker != null)
+            this.tracker.unwatch(this);
+        this.tracker = tracker;
+        trackerBlocks = tracker.getBlocks();
+        trackerWork = tracker.getWork();
+        if (depthFutures > 0)
+            tracker.watch(this);
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
     /**
      * If this transaction has been overridden by a double spend (is dead), this call returns the overriding transaction.
      * Note that this call <b>can return null</b> if you have migrated an old wallet, as pre-Jan 2012 wallets did not
@@ -409,6 +473,9 @@ public class TransactionConfidence implements Serializable {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            // The copy isn't attached to a tracker, so it keeps the depth as of now.
+            c.depth = getDepthInBlocks();
+            c.workDone = getWorkDone();
             return c;
         }
     }
@@ -459,11 +526,16 @@ public class TransactionConfidence implements Serializable {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+            return result;
         }
+        // Depth changes are only announced for transactions that are being waited on, see DepthTracker.
+        if (depthFutures++ == 0 && tracker != null)
+            tracker.watch(this);
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
-                    removeEventListener(this);
+                    if (removeEventListener(this))
+                        depthFutureDone();
                     result.set(transaction);
                 }
             }
@@ -471,6 +543,11 @@ public class TransactionConfidence implements Serializable {
         return result;
     }
 
+    private synchronized void depthFutureDone() {
+        if (--depthFutures == 0 && tracker != null)
+            tracker.unwatch(this);
+    }
+
     public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -43,14 +45,14 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // Each thread gets its own digest so hashing never contends on a shared lock. MessageDigest objects are not
+    // thread safe and are relatively expensive to look up, so this is cheaper than creating one per call.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
         }
-    }
+    };
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -195,20 +197,37 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        doubleDigestInto(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the given byte range and writes the 32 byte result into out at the given
+     * offset, avoiding any intermediate allocation. The output range may overlap the input range.
+     */
+    public static void doubleDigestInto(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the remaining bytes of the given buffer, which may be direct. The
+     * buffer's position is advanced to its limit.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        MessageDigest digest = threadDigest();
+        digest.update(input);
+        byte[] out = new byte[32];
+        finishDoubleDigest(digest, out, 0);
+        return out;
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = threadDigest();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -216,12 +235,47 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        MessageDigest digest = threadDigest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] out = new byte[32];
+        finishDoubleDigest(digest, out, 0);
+        return out;
+    }
+
+    /**
+     * Completes the first SHA-256 round held by the given digest, hashes the result again and writes it to out. The
+     * digest is left reset and ready for reuse.
+     */
+    static void finishDoubleDigest(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, 32);
+            digest.update(out, outOffset, 32);
+            digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the output range is always big enough.
+        }
+    }
+
+    /**
+     * Returns this thread's SHA-256 digest, reset and ready for use. The caller must finish with it before calling any
+     * other hashing method on the same thread, as they share it.
+     */
+    static MessageDigest threadDigest() {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Returns a new SHA-256 digest owned by the caller. Use this when a digest must be held across calls, for instance
+     * to hash data incrementally, otherwise prefer the static digest methods which reuse a per-thread instance.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
         }
     }
 
@@ -313,16 +367,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
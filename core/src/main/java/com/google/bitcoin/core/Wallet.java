@@ -25,6 +25,7 @@ import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.script.ScriptChunk;
 import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletJournal;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
@@ -36,6 +37,8 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +54,7 @@ import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.bitcoin.core.Utils.bitcoinValueToFriendlyString;
@@ -133,10 +137,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // The keychain indexed by public key and by public key hash, as every output of every transaction we see is checked
+    // against it. Must be kept in sync with the keychain, and rebuilt whenever it's replaced.
+    private transient HashMap<ByteString, ECKey> keysByPubKey;
+    private transient HashMap<ByteString, ECKey> keysByPubKeyHash;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // The outputs in the unspent and pending pools that we own and haven't spent yet, by transaction, and their total
+    // value. This is what calculateAllSpendCandidates returns, kept up to date by refreshSpendCandidates as transactions
+    // move between pools so it doesn't have to be recalculated for every balance query.
+    private transient HashMap<Sha256Hash, List<TransactionOutput>> spendCandidates;
+    private transient BigInteger spendCandidatesValue;
+    // The AVAILABLE balance, or null if it has to be recalculated by the coin selector. As that depends on the
+    // confidence of each candidate, it's cleared whenever the confidence of one of our transactions changes.
+    @Nullable private transient BigInteger availableBalance;
+
     private final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -153,6 +170,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the blocks added to the best chain, which the confidences of our transactions derive their depth from.
+    private DepthTracker depthTracker = new DepthTracker();
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -163,6 +182,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     private volatile WalletFiles vFileManager;
+    // What changed since the wallet was last saved to a journal, so that only that has to be appended to it: see
+    // saveToJournal. Changes a journal entry can't express, like removing keys or a re-org, set journalNeedsSnapshot
+    // so the next save writes the whole wallet instead.
+    @GuardedBy("lock") private transient LinkedHashSet<Sha256Hash> journalTransactions;
+    @GuardedBy("lock") private transient List<ECKey> journalKeys;
+    @GuardedBy("lock") private transient List<Script> journalScripts;
+    @GuardedBy("lock") private transient Set<String> journalExtensions;
+    @GuardedBy("lock") private transient boolean journalNeedsSnapshot;
+    // Saves to a file snapshot the wallet under the lock, then serialize it and write it out under fileLock alone.
+    // Snapshots are numbered as they're taken so that of two overlapping saves to the same file, the newest always wins.
+    @GuardedBy("lock") private transient long snapshotCount;
+    private transient ReentrantLock fileLock;
+    @GuardedBy("fileLock") private transient HashMap<File, Long> snapshotsWritten;
+    // Saves to a journal are numbered in the same way, but are written out in the order they were taken instead, as
+    // each entry only holds what changed since the one before it.
+    @GuardedBy("lock") private transient long journalSaveCount;
+    @GuardedBy("fileLock") private transient long journalSavesWritten;
+    private transient Condition journalSaveTurn;
+    private transient volatile long vLastSaveLockNanos;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     private volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -216,7 +254,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
+        rebuildKeyIndexes();
+        rebuildSpendCandidates();
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        journalTransactions = new LinkedHashSet<Sha256Hash>();
+        journalKeys = new ArrayList<ECKey>();
+        journalScripts = new ArrayList<Script>();
+        journalExtensions = new HashSet<String>();
+        journalNeedsSnapshot = true;
+        fileLock = Threading.lock("wallet-file");
+        snapshotsWritten = new HashMap<File, Long>();
+        journalSaveTurn = fileLock.newCondition();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -226,15 +274,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // doesn't necessarily know at that point which wallets contain which transactions, so it's up
                 // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
                 // so we'll queue up a wallet change event in other parts of the code.
-                if (reason == ChangeReason.SEEN_PEERS) {
-                    lock.lock();
-                    try {
+                lock.lock();
+                try {
+                    // Any confidence change may alter which outputs the coin selector is willing to spend.
+                    availableBalance = null;
+                    // Depths are derived from the last seen block height when a journal is replayed.
+                    if (reason != ChangeReason.DEPTH)
+                        journalTransaction(tx);
+                    if (reason == ChangeReason.SEEN_PEERS) {
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
-                    } finally {
-                        lock.unlock();
                     }
+                } finally {
+                    lock.unlock();
                 }
             }
         };
@@ -277,11 +330,29 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKey.remove(ByteString.copyFrom(key.getPubKey()));
+            keysByPubKeyHash.remove(ByteString.copyFrom(key.getPubKeyHash()));
+            rebuildSpendCandidates();
+            journalNeedsSnapshot = true;
+            return true;
         } finally {
             lock.unlock();
         }
     }
+
+    private void indexKey(ECKey key) {
+        keysByPubKey.put(ByteString.copyFrom(key.getPubKey()), key);
+        keysByPubKeyHash.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+    }
+
+    private void rebuildKeyIndexes() {
+        keysByPubKey = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        keysByPubKeyHash = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
     
     /**
      * Returns the number of keys in the keychain.
@@ -295,13 +366,35 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet is only locked whilst
+     * a snapshot of it is taken, see {@link #snapshotToProto()}, not whilst that's serialized and written out. If two
+     * saves to the same file overlap, the older snapshot is dropped rather than allowed to replace the newer one.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.Snapshot snapshot;
+        long number;
         lock.lock();
         try {
+            snapshot = takeSnapshot(serializer);
+            number = ++snapshotCount;
+        } finally {
+            lock.unlock();
+        }
+        Protos.Wallet proto = serializer.walletToProto(snapshot);
+        FileOutputStream stream = null;
+        fileLock.lock();
+        try {
+            File key = destFile.getAbsoluteFile();
+            Long written = snapshotsWritten.get(key);
+            if (written != null && written > number) {
+                log.info("Not saving wallet to {} as a newer snapshot was saved there already", destFile);
+                temp.delete();
+                return;
+            }
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            proto.writeTo(stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -312,17 +405,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // Work around an issue on Windows whereby you can't rename over existing files.
                 File canonical = destFile.getCanonicalFile();
                 canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            snapshotsWritten.put(key, number);
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
+            fileLock.unlock();
             if (stream != null) {
                 stream.close();
             }
@@ -332,6 +425,40 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns the wallet serialized to a protocol buffer, the same as {@link WalletProtobufSerializer#walletToProto}
+     * does. The wallet is only locked whilst the state that can change is copied out of it, which is cheap, and the
+     * protocol buffer is built from that copy afterwards. How long the wallet was locked for is available from
+     * {@link #getLastSaveLockTime(java.util.concurrent.TimeUnit)}.
+     */
+    public Protos.Wallet snapshotToProto() {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.Snapshot snapshot;
+        lock.lock();
+        try {
+            snapshot = takeSnapshot(serializer);
+        } finally {
+            lock.unlock();
+        }
+        return serializer.walletToProto(snapshot);
+    }
+
+    private WalletProtobufSerializer.Snapshot takeSnapshot(WalletProtobufSerializer serializer) {
+        checkState(lock.isHeldByCurrentThread());
+        long start = System.nanoTime();
+        WalletProtobufSerializer.Snapshot snapshot = serializer.snapshot(this);
+        vLastSaveLockNanos = System.nanoTime() - start;
+        return snapshot;
+    }
+
+    /**
+     * Returns how long the last save held the wallet lock for, which is just the time it took to take a snapshot of
+     * the wallet whether it was saved to a file or to a {@link WalletJournal}.
+     */
+    public long getLastSaveLockTime(TimeUnit unit) {
+        return unit.convert(vLastSaveLockNanos, TimeUnit.NANOSECONDS);
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -343,6 +470,124 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         saveToFile(temp, f);
     }
 
+    /**
+     * <p>Saves the wallet to the given journal, which for large wallets is much cheaper than
+     * {@link #saveToFile(java.io.File)}: only the transactions, keys, scripts and extensions that changed since the
+     * last save to it are appended, along with the last seen block. Once the journal has grown large enough, or when
+     * the wallet changed in a way a journal record can't express such as a re-org or encryption, the whole wallet is
+     * written out as a new snapshot instead. See {@link WalletJournal}.</p>
+     *
+     * <p>As with {@link #saveToFile(java.io.File, java.io.File)}, the wallet is only locked whilst what's to be written
+     * is copied out of it. Overlapping saves to a journal are written out in the order they were taken.</p>
+     *
+     * <p>Extensions are only written when they're added or updated with
+     * {@link #addOrUpdateExtension(WalletExtension)}, and saving the wallet any other way doesn't reset what the
+     * journal has yet to record.</p>
+     */
+    public void saveToJournal(WalletJournal journal) throws IOException {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.Snapshot snapshot;
+        boolean complete;
+        long number;
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            List<WalletTransaction> changed = journalNeedsSnapshot || journal.needsSnapshot() ?
+                    null : getJournalTransactions();
+            complete = changed == null;
+            if (complete) {
+                snapshot = serializer.snapshot(this);
+            } else {
+                snapshot = serializer.snapshotChanges(this, changed, journalKeys, journalScripts, journalExtensions);
+            }
+            vLastSaveLockNanos = System.nanoTime() - start;
+            number = ++journalSaveCount;
+            journalTransactions.clear();
+            journalKeys.clear();
+            journalScripts.clear();
+            journalExtensions.clear();
+            journalNeedsSnapshot = false;
+        } finally {
+            lock.unlock();
+        }
+        boolean written = false;
+        try {
+            Protos.Wallet proto = complete ? serializer.walletToProto(snapshot) :
+                    serializer.walletChangesToProto(snapshot);
+            fileLock.lock();
+            try {
+                // An entry can't be dropped in favour of a newer one like a whole file can, as the newer one doesn't
+                // hold the older one's changes. So wait for the saves taken before this one, leaving the newest last.
+                while (journalSavesWritten != number - 1)
+                    journalSaveTurn.awaitUninterruptibly();
+                if (complete)
+                    journal.writeSnapshot(proto);
+                else
+                    journal.append(proto);
+                written = true;
+            } finally {
+                journalSavesWritten = number;
+                journalSaveTurn.signalAll();
+                fileLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed whilst saving wallet", e);
+            throw e;
+        } finally {
+            if (!written) {
+                // What this save took out of the wallet never made it to the journal, so the next save must write
+                // the whole wallet.
+                lock.lock();
+                try {
+                    journalNeedsSnapshot = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void journalTransaction(Transaction tx) {
+        // There's no need to keep track of anything if the whole wallet is going to be written anyway, which is
+        // always the case when the wallet isn't being saved to a journal.
+        if (!journalNeedsSnapshot)
+            journalTransactions.add(tx.getHash());
+    }
+
+    // Returns the transactions to record in the journal, or null if one of them left the wallet. Along with the changed
+    // transactions come the ones they spend from, as connecting or disconnecting an input changes the spent by fields
+    // of those too.
+    @Nullable
+    private List<WalletTransaction> getJournalTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        LinkedHashSet<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+        for (Sha256Hash hash : journalTransactions) {
+            Transaction tx = transactions.get(hash);
+            if (tx == null)
+                return null;
+            hashes.add(hash);
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash parent = input.getOutpoint().getHash();
+                if (transactions.containsKey(parent))
+                    hashes.add(parent);
+            }
+        }
+        List<WalletTransaction> result = new ArrayList<WalletTransaction>(hashes.size());
+        for (Sha256Hash hash : hashes) {
+            Pool pool;
+            if (unspent.containsKey(hash))
+                pool = Pool.UNSPENT;
+            else if (spent.containsKey(hash))
+                pool = Pool.SPENT;
+            else if (pending.containsKey(hash))
+                pool = Pool.PENDING;
+            else
+                pool = Pool.DEAD;
+            result.add(new WalletTransaction(pool, transactions.get(hash)));
+        }
+        return result;
+    }
+
     /**
      * <p>Whether or not the wallet will ignore received pending transactions that fail the selected
      * {@link RiskAnalysis}. By default, if a transaction is considered risky then it won't enter the wallet
@@ -464,12 +709,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
-        lock.lock();
-        try {
-            new WalletProtobufSerializer().writeWallet(this, f);
-        } finally {
-            lock.unlock();
-        }
+        snapshotToProto().writeTo(f);
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -478,20 +718,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet deserialized from the given file, replaying the {@link WalletJournal} kept next to it if it was
+     * saved with one.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
-        try {
-            FileInputStream stream = null;
-            try {
-                stream = new FileInputStream(f);
-                return loadFromFileStream(stream);
-            } finally {
-                if (stream != null) stream.close();
-            }
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not open file", e);
+        Wallet wallet = new WalletProtobufSerializer().readWallet(f);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
         }
+        return wallet;
     }
     
     public boolean isConsistent() {
@@ -532,6 +767,30 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
 
+            // The incrementally maintained spend candidates must match what a scan of the pools finds.
+            int numCandidates = 0;
+            BigInteger candidatesValue = BigInteger.ZERO;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    if (!output.isAvailableForSpending() || !output.isMine(this)) continue;
+                    List<TransactionOutput> candidates = spendCandidates.get(tx.getHash());
+                    if (candidates == null || !candidates.contains(output)) {
+                        success = false;
+                        log.error("Spendable output {}:{} is not a spend candidate", tx.getHashAsString(), output.getIndex());
+                    }
+                    numCandidates++;
+                    candidatesValue = candidatesValue.add(output.getValue());
+                }
+            }
+            int size3 = 0;
+            for (List<TransactionOutput> candidates : spendCandidates.values())
+                size3 += candidates.size();
+            if (numCandidates != size3 || !candidatesValue.equals(spendCandidatesValue)) {
+                log.error("Inconsistent spend candidates: {} {} {} {}", numCandidates, size3, candidatesValue,
+                        spendCandidatesValue);
+                success = false;
+            }
+
             if (!success) {
                 try {
                     log.error(toString());
@@ -558,6 +817,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        if (depthTracker == null) {
+            // Serialized before depths were tracked.
+            depthTracker = new DepthTracker();
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().setDepthTracker(depthTracker);
+        }
         createTransientState();
     }
     
@@ -842,8 +1107,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            refreshSpendCandidates(tx);
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -921,6 +1188,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkBalanceFuturesLocked(newBalance);
         }
 
+        // The tx now records the block it appeared in.
+        journalTransaction(tx);
         informConfidenceListenersIfNotReorganizing();
         checkState(isConsistent());
         saveNow();
@@ -957,20 +1226,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+            // Depths change, and with them coinbase maturity and what the coin selector will pick.
+            availableBalance = null;
+            // Bury every BUILDING transaction by one more block at once: their depth and work done are derived from
+            // the tracker when asked for.
+            BigInteger work = block.getHeader().getWork();
+            depthTracker.add(1, work);
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                // tx was already processed in receive() due to it appearing in this block, so take the block back off
+                // again, otherwise it'd be counted twice.
+                Transaction tx = transactions.get(hash);
+                if (tx == null || tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                    continue;
+                TransactionConfidence confidence = tx.getConfidence();
+                confidence.setDepthInBlocks(confidence.getDepthInBlocks() - 1);
+                confidence.setWorkDone(confidence.getWorkDone().subtract(work));
             }
+            queueDepthChanges(ignoreNextNewBlock);
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1186,6 +1459,92 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 unspent.put(tx.getHash(), tx);
             }
         }
+        // We get here whenever one of the outputs of tx was spent or unspent, even if it stays in the same pool.
+        refreshSpendCandidates(tx);
+        journalTransaction(tx);
+    }
+
+    /**
+     * Updates the spend candidates of the given transaction. Must be called whenever it's added to or removed from
+     * the unspent or pending pools, or one of its outputs is spent or unspent.
+     */
+    private void refreshSpendCandidates(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        removeSpendCandidates(tx.getHash());
+        addSpendCandidates(tx.getHash());
+        availableBalance = null;
+    }
+
+    /** Recalculates the spend candidates of every transaction, for when too much changed to track it piecemeal. */
+    private void rebuildSpendCandidates() {
+        spendCandidates = new HashMap<Sha256Hash, List<TransactionOutput>>();
+        spendCandidatesValue = BigInteger.ZERO;
+        availableBalance = null;
+        for (Sha256Hash hash : Iterables.concat(unspent.keySet(), pending.keySet()))
+            addSpendCandidates(hash);
+    }
+
+    /**
+     * Adds the unspent outputs which are sent to any of the given keys, which have just been added to the wallet. The
+     * outputs are only checked against the new keys, and the candidates found for the old ones are left as they are.
+     */
+    private void addSpendCandidatesForKeys(List<ECKey> keys) {
+        Set<ByteString> pubKeys = new HashSet<ByteString>(keys.size());
+        Set<ByteString> pubKeyHashes = new HashSet<ByteString>(keys.size());
+        for (ECKey key : keys) {
+            pubKeys.add(ByteString.copyFrom(key.getPubKey()));
+            pubKeyHashes.add(ByteString.copyFrom(key.getPubKeyHash()));
+        }
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending()) continue;
+                try {
+                    Script script = output.getScriptPubKey();
+                    if (script.isSentToRawPubKey()) {
+                        if (!pubKeys.contains(ByteString.copyFrom(script.getPubKey()))) continue;
+                    } else if (!pubKeyHashes.contains(ByteString.copyFrom(script.getPubKeyHash()))) {
+                        continue;
+                    }
+                } catch (ScriptException e) {
+                    continue;  // Not sent to a key, so can't be ours.
+                }
+                List<TransactionOutput> outputs = spendCandidates.get(tx.getHash());
+                if (outputs == null) {
+                    outputs = new ArrayList<TransactionOutput>(1);
+                    spendCandidates.put(tx.getHash(), outputs);
+                }
+                outputs.add(output);
+                spendCandidatesValue = spendCandidatesValue.add(output.getValue());
+                availableBalance = null;
+            }
+        }
+    }
+
+    private void removeSpendCandidates(Sha256Hash hash) {
+        List<TransactionOutput> outputs = spendCandidates.remove(hash);
+        if (outputs == null)
+            return;
+        for (TransactionOutput output : outputs)
+            spendCandidatesValue = spendCandidatesValue.subtract(output.getValue());
+    }
+
+    private void addSpendCandidates(Sha256Hash hash) {
+        Transaction tx = unspent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            return;
+        List<TransactionOutput> outputs = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            if (outputs == null)
+                outputs = new ArrayList<TransactionOutput>(1);
+            outputs.add(output);
+            spendCandidatesValue = spendCandidatesValue.add(output.getValue());
+        }
+        if (outputs != null)
+            spendCandidates.put(hash, outputs);
     }
 
     /**
@@ -1360,6 +1719,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        tx.getConfidence().setDepthTracker(depthTracker);
+        refreshSpendCandidates(tx);
+        journalTransaction(tx);
     }
 
     /**
@@ -1433,6 +1795,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                rebuildSpendCandidates();
+                journalNeedsSnapshot = true;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1468,6 +1832,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
             if (dirty) {
+                // Disconnecting the inputs of the removed transactions unspent outputs in other transactions.
+                rebuildSpendCandidates();
+                journalNeedsSnapshot = true;
                 checkState(isConsistent());
                 saveLater();
             }
@@ -1884,11 +2251,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -1981,14 +2343,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (List<TransactionOutput> outputs : spendCandidates.values()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !outputs.get(0).getParentTransaction().isMature()) continue;
+                candidates.addAll(outputs);
             }
             return candidates;
         } finally {
@@ -2058,10 +2416,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public int addKeys(final List<ECKey> keys) {
         lock.lock();
         try {
-            int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
+            List<ECKey> addedKeys = new ArrayList<ECKey>(keys.size());
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2071,12 +2428,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
-                added++;
+                indexKey(key);
+                if (!journalNeedsSnapshot)
+                    journalKeys.add(key);
+                addedKeys.add(key);
             }
+            // Outputs we already have may be sent to the new keys.
+            if (!addedKeys.isEmpty() && !transactions.isEmpty())
+                addSpendCandidatesForKeys(addedKeys);
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
-            return added;
+            return addedKeys.size();
         } finally {
             lock.unlock();
         }
@@ -2140,6 +2503,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                if (!journalNeedsSnapshot)
+                    journalScripts.add(script);
                 added++;
             }
 
@@ -2161,20 +2526,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2205,10 +2567,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteString.copyFrom(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2260,12 +2619,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                // Confidence changes that haven't been announced to listeners yet won't have cleared the cached value.
+                if (availableBalance != null && confidenceChanged.isEmpty())
+                    return availableBalance;
+                BigInteger balance = getBalance(coinSelector);
+                if (confidenceChanged.isEmpty())
+                    availableBalance = balance;
+                return balance;
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                return spendCandidatesValue;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2470,6 +2832,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(!insideReorg);
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
+            // Depths no longer all move together, so can't be derived from the last seen block on journal replay.
+            journalNeedsSnapshot = true;
             onWalletChangedSuppressions++;
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
@@ -2540,6 +2904,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
+            // Disconnecting the old chain unspent outputs all over the wallet, so start over from the current pools.
+            rebuildSpendCandidates();
 
             // Note that dead transactions stay dead. Consider a chain that Finney attacks T1 and replaces it with
             // T2, so we move T1 into the dead pool. If there's now a re-org to a chain that doesn't include T2, it
@@ -2548,17 +2914,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // The old blocks have contributed to the depth and work done for all the transactions in the
             // wallet that are in blocks up to and including the chain split block.
-            // The total depth and work done is calculated here and then subtracted from the appropriate transactions.
+            // The total depth and work done is calculated here and then taken off the tracker, which subtracts it from
+            // every transaction that is still BUILDING.
             int depthToSubtract = oldBlocks.size();
             BigInteger workDoneToSubtract = BigInteger.ZERO;
             for (StoredBlock b : oldBlocks) {
                 workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
             }
             log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            depthTracker.add(-depthToSubtract, workDoneToSubtract.negate());
+            queueDepthChanges(Collections.<Sha256Hash>emptySet());
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2596,16 +2961,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Subtract the supplied depth and work done from the given transactions.
+     * Queues a DEPTH change for the BUILDING transactions that somebody is waiting on a depth for, after the tracker
+     * moved. Depth isn't announced for any other transaction, as that would mean visiting all of them for every block.
      */
-    private void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                          Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
+    private void queueDepthChanges(Set<Sha256Hash> skip) {
+        for (TransactionConfidence confidence : depthTracker.getWatched()) {
+            Transaction tx = confidence.getTransaction();
+            if (skip.contains(tx.getHash()) || transactions.get(tx.getHash()) != tx)
+                continue;
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
         }
     }
 
@@ -2793,9 +3158,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            journalNeedsSnapshot = true;
 
             saveNow();
         } finally {
@@ -2834,9 +3201,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            journalNeedsSnapshot = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -2956,6 +3325,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             checkState(this.keyCrypter == null);
             this.keyCrypter = keyCrypter;
+            journalNeedsSnapshot = true;
         } finally {
             lock.unlock();
         }
@@ -2998,7 +3368,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Set the version number of the wallet. See {@link Wallet#getVersion()}.
      */
     public void setVersion(int version) {
-        this.version = version;
+        lock.lock();
+        try {
+            this.version = version;
+            journalNeedsSnapshot = true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -3006,7 +3382,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * This is a Unicode encoding string typically entered by the user as descriptive text for the wallet.
      */
     public void setDescription(String description) {
-        this.description = description;
+        lock.lock();
+        try {
+            this.description = description;
+            journalNeedsSnapshot = true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -3070,21 +3452,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            filter.insertAll(getBloomFilterElements(keychain, watchedScripts));
         } finally {
             lock.unlock();
         }
@@ -3105,6 +3473,28 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return filter;
     }
 
+    /**
+     * Returns the data a bloom filter has to contain to match transactions involving the given keys and scripts. This
+     * lets a filter be extended with just the keys or scripts that have been added since it was made.
+     */
+    static List<byte[]> getBloomFilterElements(Collection<ECKey> keys, Collection<Script> scripts) {
+        List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2 + scripts.size());
+        for (ECKey key : keys) {
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        for (Script script : scripts) {
+            for (ScriptChunk chunk : script.getChunks()) {
+                // Only add long (at least 64 bit) data to the bloom filter.
+                // If any long constants become popular in scripts, we will need logic
+                // here to exclude them.
+                if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                    elements.add(chunk.data);
+            }
+        }
+        return elements;
+    }
+
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         return (out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
                 out.isWatched(this);
@@ -3130,6 +3520,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            availableBalance = null;
         } finally {
             lock.unlock();
         }
@@ -3234,6 +3625,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            if (!journalNeedsSnapshot)
+                journalExtensions.add(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -3251,6 +3644,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            if (!journalNeedsSnapshot)
+                journalExtensions.add(id);
             saveNow();
             return extension;
         } finally {
@@ -3268,6 +3663,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            if (!journalNeedsSnapshot)
+                journalExtensions.add(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -3678,6 +4075,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             log.info("Key rotation time set: {}", unixTimeSeconds);
             maybeRotateKeys();
         }
+        lock.lock();
+        try {
+            journalNeedsSnapshot = true;
+        } finally {
+            lock.unlock();
+        }
         saveNow();
     }
 
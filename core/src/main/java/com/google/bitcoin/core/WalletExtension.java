@@ -37,7 +37,10 @@ public interface WalletExtension {
      */
     public boolean isWalletExtensionMandatory();
 
-    /** Returns bytes that will be saved in the wallet. */
+    /**
+     * Returns bytes that will be saved in the wallet. This may be called without the wallet being locked, so the
+     * extension must guard its own state.
+     */
     public byte[] serializeWalletExtension();
     /** Loads the contents of this object from the wallet. */
     public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception;
@@ -20,13 +20,14 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.net.discovery.DnsDiscovery;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.store.WalletJournal;
 import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletFiles;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -70,6 +71,7 @@ public class WalletAppKit extends AbstractIdleService {
     protected volatile File vWalletFile;
 
     protected boolean useAutoSave = true;
+    protected boolean useJournal = false;
     protected PeerAddress[] peerAddresses;
     protected PeerEventListener downloadListener;
     protected boolean autoStop = true;
@@ -108,6 +110,16 @@ public class WalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * If true, auto saves append the changes to a {@link WalletJournal} next to the wallet file instead of rewriting
+     * the whole file, which is much cheaper for large wallets. See {@link WalletFiles#setJournaling(boolean)}.
+     */
+    public WalletAppKit setJournaledAutoSave(boolean value) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        useJournal = value;
+        return this;
+    }
+
     /**
      * If you want to learn about the sync process, you can provide a listener here. For instance, a
      * {@link DownloadListener} is a good choice.
@@ -176,7 +188,6 @@ public class WalletAppKit extends AbstractIdleService {
                 throw new IOException("Could not create named directory.");
             }
         }
-        FileInputStream walletStream = null;
         try {
             File chainFile = new File(directory, filePrefix + ".spvchain");
             boolean chainFileExists = chainFile.exists();
@@ -192,8 +203,7 @@ public class WalletAppKit extends AbstractIdleService {
                 long time = Long.MAX_VALUE;
                 if (vWalletFile.exists()) {
                     Wallet wallet = new Wallet(params);
-                    FileInputStream stream = new FileInputStream(vWalletFile);
-                    new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(stream), wallet);
+                    new WalletProtobufSerializer().readWallet(WalletJournal.readProto(vWalletFile, false), wallet);
                     time = wallet.getEarliestKeyCreationTime();
                 }
                 CheckpointManager.checkpoint(params, checkpoints, vStore, time);
@@ -203,10 +213,9 @@ public class WalletAppKit extends AbstractIdleService {
             if (this.userAgent != null)
                 vPeerGroup.setUserAgent(userAgent, version);
             if (vWalletFile.exists()) {
-                walletStream = new FileInputStream(vWalletFile);
                 vWallet = new Wallet(params);
                 addWalletExtensions(); // All extensions must be present before we deserialize
-                new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(walletStream), vWallet);
+                new WalletProtobufSerializer().readWallet(vWalletFile, vWallet);
                 if (shouldReplayWallet)
                     vWallet.clearTransactions(0);
             } else {
@@ -214,7 +223,10 @@ public class WalletAppKit extends AbstractIdleService {
                 vWallet.addKey(new ECKey());
                 addWalletExtensions();
             }
-            if (useAutoSave) vWallet.autosaveToFile(vWalletFile, 1, TimeUnit.SECONDS, null);
+            if (useAutoSave) {
+                WalletFiles files = vWallet.autosaveToFile(vWalletFile, 1, TimeUnit.SECONDS, null);
+                files.setJournaling(useJournal);
+            }
             // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
             // before we're actually connected the broadcast waits for an appropriate number of connections.
             if (peerAddresses != null) {
@@ -251,8 +263,6 @@ public class WalletAppKit extends AbstractIdleService {
             }
         } catch (BlockStoreException e) {
             throw new IOException(e);
-        } finally {
-            if (walletStream != null) walletStream.close();
         }
     }
 
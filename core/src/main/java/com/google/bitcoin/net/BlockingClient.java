@@ -19,6 +19,7 @@ package com.google.bitcoin.net;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,6 +27,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -37,7 +39,7 @@ import static com.google.common.base.Preconditions.checkState;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements BufferWriteTarget, ReadPausableTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -46,6 +48,11 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guards readingPaused, which the network thread waits on before each read.
+    private final Object pauseLock = new Object();
+    @GuardedBy("pauseLock") private boolean readingPaused = false;
+    // For copying direct buffers out to the socket stream, allocated on first use.
+    private byte[] writeBuff;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -78,6 +85,7 @@ public class BlockingClient implements MessageWriteTarget {
                     byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
+                        waitWhilePaused();
                         // TODO Kill the message duplication here
                         checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
                         int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
@@ -114,6 +122,15 @@ public class BlockingClient implements MessageWriteTarget {
         t.start();
     }
 
+    private void waitWhilePaused() throws IOException, InterruptedException {
+        synchronized (pauseLock) {
+            while (readingPaused && !vCloseRequested)
+                pauseLock.wait();
+        }
+        if (vCloseRequested)
+            throw new IOException("Connection closed");
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -126,6 +143,47 @@ public class BlockingClient implements MessageWriteTarget {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // Wake the network thread if it's paused, so it notices.
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        synchronized (pauseLock) {
+            readingPaused = paused;
+            pauseLock.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    // Streams only take byte arrays, so direct buffers have to come out through one.
+                    if (writeBuff == null)
+                        writeBuff = new byte[BufferPool.DEFAULT_BUFFER_SIZE];
+                    ByteBuffer source = buffer.duplicate();
+                    while (source.hasRemaining()) {
+                        int n = Math.min(source.remaining(), writeBuff.length);
+                        source.get(writeBuff, 0, n);
+                        stream.write(writeBuff, 0, n);
+                    }
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            BufferPool.getDefault().releaseAll(Arrays.asList(buffers));
+        }
     }
 
     @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of direct {@link ByteBuffer}s, all of the same size, that outbound messages are serialized into so the
+ * channel can write them without first copying them out of the Java heap. Allocating direct memory is slow, so buffers
+ * go back into the pool once they have been written and are handed out again, up to a limit on how many are kept.</p>
+ *
+ * <p>The {@link BufferWriteTarget}s in this package give buffers back to the {@link #getDefault() default pool} once
+ * written. A pool only takes back direct buffers of its own size, so buffers that didn't come from it are left
+ * alone.</p>
+ */
+public class BufferPool {
+    /** The size of the buffers in the default pool. */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** How many free buffers the default pool keeps: 4MB worth. */
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /** Creates a pool of direct buffers of the given size, keeping at most maxPooled of them once released. */
+    public BufferPool(int bufferSize, int maxPooled) {
+        checkArgument(bufferSize > 0);
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** Returns the pool that outbound messages are serialized into. */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Writes the given buffers to the given target, with a gathering write if it's a {@link BufferWriteTarget} or else
+     * copied out into a single array. Either way the target is done with them afterwards, as described by
+     * {@link BufferWriteTarget#writeBuffers(ByteBuffer[])}.
+     */
+    public static void write(MessageWriteTarget target, ByteBuffer[] buffers) throws IOException {
+        if (target instanceof BufferWriteTarget) {
+            ((BufferWriteTarget) target).writeBuffers(buffers);
+            return;
+        }
+        byte[] message;
+        try {
+            int length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            message = new byte[length];
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int n = buffer.remaining();
+                buffer.duplicate().get(message, offset, n);
+                offset += n;
+            }
+        } finally {
+            defaultPool.releaseAll(Arrays.asList(buffers));
+        }
+        target.writeBytes(message);
+    }
+
+    /** Returns the size of the buffers in this pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer, taking one from the pool if there is one. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Puts the given buffer back in the pool if it is a direct buffer of the pool's size and the pool isn't full. The
+     * buffer must not be used again by the caller.
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    /** Releases each of the given buffers, as {@link #release(ByteBuffer)} does. */
+    public void releaseAll(Iterable<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers)
+            release(buffer);
+    }
+
+    /** Returns how many buffers this pool has had to allocate. */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /** Returns how many buffers are in the pool waiting to be reused. */
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} that can also take a message as a list of buffers, written with a single gathering
+ * write and without copying them. The targets in this package all implement it; others are written to through
+ * {@link MessageWriteTarget#writeBytes(byte[])} instead.
+ */
+public interface BufferWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of each of the given buffers to the remote server, in order. The target takes the
+     * buffers over, even if this throws: it may write them later, and gives them back to the
+     * {@link BufferPool#getDefault() default pool} once they're written. Unlike the array passed to
+     * {@link #writeBytes(byte[])}, their contents must not be changed afterwards.
+     */
+    void writeBuffers(ByteBuffer[] buffers) throws IOException;
+}
@@ -29,7 +29,6 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,7 +40,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements BufferWriteTarget, ReadPausableTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -58,6 +57,8 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") StreamParser parser;
     @GuardedBy("lock") private boolean closeCalled = false;
 
+    // The bytes still to be written, plus the unused space of the direct buffers holding them, as they tie up all of
+    // their memory until they're written.
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
 
@@ -111,17 +112,17 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer in one gathering
+            // write, and give the buffers that were written in full back to the pool.
+            if (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    ByteBuffer written = bytesToWrite.poll();
+                    bytesToWriteRemaining -= unusedCapacity(written);
+                    BufferPool.getDefault().release(written);
                 }
+                if (!bytesToWrite.isEmpty())
+                    setWriteOps();
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
@@ -132,24 +133,40 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // The part of a buffer that holds nothing to write, which only counts against the outbound limit if it's direct
+    // memory. It doesn't change as the buffer is written.
+    private static int unusedCapacity(ByteBuffer buffer) {
+        return buffer.isDirect() ? buffer.capacity() - buffer.limit() : 0;
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller may reuse the array once we return.
+        // TODO: Kill the needless message duplication when the write completes right away
+        writeBuffers(new ByteBuffer[] {ByteBuffer.wrap(Arrays.copyOf(message, message.length))});
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining() + unusedCapacity(buffer);
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // register our SelectionKey to wakeup when we have free outbound buffer space available. The buffers are
+            // queued as they are, so the message bytes are never copied on the way to the channel.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            bytesToWrite.addAll(Arrays.asList(buffers));
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
+            BufferPool.getDefault().releaseAll(Arrays.asList(buffers));
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
@@ -162,6 +179,24 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                // Like removing OP_WRITE, this doesn't need the selector woken up.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is closed, so there's nothing more to read anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -179,6 +214,10 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so the buffers can be reused.
+            BufferPool.getDefault().releaseAll(bytesToWrite);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -23,7 +23,8 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The bytes are copied or written out before this returns, so the
+     * caller may reuse the array.
      */
     void writeBytes(byte[] message) throws IOException;
     /**
@@ -25,7 +25,7 @@ import static com.google.common.base.Preconditions.checkState;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements BufferWriteTarget {
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
@@ -104,4 +104,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        BufferPool.write(handler.writeTarget, buffers);
+    }
 }
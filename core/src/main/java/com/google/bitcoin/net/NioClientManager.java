@@ -29,17 +29,20 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread. {@link ParallelNioClientManager} spreads connections over several of these.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
 
-    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
+    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT, or
+    // with OP_READ if they were accepted by a server and so are already connected
     class SocketChannelAndParser {
-        SocketChannel sc; StreamParser parser;
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
+        SocketChannel sc; StreamParser parser; boolean accepted;
+        SocketChannelAndParser(SocketChannel sc, StreamParser parser, boolean accepted) {
+            this.sc = sc; this.parser = parser; this.accepted = accepted;
+        }
     }
     final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
 
@@ -94,8 +97,15 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                 SocketChannelAndParser conn;
                 while ((conn = newConnectionChannels.poll()) != null) {
                     try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
+                        if (conn.accepted) {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_READ);
+                            ConnectionHandler handler = new ConnectionHandler(conn.parser, key, connectedHandlers);
+                            key.attach(handler);
+                            handler.parser.connectionOpened();
+                        } else {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn.parser);
+                        }
                     } catch (ClosedChannelException e) {
                         log.info("SocketChannel was closed before it could be registered");
                     }
@@ -141,7 +151,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
+            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser, false));
             selector.wakeup();
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
@@ -149,6 +159,17 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    /**
+     * Takes over a connection accepted by a server, so that it is serviced by this manager's thread. The channel must
+     * be non-blocking.
+     */
+    void acceptConnection(SocketChannel sc, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        newConnectionChannels.offer(new SocketChannelAndParser(sc, parser, true));
+        selector.wakeup();
+    }
+
     @Override
     public void triggerShutdown() {
         selector.wakeup();
@@ -26,12 +26,15 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. By default every connection is serviced on the listening thread, but accepted connections can instead
+ * be spread over several selector threads so that many clients can be served at once.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -40,6 +43,8 @@ public class NioServer extends AbstractExecutionThreadService {
 
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
+    // If set, accepted connections are handed to these selector threads rather than serviced by ours
+    @Nullable private final ParallelNioClientManager workers;
 
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
@@ -47,6 +52,17 @@ public class NioServer extends AbstractExecutionThreadService {
             // Accept a new connection, give it a parser as an attachment
             SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
+            if (workers != null) {
+                StreamParser parser = parserFactory.getNewParser(newChannel.socket().getInetAddress(),
+                        newChannel.socket().getPort());
+                if (parser == null) {
+                    log.info("Parser factory.getNewParser returned null, closing connection");
+                    newChannel.close();
+                } else {
+                    workers.acceptConnection(newChannel, parser);
+                }
+                return;
+            }
             SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
             ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
             newKey.attach(handler);
@@ -63,7 +79,21 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 0);
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}. If selectorThreads is positive,
+     * accepted connections are spread over that many threads of their own, otherwise they are all serviced by the
+     * thread which accepts them.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads)
+            throws IOException {
         this.parserFactory = parserFactory;
+        workers = selectorThreads > 0 ? new ParallelNioClientManager(selectorThreads) : null;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
@@ -72,6 +102,18 @@ public class NioServer extends AbstractExecutionThreadService {
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
+    @Override
+    protected void startUp() throws Exception {
+        if (workers != null)
+            workers.startAndWait();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (workers != null)
+            workers.stopAndWait();
+    }
+
     @Override
     protected void run() throws Exception {
         try {
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link ClientConnectionManager} which spreads its connections over several {@link NioClientManager}s, each
+ * with its own selector and thread, so that reading, parsing and processing messages from many peers can use more
+ * than one core. Each connection stays on the thread it was given, so its messages are still handled one at a time
+ * and in order.</p>
+ *
+ * <p>New connections go to the thread with the fewest connections, or in turn when they are equal.</p>
+ */
+public class ParallelNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final NioClientManager[] managers;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Creates a manager with one selector thread per available processor. */
+    public ParallelNioClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a manager which services its connections with the given number of selector threads. */
+    public ParallelNioClientManager(int threads) {
+        checkArgument(threads > 0);
+        managers = new NioClientManager[threads];
+        for (int i = 0; i < threads; i++)
+            managers[i] = new NioClientManager();
+    }
+
+    /** Returns the number of selector threads. */
+    public int getThreadCount() {
+        return managers.length;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.startAndWait();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.stopAndWait();
+    }
+
+    @Override
+    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        leastLoaded().openConnection(serverAddress, parser);
+    }
+
+    // Used by NioServer to hand accepted connections to the selector threads.
+    void acceptConnection(SocketChannel sc, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        leastLoaded().acceptConnection(sc, parser);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager manager : managers)
+            count += manager.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Close connections on the busiest threads first, to keep the load even.
+        while (n-- > 0) {
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager manager : managers) {
+                int count = manager.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = manager;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+
+    private NioClientManager leastLoaded() {
+        // Start from a different manager each time, so that connections opened together, before any of them has
+        // connected and been counted, still end up on different threads.
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % managers.length;
+        NioClientManager best = managers[start];
+        int bestCount = best.getConnectedClientCount();
+        for (int i = 1; i < managers.length; i++) {
+            NioClientManager manager = managers[(start + i) % managers.length];
+            int count = manager.getConnectedClientCount();
+            if (count < bestCount) {
+                best = manager;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.Nullable;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An OutputStream that writes into a chain of buffers from a {@link BufferPool} rather than a growing byte array,
+ * so a message can be serialized once and its buffers handed straight to
+ * {@link BufferWriteTarget#writeBuffers(ByteBuffer[])} for a gathering write.</p>
+ *
+ * <p>Byte arrays that are already complete and won't change, like the cached bytes of a message, can be appended with
+ * {@link #writeShared(byte[], int, int)} without copying them, so the same bytes can go out to many peers at once. Not
+ * thread safe.</p>
+ */
+public class PooledBufferOutputStream extends OutputStream {
+    // Pooled buffers filled to no more than this fraction of their size are swapped for heap buffers by toBuffers.
+    private static final int SMALL_BUFFER_FRACTION = 4;
+
+    private final BufferPool pool;
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    // The pooled buffer being written into, which isn't in the list until it's full or something else is appended.
+    @Nullable private ByteBuffer current;
+    private int size;
+    private boolean done;
+
+    public PooledBufferOutputStream(BufferPool pool) {
+        this.pool = checkNotNull(pool);
+    }
+
+    /** Creates a stream that writes into buffers from the {@link BufferPool#getDefault() default pool}. */
+    public PooledBufferOutputStream() {
+        this(BufferPool.getDefault());
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRoom();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ensureRoom();
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Appends the given bytes without copying them. The array must not be changed until the buffers have been written
+     * out.
+     */
+    public void writeShared(byte[] b, int off, int len) {
+        checkState(!done);
+        finishCurrent();
+        buffers.add(ByteBuffer.wrap(b, off, len).slice());
+        size += len;
+    }
+
+    /**
+     * Appends a heap buffer of the given length, to be filled in later, and returns it. Used for headers that depend
+     * on what comes after them.
+     */
+    public ByteBuffer reserve(int length) {
+        checkState(!done);
+        finishCurrent();
+        ByteBuffer slot = ByteBuffer.allocate(length);
+        buffers.add(slot);
+        size += length;
+        return slot;
+    }
+
+    /**
+     * Returns a mark that {@link #digest(int, MessageDigest)} can use to digest everything written after this point.
+     */
+    public int mark() {
+        checkState(!done);
+        finishCurrent();
+        return buffers.size();
+    }
+
+    /** Feeds everything written since the given mark into the given digest. */
+    public void digest(int mark, MessageDigest digest) {
+        finishCurrent();
+        for (int i = mark; i < buffers.size(); i++)
+            digest.update(buffers.get(i).duplicate());
+    }
+
+    /** Returns the number of bytes written so far. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the buffers holding everything written, in order and ready to be read. Whoever gets them is responsible
+     * for giving them back to the pool, and nothing more may be written.
+     */
+    public ByteBuffer[] toBuffers() {
+        checkState(!done);
+        finishCurrent();
+        done = true;
+        // A pooled buffer holding only a few bytes, like the one a small message fits in, would tie up a whole pooled
+        // buffer for as long as it waits to be written. Copy those into heap buffers of the right size instead.
+        for (int i = 0; i < buffers.size(); i++) {
+            ByteBuffer buffer = buffers.get(i);
+            if (buffer.isDirect() && buffer.remaining() <= pool.getBufferSize() / SMALL_BUFFER_FRACTION) {
+                ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer);
+                copy.flip();
+                pool.release(buffer);
+                buffers.set(i, copy);
+            }
+        }
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /** Gives the buffers back to the pool without writing them, after a failure part way through serializing. */
+    public void release() {
+        if (done)
+            return;
+        finishCurrent();
+        done = true;
+        pool.releaseAll(buffers);
+        buffers.clear();
+    }
+
+    private void ensureRoom() {
+        checkState(!done);
+        if (current != null && current.hasRemaining())
+            return;
+        finishCurrent();
+        current = pool.acquire();
+    }
+
+    private void finishCurrent() {
+        if (current == null)
+            return;
+        current.flip();
+        buffers.add(current);
+        current = null;
+    }
+}
@@ -220,8 +220,7 @@ public class ProtobufParser<MessageType extends MessageLite> extends AbstractTim
         Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
         try {
             MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            BufferPool.write(target, new ByteBuffer[] {ByteBuffer.wrap(messageLength), ByteBuffer.wrap(messageBytes)});
         } catch (IOException e) {
             closeConnection();
         }
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+/**
+ * A {@link MessageWriteTarget} that can stop reading from the remote end for a while, so that a {@link StreamParser}
+ * which hands its work off to another thread can hold back a peer until that work catches up, without blocking the
+ * network thread.
+ */
+public interface ReadPausableTarget extends MessageWriteTarget {
+    /**
+     * Stops or restarts reading from the remote end. Whilst paused the parser isn't given any more bytes, and they wait
+     * in the OS' network buffer, which eventually slows the remote end down. May be called from any thread.
+     */
+    void setReadingPaused(boolean paused);
+}
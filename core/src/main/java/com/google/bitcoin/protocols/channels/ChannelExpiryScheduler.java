@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Runs a task when each payment channel expires, for {@link StoredPaymentChannelServerStates} to close channels and
+ * {@link StoredPaymentChannelClientStates} to broadcast refunds. It's built to hold very many channels at once.</p>
+ *
+ * <p>Channels are kept in a hierarchical timing wheel with a tick of one second, so scheduling one costs the same
+ * however many others there are. Each level has 64 slots, each spanning 64 times as long as a slot in the level
+ * below. As time reaches a slot its channels move down a level, until they reach the bottom level and expire. All
+ * the channels expiring in a tick are handed to a fixed number of worker threads in batches, so slow closes such as
+ * broadcasts don't hold up the wheel or each other.</p>
+ */
+public class ChannelExpiryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ChannelExpiryScheduler.class);
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    // Five levels cover 2^30 seconds, about 34 years. Anything further out waits in the top level.
+    private static final int LEVELS = 5;
+    private static final int BATCH_SIZE = 100;
+
+    private static ChannelExpiryScheduler defaultScheduler;
+
+    private final ReentrantLock lock = Threading.lock("ChannelExpiryScheduler");
+    @GuardedBy("lock") private final List<List<Expiry>> wheels;
+    @GuardedBy("lock") private long currentTick;
+    private final Executor workers;
+
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicInteger overdue = new AtomicInteger();
+    private final AtomicLong expired = new AtomicLong();
+
+    private static class Expiry {
+        final long tick;
+        final Runnable task;
+
+        Expiry(long tick, Runnable task) {
+            this.tick = tick;
+            this.task = task;
+        }
+    }
+
+    /** Returns the scheduler shared by all channel stores, creating it on first use. */
+    public static synchronized ChannelExpiryScheduler getDefault() {
+        if (defaultScheduler == null)
+            defaultScheduler = new ChannelExpiryScheduler(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return defaultScheduler;
+    }
+
+    /** Creates a scheduler that runs expired channel tasks on the given number of daemon threads. */
+    public ChannelExpiryScheduler(int workerThreads) {
+        this(Executors.newFixedThreadPool(workerThreads, daemonThreads("ChannelExpiryScheduler worker")),
+             System.currentTimeMillis());
+        ScheduledExecutorService ticker =
+                Executors.newSingleThreadScheduledExecutor(daemonThreads("ChannelExpiryScheduler ticker"));
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance(System.currentTimeMillis());
+                } catch (Throwable e) {
+                    // Don't let an exception stop the ticker, or nothing would ever expire again.
+                    log.error("Exception whilst expiring channels", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Creates a scheduler which doesn't tick by itself, starting at the given time. Use {@link #advance(long)}. */
+    @VisibleForTesting
+    ChannelExpiryScheduler(Executor workers, long nowMillis) {
+        this.workers = checkNotNull(workers);
+        wheels = new ArrayList<List<Expiry>>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++)
+            wheels.add(null);
+        currentTick = nowMillis / TICK_MILLIS;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName(name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Runs the given task on a worker thread once the given time, in milliseconds since the epoch as measured by
+     * {@link System#currentTimeMillis()}, has passed. The task runs in the first tick after then, or straight away if
+     * it has already passed.
+     */
+    public void schedule(long expiryTimeMillis, Runnable task) {
+        checkNotNull(task);
+        // Round up, so that a task never runs early.
+        long tick = (expiryTimeMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+        lock.lock();
+        try {
+            if (tick <= currentTick) {
+                run(Lists.newArrayList(new Expiry(tick, task)));
+                return;
+            }
+            insert(new Expiry(tick, task));
+            scheduled.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of tasks waiting for their channel to expire. */
+    public int getScheduledCount() {
+        return scheduled.get();
+    }
+
+    /**
+     * Returns the number of tasks whose channel has expired but which haven't finished running yet, because they're
+     * waiting for a worker thread or are running now. If this keeps growing closes are slower than expiries.
+     */
+    public int getOverdueCount() {
+        return overdue.get();
+    }
+
+    /** Returns the total number of tasks that have been run. */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /** Moves the wheel on to the given time, running every task that has expired by then. */
+    @VisibleForTesting
+    void advance(long nowMillis) {
+        long tick = nowMillis / TICK_MILLIS;
+        lock.lock();
+        try {
+            while (currentTick < tick) {
+                currentTick++;
+                // Move the channels in the slots of the upper levels that start now down the wheel, first, as some
+                // of them may expire in this very tick.
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) != 0)
+                        continue;
+                    List<Expiry> slot = takeSlot(level, currentTick);
+                    if (slot != null) {
+                        for (Expiry expiry : slot)
+                            insert(expiry);
+                    }
+                }
+                List<Expiry> due = takeSlot(0, currentTick);
+                if (due != null) {
+                    scheduled.addAndGet(-due.size());
+                    run(due);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void insert(Expiry expiry) {
+        long delta = expiry.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS))
+            level++;
+        // Beyond the range of the top level the channel goes round the wheel again.
+        long tick = Math.min(expiry.tick, currentTick + (1L << (LEVELS * SLOT_BITS)) - 1);
+        int index = level * SLOTS + (int) ((tick >>> (level * SLOT_BITS)) & (SLOTS - 1));
+        List<Expiry> slot = wheels.get(index);
+        if (slot == null) {
+            slot = Lists.newArrayList();
+            wheels.set(index, slot);
+        }
+        slot.add(expiry);
+    }
+
+    @GuardedBy("lock")
+    private List<Expiry> takeSlot(int level, long tick) {
+        int index = level * SLOTS + (int) ((tick >>> (level * SLOT_BITS)) & (SLOTS - 1));
+        return wheels.set(index, null);
+    }
+
+    private void run(List<Expiry> due) {
+        overdue.addAndGet(due.size());
+        for (int i = 0; i < due.size(); i += BATCH_SIZE) {
+            final List<Expiry> batch = due.subList(i, Math.min(due.size(), i + BATCH_SIZE));
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Expiry expiry : batch) {
+                        try {
+                            expiry.task.run();
+                        } catch (Throwable e) {
+                            log.error("Exception whilst expiring channel", e);
+                            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                            if (handler != null)
+                                handler.uncaughtException(Thread.currentThread(), e);
+                        } finally {
+                            overdue.decrementAndGet();
+                            expired.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
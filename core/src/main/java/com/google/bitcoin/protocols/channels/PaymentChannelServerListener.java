@@ -136,12 +136,22 @@ public class PaymentChannelServerListener {
      * @throws Exception If binding to the given port fails (eg SocketException: Permission denied for privileged ports)
      */
     public void bindAndStart(int port) throws Exception {
+        bindAndStart(port, 0);
+    }
+
+    /**
+     * Binds to the given port and starts accepting new client connections, which are spread over the given number of
+     * network threads so that many clients can be served at once. If selectorThreads is zero all clients are serviced
+     * by the thread which accepts them.
+     * @throws Exception If binding to the given port fails (eg SocketException: Permission denied for privileged ports)
+     */
+    public void bindAndStart(int port, int selectorThreads) throws Exception {
         server = new NioServer(new StreamParserFactory() {
             @Override
             public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
                 return new ServerHandler(new InetSocketAddress(inetAddress, port), timeoutSeconds).socketProtobufHandler;
             }
-        }, new InetSocketAddress(port));
+        }, new InetSocketAddress(port), selectorThreads);
         server.startAndWait();
     }
 
@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Arrays;
 
@@ -111,6 +112,9 @@ public class PaymentChannelServerState {
 
     private long minExpireTime;
 
+    // Set once a payment couldn't be stored, after which no more are accepted as they wouldn't survive a restart.
+    private IOException storageFailure;
+
     private StoredServerChannel storedServerChannel = null;
 
     PaymentChannelServerState(StoredServerChannel storedServerChannel, Wallet wallet, TransactionBroadcaster broadcaster) throws VerificationException {
@@ -281,10 +285,13 @@ public class PaymentChannelServerState {
      * @param refundSize How many satoshis of the original contract are refunded to the client (the rest are ours)
      * @param signatureBytes The new signature spending the multi-sig contract to a new payment transaction
      * @throws VerificationException If the signature does not verify or size is out of range (incl being rejected by the network as dust).
+     * @throws IllegalStateException If the channel isn't ready, or if this or an earlier payment couldn't be stored.
      * @return true if there is more value left on the channel, false if it is now fully used up.
      */
     public synchronized boolean incrementPayment(BigInteger refundSize, byte[] signatureBytes) throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
         checkState(state == State.READY);
+        if (storageFailure != null)
+            throw new IllegalStateException("Payments to this channel can no longer be stored", storageFailure);
         checkNotNull(refundSize);
         checkNotNull(signatureBytes);
         TransactionSignature signature = TransactionSignature.decodeFromBitcoin(signatureBytes, true);
@@ -472,7 +479,14 @@ public class PaymentChannelServerState {
             storedServerChannel.updateValueToMe(bestValueToMe, bestValueSignature);
             StoredPaymentChannelServerStates channels = (StoredPaymentChannelServerStates)
                     wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
-            wallet.addOrUpdateExtension(channels);
+            try {
+                channels.updatedChannel(multisigContract.getHash(), bestValueToMe, bestValueSignature);
+            } catch (IOException e) {
+                // The channel can still be closed with this payment, but it's not safe to take any more.
+                log.error("Failed to store payment to channel " + multisigContract.getHash(), e);
+                storageFailure = e;
+                throw new IllegalStateException("Payment could not be stored", e);
+            }
         }
     }
 
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only file holding the state of a set of server side payment channels, keyed by the hash of their
+ * contract, for use by {@link StoredPaymentChannelServerStates} in place of the wallet file. A payment only appends a
+ * small record with the new value and signature, rather than re-serializing every channel and saving the wallet.</p>
+ *
+ * <p>Writes are group committed: whilst one thread writes and syncs a batch of records, other threads queue theirs
+ * up for the next batch, in which only the latest payment to each channel is written. Each call returns once its
+ * record is on disk. When the file has doubled in size since it was last compacted it's rewritten with just the
+ * channels that are still open.</p>
+ */
+class ServerChannelStateLog {
+    private static final Logger log = LoggerFactory.getLogger(ServerChannelStateLog.class);
+
+    private static final int MAGIC = 0x5343484c;  // "SCHL"
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final long MIN_COMPACTION_LENGTH = 1024 * 1024;
+
+    // Record types, each the first byte of a record's payload.
+    private static final byte CHANNEL = 1;  // A whole channel, as stored in the wallet extension.
+    private static final byte PAYMENT = 2;  // The contract hash then the best value and signature.
+    private static final byte REMOVAL = 3;  // The contract hash.
+
+    private final File file;
+    private final ReentrantLock lock = Threading.lock("ServerChannelStateLog");
+    private final Condition batchWritten = lock.newCondition();
+
+    // The open channels as of the last record of each, used to compact the file.
+    @GuardedBy("lock") private final Map<Sha256Hash, ServerState.StoredServerPaymentChannel> channels;
+    @GuardedBy("lock") private final Map<Sha256Hash, byte[]> payments;
+    @GuardedBy("lock") private List<byte[]> pendingRecords = Lists.newArrayList();
+    // Payment records are keyed by channel so that a newer payment replaces one that hasn't been written yet.
+    @GuardedBy("lock") private Map<Sha256Hash, byte[]> pendingPayments = new LinkedHashMap<Sha256Hash, byte[]>();
+    @GuardedBy("lock") private long recordsQueued, recordsWritten;
+    @GuardedBy("lock") private boolean writing;
+    @GuardedBy("lock") private IOException failure;
+
+    // Only touched by the thread that's writing a batch.
+    private FileOutputStream stream;
+    private long length, compactedLength;
+
+    /**
+     * Opens the given file, creating it if it doesn't exist, and reads the channels in it. A record torn by a crash
+     * whilst it was being written is discarded.
+     */
+    ServerChannelStateLog(File file) throws IOException {
+        this.file = file;
+        channels = new LinkedHashMap<Sha256Hash, ServerState.StoredServerPaymentChannel>();
+        payments = new HashMap<Sha256Hash, byte[]>();
+        if (file.exists() && file.length() > 0) {
+            length = replay(Files.toByteArray(file));
+            if (length < file.length()) {
+                log.warn("Discarding {} bytes of incomplete records at the end of {}", file.length() - length, file);
+                RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+                try {
+                    truncate.setLength(length);
+                } finally {
+                    truncate.close();
+                }
+            }
+            stream = new FileOutputStream(file, true);
+        } else {
+            compact();
+        }
+        compactedLength = length;
+    }
+
+    /** Returns the file the channels are kept in. */
+    File getFile() {
+        return file;
+    }
+
+    /** Returns the open channels read from the file when it was opened, with their latest payments applied. */
+    List<ServerState.StoredServerPaymentChannel> getChannels() {
+        lock.lock();
+        try {
+            List<ServerState.StoredServerPaymentChannel> result = Lists.newArrayList();
+            for (Map.Entry<Sha256Hash, ServerState.StoredServerPaymentChannel> entry : channels.entrySet())
+                result.add(withPayment(entry.getValue(), payments.get(entry.getKey())));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the whole of the given channel, replacing anything written about it before. */
+    void putChannel(Sha256Hash id, ServerState.StoredServerPaymentChannel channel) throws IOException {
+        putChannels(Collections.singletonMap(id, channel));
+    }
+
+    /** Writes the whole of each of the given channels, as {@link #putChannel} does, in a single batch. */
+    void putChannels(Map<Sha256Hash, ServerState.StoredServerPaymentChannel> channelsById) throws IOException {
+        long number;
+        lock.lock();
+        try {
+            for (Map.Entry<Sha256Hash, ServerState.StoredServerPaymentChannel> entry : channelsById.entrySet()) {
+                Sha256Hash id = entry.getKey();
+                channels.put(id, entry.getValue());
+                payments.remove(id);
+                pendingPayments.remove(id);
+                pendingRecords.add(record(CHANNEL, entry.getValue().toByteArray()));
+            }
+            number = recordsQueued += channelsById.size();
+        } finally {
+            lock.unlock();
+        }
+        commit(number);
+    }
+
+    /** Writes the latest payment to the given channel, if it's still stored, returning once it's on disk. */
+    void updateChannel(Sha256Hash id, BigInteger bestValueToMe, @Nullable byte[] bestValueSignature) throws IOException {
+        byte[] signature = bestValueSignature == null ? new byte[0] : bestValueSignature;
+        byte[] record = record(PAYMENT, ByteBuffer.allocate(32 + 8 + signature.length)
+                .put(id.getBytes())
+                .putLong(bestValueToMe.longValue())
+                .put(signature)
+                .array());
+        long number;
+        lock.lock();
+        try {
+            // The channel may have been closed since the payment was made.
+            if (!channels.containsKey(id))
+                return;
+            payments.put(id, record);
+            pendingPayments.put(id, record);
+            number = ++recordsQueued;
+        } finally {
+            lock.unlock();
+        }
+        commit(number);
+    }
+
+    /** Writes the removal of the given channel. */
+    void removeChannel(Sha256Hash id) throws IOException {
+        long number;
+        lock.lock();
+        try {
+            if (channels.remove(id) == null)
+                return;
+            payments.remove(id);
+            pendingPayments.remove(id);
+            pendingRecords.add(record(REMOVAL, id.getBytes()));
+            number = ++recordsQueued;
+        } finally {
+            lock.unlock();
+        }
+        commit(number);
+    }
+
+    // Waits until the given record has been written. If no batch is being written the calling thread writes
+    // everything queued so far, otherwise it waits for that batch to finish and tries again.
+    private void commit(long number) throws IOException {
+        lock.lock();
+        try {
+            while (recordsWritten < number) {
+                if (failure != null)
+                    throw new IOException("Payment channel state could not be written to " + file, failure);
+                if (writing) {
+                    batchWritten.awaitUninterruptibly();
+                    continue;
+                }
+                writing = true;
+                List<byte[]> batch = pendingRecords;
+                batch.addAll(pendingPayments.values());
+                pendingRecords = Lists.newArrayList();
+                pendingPayments = new LinkedHashMap<Sha256Hash, byte[]>();
+                long upTo = recordsQueued;
+                lock.unlock();
+                IOException error = null;
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                writing = false;
+                if (error != null) {
+                    // Part of the batch may have made it to disk, so nothing else can be written after it.
+                    log.error("Failed to write payment channel state to " + file, error);
+                    failure = error;
+                } else {
+                    recordsWritten = upTo;
+                }
+                batchWritten.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch)
+            size += record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : batch)
+            buffer.put(record);
+        stream.write(buffer.array());
+        stream.flush();
+        stream.getFD().sync();
+        length += size;
+        if (length > Math.max(MIN_COMPACTION_LENGTH, compactedLength * 2)) {
+            compact();
+            compactedLength = length;
+        }
+    }
+
+    // Rewrites the file with only the open channels and their latest payments.
+    private void compact() throws IOException {
+        List<byte[]> records = Lists.newArrayList();
+        int count;
+        lock.lock();
+        try {
+            count = channels.size();
+            for (Map.Entry<Sha256Hash, ServerState.StoredServerPaymentChannel> entry : channels.entrySet()) {
+                records.add(record(CHANNEL, entry.getValue().toByteArray()));
+                byte[] payment = payments.get(entry.getKey());
+                if (payment != null)
+                    records.add(payment);
+            }
+        } finally {
+            lock.unlock();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        long written = 4;
+        try {
+            output.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+            for (byte[] record : records) {
+                output.write(record);
+                written += record.length;
+            }
+            output.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (stream != null)
+            stream.close();
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = file.getCanonicalFile();
+            canonical.delete();
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(file)) {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        stream = new FileOutputStream(file, true);
+        length = written;
+        log.info("Compacted payment channel state file {} to {} channels", file, count);
+    }
+
+    /**
+     * Closes the file, after which nothing more can be written: every write fails as though the file could no longer
+     * be written to.
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            while (writing)
+                batchWritten.awaitUninterruptibly();
+            if (failure == null)
+                failure = new IOException("Closed");
+            stream.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the length of the valid records, which may be less than the length of the data.
+    private long replay(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.remaining() < 4 || buffer.getInt() != MAGIC)
+            throw new IOException(file + " is not a payment channel state file");
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            int start = buffer.position();
+            int recordLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (recordLength < 1 || recordLength > buffer.remaining() || checksum(data, buffer.position(), recordLength) != checksum) {
+                buffer.position(start);
+                break;
+            }
+            byte[] payload = new byte[recordLength - 1];
+            byte type = buffer.get();
+            buffer.get(payload);
+            apply(type, payload, Arrays.copyOfRange(data, start, buffer.position()));
+        }
+        return buffer.position();
+    }
+
+    private void apply(byte type, byte[] payload, byte[] record) throws IOException {
+        switch (type) {
+            case CHANNEL:
+                ServerState.StoredServerPaymentChannel channel;
+                try {
+                    channel = ServerState.StoredServerPaymentChannel.parseFrom(payload);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IOException("Corrupt channel in " + file, e);
+                }
+                Sha256Hash id = StoredPaymentChannelServerStates.getContractHash(channel);
+                channels.put(id, channel);
+                payments.remove(id);
+                break;
+            case PAYMENT:
+                Sha256Hash paid = new Sha256Hash(Arrays.copyOf(payload, 32));
+                if (channels.containsKey(paid))
+                    payments.put(paid, record);
+                break;
+            case REMOVAL:
+                Sha256Hash removed = new Sha256Hash(payload);
+                channels.remove(removed);
+                payments.remove(removed);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in " + file);
+        }
+    }
+
+    private static ServerState.StoredServerPaymentChannel withPayment(ServerState.StoredServerPaymentChannel channel,
+                                                                      @Nullable byte[] payment) {
+        if (payment == null)
+            return channel;
+        ByteBuffer buffer = ByteBuffer.wrap(payment, RECORD_HEADER_LENGTH + 1 + 32, payment.length - RECORD_HEADER_LENGTH - 1 - 32);
+        ServerState.StoredServerPaymentChannel.Builder builder = channel.toBuilder().setBestValueToMe(buffer.getLong());
+        if (buffer.hasRemaining()) {
+            byte[] signature = new byte[buffer.remaining()];
+            buffer.get(signature);
+            builder.setBestValueSignature(ByteString.copyFrom(signature));
+        } else {
+            builder.clearBestValueSignature();
+        }
+        return builder.build();
+    }
+
+    // A record is its length, a checksum, then the type and payload which the length and checksum cover.
+    private static byte[] record(byte type, byte[] payload) {
+        byte[] record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 1 + payload.length)
+                .putInt(1 + payload.length)
+                .putInt(0)
+                .put(type)
+                .put(payload)
+                .array();
+        ByteBuffer.wrap(record).putInt(4, checksum(record, RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH));
+        return record;
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
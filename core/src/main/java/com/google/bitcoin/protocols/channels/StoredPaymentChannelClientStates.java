@@ -27,10 +27,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.Date;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -45,7 +42,7 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelClientStates.class.getName();
 
     @GuardedBy("lock") @VisibleForTesting final HashMultimap<Sha256Hash, StoredClientChannel> mapChannels = HashMultimap.create();
-    @VisibleForTesting final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryScheduler expiryScheduler = ChannelExpiryScheduler.getDefault();
 
     private Wallet containingWallet;
     private final TransactionBroadcaster announcePeerGroup;
@@ -169,15 +166,16 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         lock.lock();
         try {
             mapChannels.put(channel.id, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
+            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+            long expiryTime = channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis());
+            expiryScheduler.schedule(expiryTime, new Runnable() {
                 @Override
                 public void run() {
                     removeChannel(channel);
                     announcePeerGroup.broadcastTransaction(channel.contract);
                     announcePeerGroup.broadcastTransaction(channel.refund);
                 }
-                // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            }, new Date(channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis())));
+            });
         } finally {
             lock.unlock();
         }
@@ -19,10 +19,15 @@ package com.google.bitcoin.protocols.channels;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
 import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
@@ -30,8 +35,12 @@ import java.util.concurrent.locks.ReentrantLock;
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
- * unlock.
+ * <p>Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
+ * unlock.</p>
+ *
+ * <p>By default the channels are stored in the wallet, which is saved each time a payment is made. A server taking
+ * many payments should instead give a separate file to keep the channels in, to which payments are appended without
+ * touching the wallet. The wallet then only holds the location of that file.</p>
  */
 public class StoredPaymentChannelServerStates implements WalletExtension {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StoredPaymentChannelServerStates.class);
@@ -41,8 +50,9 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<Sha256Hash, StoredServerChannel>();
     private final Wallet wallet;
     private final TransactionBroadcaster broadcaster;
+    @GuardedBy("lock") @Nullable private ServerChannelStateLog stateLog;
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryScheduler expiryScheduler = ChannelExpiryScheduler.getDefault();
 
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
@@ -55,6 +65,10 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      */
     public static final long CHANNEL_EXPIRE_OFFSET = -2*60*60;
 
+    // Starts the extension data when the channels are kept in a separate file, followed by the path to it. The tag it
+    // would be read as has an invalid wire type, so it can't be mistaken for a serialized set of channels.
+    private static final byte[] STATE_FILE_PREFIX = "file:".getBytes(Charsets.UTF_8);
+
     /**
      * Creates a new PaymentChannelServerStateManager and associates it with the given {@link Wallet} and
      * {@link TransactionBroadcaster} which are used to complete and announce payment transactions.
@@ -64,6 +78,42 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         this.broadcaster = checkNotNull(broadcaster);
     }
 
+    /**
+     * Creates a new PaymentChannelServerStateManager which keeps its channels in the given file rather than in the
+     * wallet, creating the file if it doesn't exist. Channels already in the file are loaded and scheduled for
+     * automatic closure. Channels found in the wallet when it's loaded, from before a file was used, are moved into
+     * it.
+     */
+    public StoredPaymentChannelServerStates(Wallet wallet, TransactionBroadcaster broadcaster, File stateFile)
+            throws IOException {
+        this(wallet, broadcaster);
+        lock.lock();
+        try {
+            openStateLog(stateFile);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void openStateLog(File stateFile) throws IOException {
+        ServerChannelStateLog stateLog = new ServerChannelStateLog(stateFile.getAbsoluteFile());
+        for (ServerState.StoredServerPaymentChannel storedState : stateLog.getChannels())
+            scheduleChannel(channelFromProto(wallet.getParams(), storedState));
+        this.stateLog = stateLog;
+    }
+
+    /** Returns the file the channels are kept in, or null if they're kept in the wallet. */
+    @Nullable
+    public File getStateFile() {
+        lock.lock();
+        try {
+            return stateLog == null ? null : stateLog.getFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>Closes the given channel using {@link ServerConnectionEventHandler#closeChannel()} and
      * {@link PaymentChannelServerState#close()} to notify any connected client of channel closure and to complete and
@@ -73,13 +123,22 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
+        ServerChannelStateLog stateLog;
         lock.lock();
         try {
             if (mapChannels.remove(channel.contract.getHash()) == null)
                 return;
+            stateLog = this.stateLog;
         } finally {
             lock.unlock();
         }
+        if (stateLog != null) {
+            try {
+                stateLog.removeChannel(channel.contract.getHash());
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+        }
         synchronized (channel) {
             channel.closeConnectedHandler();
             try {
@@ -91,7 +150,54 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             }
             channel.state = null;
         }
-        wallet.addOrUpdateExtension(this);
+        if (stateLog == null)
+            wallet.addOrUpdateExtension(this);
+    }
+
+    /**
+     * Stores a new best value and signature for the given channel, which have already been set on it. If the channels
+     * are kept in a separate file only the payment is written, otherwise the wallet is saved.
+     *
+     * @throws IOException if the payment couldn't be written to the file. Once that happens the file can't be written
+     *                     to again, so {@link PaymentChannelServerState} stops accepting payments.
+     */
+    void updatedChannel(Sha256Hash id, BigInteger bestValueToMe, @Nullable byte[] bestValueSignature)
+            throws IOException {
+        ServerChannelStateLog stateLog;
+        lock.lock();
+        try {
+            stateLog = this.stateLog;
+        } finally {
+            lock.unlock();
+        }
+        if (stateLog == null)
+            wallet.addOrUpdateExtension(this);
+        else
+            stateLog.updateChannel(id, bestValueToMe, bestValueSignature);
+    }
+
+    /**
+     * Closes the file the channels are kept in, if there is one. Call this when shutting down, once no more payments
+     * are being taken: any payment after it is refused, as it could no longer be stored.
+     */
+    public void close() throws IOException {
+        ServerChannelStateLog stateLog;
+        lock.lock();
+        try {
+            stateLog = this.stateLog;
+        } finally {
+            lock.unlock();
+        }
+        if (stateLog != null)
+            stateLog.close();
+    }
+
+    // As with failing to save the wallet, there's not much that can be done other than to let the API user know.
+    private static void reportFailure(IOException e) {
+        log.error("Failed to write payment channel state to disk!", e);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            handler.uncaughtException(Thread.currentThread(), e);
     }
 
     /**
@@ -114,23 +220,37 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
+        ServerChannelStateLog stateLog;
         lock.lock();
         try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    closeChannel(channel);
-                }
-            }, autocloseTime);
+            scheduleChannel(channel);
+            stateLog = this.stateLog;
         } finally {
             lock.unlock();
         }
+        if (stateLog != null) {
+            try {
+                stateLog.putChannel(channel.contract.getHash(), channelToProto(channel));
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void scheduleChannel(final StoredServerChannel channel) {
+        checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
+        // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+        long autocloseTime = (channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
+                + (System.currentTimeMillis() - Utils.currentTimeMillis());
+        log.info("Scheduling channel for automatic closure at {}: {}", new Date(autocloseTime), channel);
+        expiryScheduler.schedule(autocloseTime, new Runnable() {
+            @Override
+            public void run() {
+                log.info("Auto-closing channel: {}", channel);
+                closeChannel(channel);
+            }
+        });
     }
 
     @Override
@@ -147,22 +267,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     public byte[] serializeWalletExtension() {
         lock.lock();
         try {
+            if (stateLog != null)
+                return Bytes.concat(STATE_FILE_PREFIX, stateLog.getFile().getPath().getBytes(Charsets.UTF_8));
             ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
-            for (StoredServerChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                checkState(channel.bestValueToMe.signum() >= 0 && channel.bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
-                checkState(channel.refundTransactionUnlockTimeSecs > 0);
-                checkNotNull(channel.myKey.getPrivKeyBytes());
-                ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
-                        .setBestValueToMe(channel.bestValueToMe.longValue())
-                        .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
-                        .setClientOutput(ByteString.copyFrom(channel.clientOutput.bitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
-                if (channel.bestValueSignature != null)
-                    channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
-                builder.addChannels(channelBuilder);
-            }
+            for (StoredServerChannel channel : mapChannels.values())
+                builder.addChannels(channelToProto(channel));
             return builder.build().toByteArray();
         } finally {
             lock.unlock();
@@ -171,24 +280,75 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     @Override
     public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
+        ServerChannelStateLog stateLog;
+        Map<Sha256Hash, ServerState.StoredServerPaymentChannel> moved =
+                new LinkedHashMap<Sha256Hash, ServerState.StoredServerPaymentChannel>();
         lock.lock();
         try {
             checkArgument(containingWallet == wallet);
+            if (isStateFilePointer(data)) {
+                File stateFile = new File(new String(data, STATE_FILE_PREFIX.length,
+                        data.length - STATE_FILE_PREFIX.length, Charsets.UTF_8));
+                if (this.stateLog == null)
+                    openStateLog(stateFile);
+                else if (!this.stateLog.getFile().equals(stateFile.getAbsoluteFile()))
+                    log.warn("Wallet refers to channels in {} but they are being kept in {}", stateFile, this.stateLog.getFile());
+                return;
+            }
             ServerState.StoredServerPaymentChannels states = ServerState.StoredServerPaymentChannels.parseFrom(data);
             NetworkParameters params = containingWallet.getParams();
             for (ServerState.StoredServerPaymentChannel storedState : states.getChannelsList()) {
-                StoredServerChannel channel = new StoredServerChannel(null,
-                        new Transaction(params, storedState.getContractTransaction().toByteArray()),
-                        new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0),
-                        storedState.getRefundTransactionUnlockTimeSecs(),
-                        new ECKey(storedState.getMyKey().toByteArray(), null),
-                        BigInteger.valueOf(storedState.getBestValueToMe()),
-                        storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
-                putChannel(channel);
+                StoredServerChannel channel = channelFromProto(params, storedState);
+                // Already loaded from the state file if the wallet was saved before it was moved there.
+                if (!mapChannels.containsKey(channel.contract.getHash())) {
+                    scheduleChannel(channel);
+                    moved.put(channel.contract.getHash(), channelToProto(channel));
+                }
             }
+            stateLog = this.stateLog;
         } finally {
             lock.unlock();
         }
+        // Channels from before a state file was used are moved into it in one batch, without holding the lock. If that
+        // fails the wallet mustn't load, as saving it would then only point to a file that doesn't hold them.
+        if (stateLog != null && !moved.isEmpty())
+            stateLog.putChannels(moved);
+    }
+
+    private static boolean isStateFilePointer(byte[] data) {
+        return data.length >= STATE_FILE_PREFIX.length &&
+                Arrays.equals(STATE_FILE_PREFIX, Arrays.copyOf(data, STATE_FILE_PREFIX.length));
+    }
+
+    static ServerState.StoredServerPaymentChannel channelToProto(StoredServerChannel channel) {
+        // First a few asserts to make sure things won't break
+        checkState(channel.bestValueToMe.signum() >= 0 && channel.bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
+        checkState(channel.refundTransactionUnlockTimeSecs > 0);
+        checkNotNull(channel.myKey.getPrivKeyBytes());
+        ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
+                .setBestValueToMe(channel.bestValueToMe.longValue())
+                .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
+                .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
+                .setClientOutput(ByteString.copyFrom(channel.clientOutput.bitcoinSerialize()))
+                .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
+        if (channel.bestValueSignature != null)
+            channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
+        return channelBuilder.build();
+    }
+
+    static StoredServerChannel channelFromProto(NetworkParameters params, ServerState.StoredServerPaymentChannel storedState) {
+        return new StoredServerChannel(null,
+                new Transaction(params, storedState.getContractTransaction().toByteArray()),
+                new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0),
+                storedState.getRefundTransactionUnlockTimeSecs(),
+                new ECKey(storedState.getMyKey().toByteArray(), null),
+                BigInteger.valueOf(storedState.getBestValueToMe()),
+                storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
+    }
+
+    // The contract hash is the hash of the serialized contract, so there's no need to parse it.
+    static Sha256Hash getContractHash(ServerState.StoredServerPaymentChannel storedState) {
+        return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(storedState.getContractTransaction().toByteArray())));
     }
 
     @Override
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps the unspent transaction outputs of another {@link FullPrunedBlockStore} in memory, and writes changes to them
+ * back to that store in large batches instead of as every block is connected. Most outputs are spent within a few
+ * blocks of being created, so during the initial download many of them are created and spent again without the
+ * underlying store ever seeing them.</p>
+ *
+ * <p>Changes are flushed at the end of a database batch write, that is at a block boundary, once more outputs are held
+ * than the cache was configured for. Clean outputs are dropped in least recently used order before that. Blocks, undo
+ * blocks and the chain head go straight to the underlying store, but the verified chain head is only written along
+ * with the outputs it belongs to, so after a crash the underlying store is consistent as of the last flush and the
+ * blocks after it are simply connected again. Call {@link #flush()} or {@link #close()} before shutting down to avoid
+ * that.</p>
+ *
+ * <p>{@link #beginDatabaseBatchWrite()}, {@link #commitDatabaseBatchWrite()} and {@link #abortDatabaseBatchWrite()}
+ * behave as for any other store: changes made to the outputs in a batch are only seen by other threads once it's
+ * committed, and are thrown away if it's aborted, so re-orgs work as before. A commit which has to flush and fails
+ * to write to the underlying store throws, and the batch is thrown away as if it had been aborted.</p>
+ *
+ * <p>The cache keeps counts of lookups answered from memory, lookups that had to go to the underlying store, and
+ * flushes, see {@link #getHits()}, {@link #getMisses()} and {@link #getFlushes()}.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    // An output as known to the cache. A spent output is one the underlying store still has, kept until that has
+    // been told. Dirty outputs differ from what the underlying store has and can't be dropped until they've been
+    // flushed.
+    private static class CachedOutput {
+        final StoredTransactionOutput output;
+        final boolean spent;
+        final boolean dirty;
+
+        CachedOutput(StoredTransactionOutput output, boolean spent, boolean dirty) {
+            this.output = output;
+            this.spent = spent;
+            this.dirty = dirty;
+        }
+
+        @Nullable StoredTransactionOutput get() {
+            return spent ? null : output;
+        }
+    }
+
+    // The changes made by a thread inside a database batch write. The operations are kept in order so they can be
+    // replayed against the cache on commit, and the map answers lookups made by the same thread in the meantime.
+    private static class PendingWrites {
+        final List<StoredTransactionOutput> ops = new ArrayList<StoredTransactionOutput>();
+        final List<Boolean> opIsAdd = new ArrayList<Boolean>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    // The changed outputs sent to the underlying store by a flush, which can only be marked clean once it commits.
+    private static class WrittenOutputs {
+        final List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        final List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+    }
+
+    private final FullPrunedBlockStore store;
+    private final int maxOutputs;
+
+    // In access order, so the least recently used clean outputs are dropped first.
+    private final LinkedHashMap<StoredTransactionOutPoint, CachedOutput> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, CachedOutput>(1024, 0.75f, true);
+    private int dirtyOutputs;
+    private final ThreadLocal<PendingWrites> pending = new ThreadLocal<PendingWrites>();
+
+    private StoredBlock verifiedChainHead;
+    // Every verified chain head set since the last flush, which the underlying store is told about in order when the
+    // outputs are flushed, so that it prunes its undo blocks just as if it had seen them one by one.
+    private final List<StoredBlock> unflushedChainHeads = new ArrayList<StoredBlock>();
+
+    private long hits, misses, flushes;
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param store the store the outputs are read from and eventually written to.
+     * @param maxOutputs how many outputs to keep in memory, counting both clean and changed ones. Zero writes every
+     *                   change through to the store at the end of each batch write.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, int maxOutputs) throws BlockStoreException {
+        checkArgument(maxOutputs >= 0);
+        this.store = checkNotNull(store);
+        this.maxOutputs = maxOutputs;
+        this.verifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    /** Returns how many output lookups were answered without going to the underlying store. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns how many output lookups had to go to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns how many times changed outputs have been written to the underlying store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Returns how many outputs are held in memory, including ones not written to the underlying store yet. */
+    public synchronized int getCachedOutputs() {
+        return cache.size();
+    }
+
+    /** Returns how many of the outputs held in memory have changed since they were last written. */
+    public synchronized int getDirtyOutputs() {
+        return dirtyOutputs;
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        PendingWrites writes = pending.get();
+        if (writes != null && writes.verifiedChainHead != null)
+            return writes.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // The regular chain head doesn't depend on the outputs, so it can move on right away.
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+        PendingWrites writes = pending.get();
+        if (writes != null) {
+            writes.verifiedChainHead = chainHead;
+        } else {
+            verifiedChainHead = chainHead;
+            unflushedChainHeads.add(chainHead);
+        }
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, index);
+        PendingWrites writes = pending.get();
+        if (writes != null && writes.outputs.containsKey(outpoint)) {
+            hits++;
+            return writes.outputs.get(outpoint);
+        }
+        CachedOutput cached = cache.get(outpoint);
+        if (cached != null) {
+            hits++;
+            return cached.get();
+        }
+        misses++;
+        StoredTransactionOutput output = store.getTransactionOutput(hash, index);
+        if (output != null)
+            cache.put(outpoint, new CachedOutput(output, false, false));
+        return output;
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        PendingWrites writes = pending.get();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        // Everything that isn't known here is fetched from the underlying store in one go.
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        List<Integer> missingPositions = new ArrayList<Integer>();
+        for (TransactionOutPoint outpoint : outpoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex());
+            if (writes != null && writes.outputs.containsKey(key)) {
+                hits++;
+                outputs.add(writes.outputs.get(key));
+                continue;
+            }
+            CachedOutput cached = cache.get(key);
+            if (cached != null) {
+                hits++;
+                outputs.add(cached.get());
+                continue;
+            }
+            misses++;
+            missingPositions.add(outputs.size());
+            missing.add(outpoint);
+            outputs.add(null);
+        }
+        if (!missing.isEmpty()) {
+            List<StoredTransactionOutput> found = store.getTransactionOutputs(missing);
+            for (int i = 0; i < found.size(); i++) {
+                StoredTransactionOutput output = found.get(i);
+                if (output == null)
+                    continue;
+                outputs.set(missingPositions.get(i), output);
+                cache.put(new StoredTransactionOutPoint(output), new CachedOutput(output, false, false));
+            }
+        }
+        return outputs;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingWrites writes = pending.get();
+        if (writes != null) {
+            writes.ops.add(out);
+            writes.opIsAdd.add(true);
+            writes.outputs.put(new StoredTransactionOutPoint(out), out);
+        } else {
+            cacheAdd(out);
+            maybeFlush();
+        }
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingWrites writes = pending.get();
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        // The output has normally just been looked up, so don't count that again.
+        boolean present;
+        if (writes != null && writes.outputs.containsKey(outpoint))
+            present = writes.outputs.get(outpoint) != null;
+        else if (cache.containsKey(outpoint))
+            present = cache.get(outpoint).get() != null;
+        else
+            present = getTransactionOutput(out.getHash(), out.getIndex()) != null;
+        if (!present)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        if (writes != null) {
+            writes.ops.add(out);
+            writes.opIsAdd.add(false);
+            writes.outputs.put(outpoint, null);
+        } else {
+            cacheRemove(out);
+            maybeFlush();
+        }
+    }
+
+    public synchronized void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent,
+                                                             List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        for (StoredTransactionOutput out : spent)
+            removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : created)
+            addUnspentTransactionOutput(out);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>(numOutputs);
+        NetworkParameters params = verifiedChainHead.getHeader().getParams();
+        for (int i = 0; i < numOutputs; i++)
+            outpoints.add(new TransactionOutPoint(params, i, hash));
+        for (StoredTransactionOutput out : getTransactionOutputs(outpoints))
+            if (out != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        if (pending.get() == null)
+            pending.set(new PendingWrites());
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingWrites writes = pending.get();
+        pending.remove();
+        // What the cache held before the batch was applied, so that it can be put back if the flush fails. Otherwise
+        // later lookups would see outputs the underlying store never got.
+        Map<StoredTransactionOutPoint, CachedOutput> previous = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+        int previousDirtyOutputs = dirtyOutputs;
+        StoredBlock previousChainHead = verifiedChainHead;
+        int previousUnflushedChainHeads = unflushedChainHeads.size();
+        if (writes != null) {
+            for (int i = 0; i < writes.ops.size(); i++) {
+                StoredTransactionOutput out = writes.ops.get(i);
+                StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+                if (!previous.containsKey(outpoint))
+                    previous.put(outpoint, cache.get(outpoint));
+                if (writes.opIsAdd.get(i))
+                    cacheAdd(out);
+                else
+                    cacheRemove(out);
+            }
+            if (writes.verifiedChainHead != null) {
+                verifiedChainHead = writes.verifiedChainHead;
+                unflushedChainHeads.add(verifiedChainHead);
+            }
+        }
+        WrittenOutputs written;
+        try {
+            // Flushing as part of the underlying store's batch keeps the outputs and the verified head together.
+            written = maybeWriteDirtyOutputs();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : previous.entrySet()) {
+                if (entry.getValue() == null)
+                    cache.remove(entry.getKey());
+                else
+                    cache.put(entry.getKey(), entry.getValue());
+            }
+            dirtyOutputs = previousDirtyOutputs;
+            verifiedChainHead = previousChainHead;
+            unflushedChainHeads.subList(previousUnflushedChainHeads, unflushedChainHeads.size()).clear();
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        if (written != null) {
+            markWritten(written);
+            // Leave some room so the next blocks don't immediately cause another flush.
+            evictCleanOutputs(maxOutputs - maxOutputs / 4);
+        }
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        pending.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /** Writes all changed outputs and the verified chain head to the underlying store. */
+    public synchronized void flush() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        WrittenOutputs written;
+        try {
+            written = writeDirtyOutputs();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        markWritten(written);
+    }
+
+    /** Flushes any changes, then closes the underlying store. */
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        cache.clear();
+        store.close();
+    }
+
+    private void cacheAdd(StoredTransactionOutput out) {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        CachedOutput cached = cache.get(outpoint);
+        if (cached == null) {
+            cache.put(outpoint, new CachedOutput(out, false, true));
+            dirtyOutputs++;
+        } else if (cached.spent) {
+            // Spent and now unspent again, as in a re-org. The underlying store never stopped having it.
+            cache.put(outpoint, new CachedOutput(out, false, false));
+            dirtyOutputs--;
+        } else {
+            cache.put(outpoint, new CachedOutput(out, false, cached.dirty));
+        }
+    }
+
+    private void cacheRemove(StoredTransactionOutput out) {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        CachedOutput cached = cache.get(outpoint);
+        if (cached != null && cached.dirty) {
+            // Never written, so the underlying store doesn't need to hear about it at all.
+            cache.remove(outpoint);
+            dirtyOutputs--;
+        } else {
+            // Clean, or dropped from the cache since it was looked up, so the underlying store has it.
+            cache.put(outpoint, new CachedOutput(out, true, true));
+            dirtyOutputs++;
+        }
+    }
+
+    // Drops clean outputs to get back under the limit, and writes out the changed ones if that isn't enough.
+    private void maybeFlush() throws BlockStoreException {
+        WrittenOutputs written = maybeWriteDirtyOutputs();
+        if (written != null) {
+            markWritten(written);
+            // Leave some room so the next blocks don't immediately cause another flush.
+            evictCleanOutputs(maxOutputs - maxOutputs / 4);
+        }
+    }
+
+    // As maybeFlush, but leaves the cache as it is after writing the changed outputs, returning them, or null if there
+    // was no need to write any.
+    @Nullable
+    private WrittenOutputs maybeWriteDirtyOutputs() throws BlockStoreException {
+        if (cache.size() <= maxOutputs)
+            return null;
+        evictCleanOutputs(maxOutputs);
+        if (cache.size() <= maxOutputs)
+            return null;
+        return writeDirtyOutputs();
+    }
+
+    private void evictCleanOutputs(int target) {
+        Iterator<CachedOutput> it = cache.values().iterator();
+        while (cache.size() > target && it.hasNext()) {
+            if (!it.next().dirty)
+                it.remove();
+        }
+    }
+
+    // Sends the changed outputs and verified chain heads to the underlying store, without changing the cache.
+    private WrittenOutputs writeDirtyOutputs() throws BlockStoreException {
+        WrittenOutputs written = new WrittenOutputs();
+        for (CachedOutput cached : cache.values()) {
+            if (!cached.dirty)
+                continue;
+            if (cached.spent)
+                written.spent.add(cached.output);
+            else
+                written.created.add(cached.output);
+        }
+        store.updateUnspentTransactionOutputs(written.spent, written.created);
+        for (StoredBlock chainHead : unflushedChainHeads)
+            store.setVerifiedChainHead(chainHead);
+        return written;
+    }
+
+    // Called once the underlying store has committed what writeDirtyOutputs sent it.
+    private void markWritten(WrittenOutputs written) {
+        log.info("Flushed {} spent and {} created outputs up to height {}", written.spent.size(),
+                written.created.size(), verifiedChainHead.getHeight());
+        unflushedChainHeads.clear();
+        // Spent outputs are gone for good now, and everything else matches the underlying store.
+        for (StoredTransactionOutput out : written.spent)
+            cache.remove(new StoredTransactionOutPoint(out));
+        for (StoredTransactionOutput out : written.created)
+            cache.put(new StoredTransactionOutPoint(out), new CachedOutput(out, false, false));
+        dirtyOutputs = 0;
+        flushes++;
+    }
+}
@@ -20,6 +20,9 @@ import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -90,6 +93,25 @@ public interface FullPrunedBlockStore extends BlockStore {
      */
     void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException;
     
+    /**
+     * <p>Gets the {@link StoredTransactionOutput}s for all of the given outpoints at once. The returned list has one
+     * entry per outpoint, in the same order, which is null if no such unspent output is found.</p>
+     *
+     * <p>This gives the same results as calling {@link #getTransactionOutput(Sha256Hash, long)} for each outpoint, but
+     * lets a store backed by a database fetch the outputs spent by a whole block in a few queries.</p>
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException;
+
+    /**
+     * <p>Removes each of spent from the list of unspent TransactionOutputs and then adds each of created, as one bulk
+     * write. This gives the same results as calling {@link #removeUnspentTransactionOutput(StoredTransactionOutput)}
+     * and {@link #addUnspentTransactionOutput(StoredTransactionOutput)} for each of them in turn.</p>
+     *
+     * @throws BlockStoreException if there is an underlying storage issue, or one of spent was not in the list.
+     */
+    void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent, List<StoredTransactionOutput> created)
+            throws BlockStoreException;
+
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
      * @param numOutputs the number of outputs the given transaction has
@@ -706,6 +706,54 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        maybeConnect();
+        return OpenOutputsTable.getTransactionOutputs(conn.get(), outpoints);
+    }
+
+    public void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent, List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            if (!spent.isEmpty())
+                OpenOutputsTable.removeOutputs(conn.get(), spent, "H2FullPrunedBlockStore");
+            if (!created.isEmpty()) {
+                s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
+                        "VALUES (?, ?, ?, ?, ?)");
+                for (StoredTransactionOutput out : created) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int)out.getIndex());
+                    s.setInt(3, out.getHeight());
+                    s.setBytes(4, out.getValue().toByteArray());
+                    s.setBytes(5, out.getScriptBytes());
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    if (e.getErrorCode() != 23505)
+                        throw e;
+                    // Some outputs were already there, which only happens for the duplicated transactions of BIP30
+                    // violator blocks. Go again one at a time, ignoring the duplicates.
+                    for (StoredTransactionOutput out : created)
+                        addUnspentTransactionOutput(out);
+                }
+                s.close();
+                s = null;
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException(e); }
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -0,0 +1,942 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A full pruned block store that keeps headers, undoable blocks and unspent outputs in append-only segment files in
+ * a directory of its own, so it needs neither an external database server nor an embedded SQL engine. Every change,
+ * whether it adds, replaces or deletes something, is written as a record at the end of the newest segment. This turns
+ * the random updates that connecting a block makes to the unspent output set into sequential writes.</p>
+ *
+ * <p>The writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are appended
+ * as one batch and forced to disk. A batch that was only partly written when the process died is recognised by its
+ * checksum and ignored when the store is next opened, so the store always comes back in the state of some committed
+ * batch. Writes made outside of a batch are each committed on their own.</p>
+ *
+ * <p>Segments are memory mapped, and records are found through an in-memory hash table of 16 bytes per key that is
+ * rebuilt by replaying the segments when the store is opened. Once a segment is at least half made up of records that
+ * have been replaced or deleted since, a background thread copies what is still in use to the newest segment and
+ * deletes the old file.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    /** The size segment files are created with, unless a single batch needs more room than that. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE_NAME = "LOCK";
+
+    // Segment file format: a sequence of batches, followed by zeros up to the end of the preallocated file.
+    //
+    // Each batch is any number of PUT and DELETE records followed by one COMMIT record. Every record starts with
+    //   4 bytes of length, counting the bytes after these
+    //   1 byte of record kind
+    // PUT and DELETE records go on with
+    //   2 bytes of key length
+    //   the key
+    //   the value (PUT only), running to the end of the record
+    // and a COMMIT record with
+    //   4 bytes of the number of records in the batch
+    //   4 bytes of the CRC32 of those records
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_COMMIT = 3;
+    private static final int RECORD_KEY_OFFSET = 4 + 1 + 2;
+    private static final int COMMIT_RECORD_SIZE = 4 + 1 + 4 + 4;
+
+    // The first byte of each key says what it is for. Headers and undoable blocks are keyed by block hash and outputs
+    // by transaction hash followed by the output index.
+    //
+    // Header values are the compact serialization of the StoredBlock followed by a byte which is 1 if it was ever
+    // stored with an undoable block. Undoable block values are the height, a byte which is 1 if the full transactions
+    // follow or 0 if the output changes do, and then those serialized the same way the H2 store does. Output values
+    // are StoredTransactionOutput.serializeToStream().
+    private static final byte KEY_HEADER = 'h';
+    private static final byte KEY_UNDO = 'u';
+    private static final byte KEY_OUTPUT = 'o';
+    private static final byte[] CHAIN_HEAD_KEY = {'c'};
+    private static final byte[] VERIFIED_CHAIN_HEAD_KEY = {'v'};
+
+    // Stands for a delete in a batch that hasn't been written yet.
+    private static final byte[] TOMBSTONE = new byte[0];
+    private static final long NO_LOCATION = -1;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        // Where the next batch goes: everything before this is committed.
+        int end;
+        // The bytes of PUT records the index still refers to, and of DELETE records.
+        long liveBytes;
+        long deleteBytes;
+        // Set once everything still in use has been copied out, if deleting the file then failed.
+        boolean obsolete;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int segmentSize;
+
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    private TreeMap<Integer, Segment> segments;
+    // The segment batches are appended to, which is always the one with the highest id.
+    private Segment active;
+
+    // The index: an open addressing hash table, probed linearly, from a 64 bit fingerprint of each key to the segment
+    // id (high 32 bits) and offset (low 32 bits) of its latest PUT record. Zero marks an empty slot. Fingerprints can
+    // collide, so a matching one is confirmed by comparing the key stored in the record.
+    private long[] fingerprints;
+    private long[] locations;
+    private int indexSize;
+    private final OpenAddressing.Slots indexSlots = new OpenAddressing.Slots() {
+        @Override
+        public boolean isEmpty(int slot) {
+            return fingerprints[slot] == 0;
+        }
+
+        @Override
+        public int homeSlot(int slot) {
+            return (int) fingerprints[slot] & (fingerprints.length - 1);
+        }
+
+        @Override
+        public void move(int from, int to) {
+            fingerprints[to] = fingerprints[from];
+            locations[to] = locations[from];
+        }
+
+        @Override
+        public void clear(int slot) {
+            fingerprints[slot] = 0;
+            locations[slot] = 0;
+        }
+    };
+
+    // The hashes of the undoable blocks in the index by height, so they can be pruned behind the verified chain head.
+    private TreeMap<Integer, Set<Sha256Hash>> undoBlockHeights;
+
+    // The writes made by each thread since it began a batch, the latest for every key.
+    private final ThreadLocal<LinkedHashMap<ByteBuffer, byte[]>> batch = new ThreadLocal<LinkedHashMap<ByteBuffer, byte[]>>();
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    private final ExecutorService compactor;
+    private boolean compactionScheduled;
+
+    /**
+     * Opens the store in the given directory, creating both if necessary, with segments of
+     * {@link #DEFAULT_SEGMENT_SIZE}.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory which holds the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating both if necessary.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory which holds the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param segmentSize The size new segment files are created with
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize)
+            throws BlockStoreException {
+        checkArgument(segmentSize > COMMIT_RECORD_SIZE);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block store compaction thread")
+                .setPriority(Thread.MIN_PRIORITY);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.compactor = Executors.newSingleThreadExecutor(builder.build());
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            // Used to stop other applications/processes from opening the store.
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            fingerprints = new long[1024];
+            locations = new long[1024];
+            undoBlockHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+            segments = new TreeMap<Integer, Segment>();
+            replaySegments();
+        } catch (IOException e) {
+            compactor.shutdown();
+            throw new BlockStoreException(e);
+        }
+        if (indexGet(VERIFIED_CHAIN_HEAD_KEY) == NO_LOCATION)
+            createNewStore(params);
+        else
+            initFromLog();
+        maybeCompact();
+    }
+
+    private void createNewStore(NetworkParameters params) throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by
+            // definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private void initFromLog() throws BlockStoreException {
+        chainHead = get(new Sha256Hash(read(CHAIN_HEAD_KEY)));
+        if (chainHead == null)
+            throw new BlockStoreException("corrupt block store - head block not found");
+        verifiedChainHead = get(new Sha256Hash(read(VERIFIED_CHAIN_HEAD_KEY)));
+        if (verifiedChainHead == null)
+            throw new BlockStoreException("corrupt block store - verified head block not found");
+    }
+
+    /** Maps every segment file in the directory, oldest first, and replays the batches in them into the index. */
+    private void replaySegments() throws IOException, BlockStoreException {
+        SortedMap<Integer, File> files = new TreeMap<Integer, File>();
+        File[] list = directory.listFiles();
+        if (list == null)
+            throw new IOException("Could not list " + directory);
+        for (File file : list) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                files.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        for (Map.Entry<Integer, File> entry : files.entrySet()) {
+            RandomAccessFile file = new RandomAccessFile(entry.getValue(), "rw");
+            try {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+                active = new Segment(entry.getKey(), entry.getValue(), buffer);
+            } finally {
+                file.close();
+            }
+            segments.put(active.id, active);
+            replay(active, entry.getKey().equals(files.lastKey()));
+        }
+        log.info("Replayed {} segments holding {} records", segments.size(), indexSize);
+    }
+
+    private void replay(Segment segment, boolean newest) throws BlockStoreException {
+        MappedByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        List<Integer> offsets = new ArrayList<Integer>();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[1024];
+        int offset = 0;
+        while (capacity - offset > 4) {
+            int length = buffer.getInt(offset);
+            if (length < 1 || length > capacity - offset - 4)
+                break;
+            byte kind = buffer.get(offset + 4);
+            if (kind == RECORD_COMMIT) {
+                if (length != COMMIT_RECORD_SIZE - 4 || buffer.getInt(offset + 5) != offsets.size() ||
+                        buffer.getInt(offset + 9) != (int) crc.getValue())
+                    break;
+                segment.end = offset + COMMIT_RECORD_SIZE;
+                for (int recordOffset : offsets)
+                    apply(segment, recordOffset);
+                offsets.clear();
+                crc.reset();
+            } else if (kind == RECORD_PUT || kind == RECORD_DELETE) {
+                if (scratch.length < length + 4)
+                    scratch = new byte[length + 4];
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset);
+                record.get(scratch, 0, length + 4);
+                crc.update(scratch, 0, length + 4);
+                offsets.add(offset);
+            } else {
+                break;
+            }
+            offset += 4 + length;
+        }
+        // Anything after the last complete batch is what was written of a batch that never committed, which can only
+        // be at the end of the newest segment. Zero it so it can't be mistaken for part of the next batch written.
+        if (!isZero(buffer, segment.end)) {
+            if (!newest)
+                throw new BlockStoreException("Segment " + segment.file + " is corrupt at offset " + segment.end);
+            log.warn("Discarding an incomplete batch at the end of {}", segment.file);
+            byte[] zeros = new byte[4096];
+            ByteBuffer tail = buffer.duplicate();
+            tail.position(segment.end);
+            while (tail.hasRemaining())
+                tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+            buffer.force();
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from) {
+        int i = from;
+        for (; i + 8 <= buffer.capacity(); i += 8)
+            if (buffer.getLong(i) != 0)
+                return false;
+        for (; i < buffer.capacity(); i++)
+            if (buffer.get(i) != 0)
+                return false;
+        return true;
+    }
+
+    /** Applies the committed record at the given offset to the index. */
+    private void apply(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        int size = 4 + buffer.getInt(offset);
+        byte[] key = readKey(buffer, offset);
+        long previous;
+        if (buffer.get(offset + 4) == RECORD_PUT) {
+            previous = indexPut(key, location(segment.id, offset));
+            segment.liveBytes += size;
+        } else {
+            previous = indexRemove(key);
+            segment.deleteBytes += size;
+        }
+        if (previous != NO_LOCATION) {
+            Segment old = segments.get(segmentOf(previous));
+            int oldOffset = offsetOf(previous);
+            old.liveBytes -= 4 + old.buffer.getInt(oldOffset);
+            if (key[0] == KEY_UNDO) {
+                int height = old.buffer.getInt(oldOffset + RECORD_KEY_OFFSET + key.length);
+                Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+                hashes.remove(hashOf(key));
+                if (hashes.isEmpty())
+                    undoBlockHeights.remove(height);
+            }
+        }
+        if (key[0] == KEY_UNDO && buffer.get(offset + 4) == RECORD_PUT) {
+            int height = buffer.getInt(offset + RECORD_KEY_OFFSET + key.length);
+            Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+            if (hashes == null)
+                undoBlockHeights.put(height, hashes = new HashSet<Sha256Hash>());
+            hashes.add(hashOf(key));
+        }
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static byte[] readKey(ByteBuffer buffer, int offset) {
+        byte[] key = new byte[buffer.getShort(offset + 5) & 0xFFFF];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_KEY_OFFSET);
+        record.get(key);
+        return key;
+    }
+
+    private byte[] readValue(long location) {
+        ByteBuffer buffer = segments.get(segmentOf(location)).buffer;
+        int offset = offsetOf(location);
+        int keyLength = buffer.getShort(offset + 5) & 0xFFFF;
+        byte[] value = new byte[buffer.getInt(offset) - 3 - keyLength];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_KEY_OFFSET + keyLength);
+        record.get(value);
+        return value;
+    }
+
+    private boolean keyEquals(long location, byte[] key) {
+        ByteBuffer buffer = segments.get(segmentOf(location)).buffer;
+        int offset = offsetOf(location);
+        if ((buffer.getShort(offset + 5) & 0xFFFF) != key.length)
+            return false;
+        for (int i = key.length - 1; i >= 0; i--)  // Hashes differ soonest at the end, as in SPVBlockStore.
+            if (buffer.get(offset + RECORD_KEY_OFFSET + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private static long fingerprint(byte[] key) {
+        long h = 0xcbf29ce484222325L;  // FNV-1a, then a finalizer so every bit helps pick the slot.
+        for (byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /** Returns the slot holding the given key, or the empty slot where it would go. */
+    private int indexProbe(byte[] key, long fingerprint) {
+        final int mask = fingerprints.length - 1;
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long entry = fingerprints[slot];
+            if (entry == 0 || (entry == fingerprint && keyEquals(locations[slot], key)))
+                return slot;
+        }
+    }
+
+    private long indexGet(byte[] key) {
+        int slot = indexProbe(key, fingerprint(key));
+        return fingerprints[slot] == 0 ? NO_LOCATION : locations[slot];
+    }
+
+    /** Points the given key at a new record, returning the location of the record it used to point at, if any. */
+    private long indexPut(byte[] key, long location) {
+        long fingerprint = fingerprint(key);
+        int slot = indexProbe(key, fingerprint);
+        if (fingerprints[slot] != 0) {
+            long previous = locations[slot];
+            locations[slot] = location;
+            return previous;
+        }
+        fingerprints[slot] = fingerprint;
+        locations[slot] = location;
+        if (++indexSize * 3 > fingerprints.length * 2)
+            indexGrow();
+        return NO_LOCATION;
+    }
+
+    /** Removes the given key, returning the location of the record it pointed at, if any. */
+    private long indexRemove(byte[] key) {
+        int slot = indexProbe(key, fingerprint(key));
+        if (fingerprints[slot] == 0)
+            return NO_LOCATION;
+        long previous = locations[slot];
+        OpenAddressing.remove(indexSlots, fingerprints.length, slot);
+        indexSize--;
+        return previous;
+    }
+
+    private void indexGrow() {
+        long[] oldFingerprints = fingerprints;
+        long[] oldLocations = locations;
+        fingerprints = new long[oldFingerprints.length * 2];
+        locations = new long[oldLocations.length * 2];
+        final int mask = fingerprints.length - 1;
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] == 0)
+                continue;
+            // Keys are already known to be distinct, so there's no need to read them back.
+            int slot = (int) oldFingerprints[i] & mask;
+            while (fingerprints[slot] != 0)
+                slot = (slot + 1) & mask;
+            fingerprints[slot] = oldFingerprints[i];
+            locations[slot] = oldLocations[i];
+        }
+    }
+
+    /** Returns the value of the given key as seen by the calling thread, or null if it has none. */
+    @Nullable
+    private byte[] read(byte[] key) {
+        LinkedHashMap<ByteBuffer, byte[]> writes = batch.get();
+        if (writes != null) {
+            byte[] value = writes.get(ByteBuffer.wrap(key));
+            if (value != null)
+                return value == TOMBSTONE ? null : value;
+        }
+        long location = indexGet(key);
+        return location == NO_LOCATION ? null : readValue(location);
+    }
+
+    /** Sets the value of the given key, or deletes it if the value is {@link #TOMBSTONE}. */
+    private void write(byte[] key, byte[] value) throws BlockStoreException {
+        LinkedHashMap<ByteBuffer, byte[]> writes = batch.get();
+        if (writes != null) {
+            writes.put(ByteBuffer.wrap(key), value);
+        } else {
+            writes = new LinkedHashMap<ByteBuffer, byte[]>();
+            writes.put(ByteBuffer.wrap(key), value);
+            commit(writes);
+        }
+    }
+
+    private void commit(LinkedHashMap<ByteBuffer, byte[]> writes) throws BlockStoreException {
+        List<byte[]> keys = new ArrayList<byte[]>(writes.size());
+        List<byte[]> values = new ArrayList<byte[]>(writes.size());
+        for (Map.Entry<ByteBuffer, byte[]> entry : writes.entrySet()) {
+            byte[] key = entry.getKey().array();
+            // Deleting something that was never committed, like an output created and spent in the same batch, or
+            // that is already deleted, doesn't need a record.
+            if (entry.getValue() == TOMBSTONE && indexGet(key) == NO_LOCATION)
+                continue;
+            keys.add(key);
+            values.add(entry.getValue());
+        }
+        append(keys, values);
+        maybeCompact();
+    }
+
+    /** Appends the given records as one batch, forces it to disk and then applies it to the index. */
+    private void append(List<byte[]> keys, List<byte[]> values) throws BlockStoreException {
+        if (keys.isEmpty())
+            return;
+        int size = COMMIT_RECORD_SIZE;
+        for (int i = 0; i < keys.size(); i++)
+            size += RECORD_KEY_OFFSET + keys.get(i).length + values.get(i).length;
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            records.putInt(RECORD_KEY_OFFSET - 4 + key.length + value.length);
+            records.put(value == TOMBSTONE ? RECORD_DELETE : RECORD_PUT);
+            records.putShort((short) key.length);
+            records.put(key);
+            records.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(records.array(), 0, records.position());
+        records.putInt(COMMIT_RECORD_SIZE - 4);
+        records.put(RECORD_COMMIT);
+        records.putInt(keys.size());
+        records.putInt((int) crc.getValue());
+
+        Segment segment = segmentWithRoomFor(size);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.end);
+        buffer.put(records.array());
+        segment.buffer.force();
+        int offset = segment.end;
+        segment.end += size;
+        for (int i = 0; i < keys.size(); i++) {
+            apply(segment, offset);
+            offset += RECORD_KEY_OFFSET + keys.get(i).length + values.get(i).length;
+        }
+    }
+
+    private Segment segmentWithRoomFor(int size) throws BlockStoreException {
+        if (active != null && active.buffer.capacity() - active.end >= size)
+            return active;
+        int id = active == null ? 0 : active.id + 1;
+        File file = new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX));
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(Math.max(segmentSize, size));
+                MappedByteBuffer buffer = randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+                active = new Segment(id, file, buffer);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        segments.put(id, active);
+        return active;
+    }
+
+    /**
+     * Picks the older segment that compaction would free the most space in, if it would free at least half of it.
+     */
+    @Nullable
+    private Segment pickSegmentToCompact() {
+        Segment oldest = segments.firstEntry().getValue();
+        Segment best = null;
+        long bestReclaimable = 0;
+        for (Segment segment : segments.values()) {
+            if (segment == active)
+                continue;
+            if (segment.obsolete)
+                return segment;
+            // A delete still has to hide whatever the key had in an older segment, unless there is none.
+            long reclaimable = segment.end - segment.liveBytes - (segment == oldest ? 0 : segment.deleteBytes);
+            if (reclaimable * 2 >= segment.end && (best == null || reclaimable > bestReclaimable)) {
+                best = segment;
+                bestReclaimable = reclaimable;
+            }
+        }
+        return best;
+    }
+
+    private void maybeCompact() {
+        if (compactionScheduled || compactor.isShutdown() || pickSegmentToCompact() == null)
+            return;
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    while (compactOnce()) ;
+                } catch (BlockStoreException e) {
+                    log.error("Block store compaction failed", e);
+                } finally {
+                    synchronized (LogFullPrunedBlockStore.this) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compacts every segment that has become mostly garbage, on the calling thread. This happens in the background
+     * anyway, so it is only needed to get the directory down to size at a particular time.
+     */
+    public void compact() throws BlockStoreException {
+        while (compactOnce()) ;
+    }
+
+    private synchronized boolean compactOnce() throws BlockStoreException {
+        if (segments == null)
+            return false;
+        Segment victim = pickSegmentToCompact();
+        if (victim == null)
+            return false;
+        if (!victim.obsolete) {
+            boolean oldest = victim == segments.firstEntry().getValue();
+            List<byte[]> keys = new ArrayList<byte[]>();
+            List<byte[]> values = new ArrayList<byte[]>();
+            ByteBuffer buffer = victim.buffer;
+            for (int offset = 0; offset < victim.end; offset += 4 + buffer.getInt(offset)) {
+                byte kind = buffer.get(offset + 4);
+                if (kind == RECORD_COMMIT)
+                    continue;
+                byte[] key = readKey(buffer, offset);
+                long location = indexGet(key);
+                if (kind == RECORD_PUT && location == location(victim.id, offset)) {
+                    keys.add(key);
+                    values.add(readValue(location));
+                } else if (kind == RECORD_DELETE && location == NO_LOCATION && !oldest) {
+                    keys.add(key);
+                    values.add(TOMBSTONE);
+                }
+            }
+            // Once the copies are safely on disk, the old segment can go.
+            append(keys, values);
+            victim.obsolete = true;
+            log.info("Compacted {}, keeping {} records", victim.file, keys.size());
+        }
+        if (!victim.file.delete()) {
+            // Most likely it's still mapped on a platform that won't delete mapped files. It stays in the list of
+            // segments, so deletes in later ones are kept until it's gone, and will be tried again.
+            log.warn("Could not delete {}", victim.file);
+            return false;
+        }
+        segments.remove(victim.id);
+        return true;
+    }
+
+    private static byte[] headerKey(Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = KEY_HEADER;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] undoKey(Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = KEY_UNDO;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[37];
+        key[0] = KEY_OUTPUT;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        Utils.uint32ToByteArrayBE(index, key, 33);
+        return key;
+    }
+
+    private static Sha256Hash hashOf(byte[] key) {
+        return new Sha256Hash(Arrays.copyOfRange(key, 1, 33));
+    }
+
+    private void putHeader(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        byte[] key = headerKey(storedBlock.getHeader().getHash());
+        // Like the SQL stores, remember that a block was once stored as undoable even if its header is stored again.
+        byte[] previous = read(key);
+        ByteBuffer value = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        storedBlock.serializeCompact(value);
+        value.put((byte) (wasUndoable || (previous != null && previous[previous.length - 1] == 1) ? 1 : 0));
+        write(key, value.array());
+    }
+
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        putHeader(storedBlock, false);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(new byte[] {
+                    (byte) (storedBlock.getHeight() >> 24), (byte) (storedBlock.getHeight() >> 16),
+                    (byte) (storedBlock.getHeight() >> 8), (byte) storedBlock.getHeight()});
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write((int) (0xFF & (numTxn >> 0)));
+                bos.write((int) (0xFF & (numTxn >> 8)));
+                bos.write((int) (0xFF & (numTxn >> 16)));
+                bos.write((int) (0xFF & (numTxn >> 24)));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(undoKey(storedBlock.getHeader().getHash()), bos.toByteArray());
+        putHeader(storedBlock, true);
+    }
+
+    @Nullable
+    private StoredBlock getHeader(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        byte[] value = read(headerKey(hash));
+        if (value == null || (wasUndoableOnly && value[value.length - 1] != 1))
+            return null;
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return getHeader(hash, false);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return getHeader(hash, true);
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        byte[] value = read(undoKey(hash));
+        if (value == null)
+            return null;
+        try {
+            int offset = 5;
+            if (value[4] == 0) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(value, offset, value.length - offset));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            }
+            int numTxn = ((value[offset++] & 0xFF) << 0) |
+                         ((value[offset++] & 0xFF) << 8) |
+                         ((value[offset++] & 0xFF) << 16) |
+                         ((value[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+        write(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        this.verifiedChainHead = chainHead;
+        write(VERIFIED_CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        if (this.chainHead == null || this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Prune the undoable blocks that are now too deep to be needed.
+        List<Sha256Hash> prune = new ArrayList<Sha256Hash>();
+        for (Set<Sha256Hash> hashes : undoBlockHeights.headMap(chainHead.getHeight() - fullStoreDepth, true).values())
+            prune.addAll(hashes);
+        for (Sha256Hash hash : prune)
+            write(undoKey(hash), TOMBSTONE);
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        byte[] value = read(outputKey(hash, index));
+        if (value == null)
+            return null;
+        try {
+            return new StoredTransactionOutput(new ByteArrayInputStream(value));
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(outputKey(out.getHash(), out.getIndex()), bos.toByteArray());
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        byte[] key = outputKey(out.getHash(), out.getIndex());
+        if (read(key) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogFullPrunedBlockStore that it didn't have!");
+        write(key, TOMBSTONE);
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+        return outputs;
+    }
+
+    public synchronized void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent,
+                                                             List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        for (StoredTransactionOutput out : spent)
+            removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : created)
+            addUnspentTransactionOutput(out);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        if (batch.get() == null)
+            batch.set(new LinkedHashMap<ByteBuffer, byte[]>());
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkNotNull(segments, "LogFullPrunedBlockStore is closed");
+        LinkedHashMap<ByteBuffer, byte[]> writes = batch.get();
+        if (writes == null)
+            return;
+        batch.remove();
+        commit(writes);
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    public void close() throws BlockStoreException {
+        // Let a compaction that is under way finish, so it doesn't leave a half copied segment to redo next time.
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (segments == null)
+                return;
+            // Allow the buffers to be GCd and the underlying file mappings to go away.
+            segments = null;
+            active = null;
+            fingerprints = null;
+            locations = null;
+            undoBlockHeights = null;
+            try {
+                fileLock.release();
+                lockFile.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+}
@@ -343,6 +343,23 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+        return outputs;
+    }
+
+    public synchronized void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent,
+                                                             List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        for (StoredTransactionOutput out : spent)
+            removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : created)
+            addUnspentTransactionOutput(out);
+    }
+
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
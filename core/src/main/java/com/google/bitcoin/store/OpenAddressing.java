@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+/**
+ * Deletion for the open addressing hash tables with linear probing that the block stores use as indexes. The tables
+ * are laid out differently, in memory or in a mapped file, so they're reached through {@link Slots}.
+ */
+final class OpenAddressing {
+    private OpenAddressing() {}
+
+    /** The slots of a table, whose number must be a power of two. */
+    interface Slots {
+        boolean isEmpty(int slot);
+
+        /** Returns the slot that the key of the entry in the given slot hashes to. */
+        int homeSlot(int slot);
+
+        /** Copies the entry in one slot over another. */
+        void move(int from, int to);
+
+        void clear(int slot);
+    }
+
+    /**
+     * Empties the given slot of a table with the given number of slots. The entries following it in the probe sequence
+     * are shifted back as needed, so lookups never have to step over deleted slots.
+     */
+    static void remove(Slots slots, int numSlots, int hole) {
+        final int mask = numSlots - 1;
+        for (int slot = (hole + 1) & mask; !slots.isEmpty(slot); slot = (slot + 1) & mask) {
+            int home = slots.homeSlot(slot);
+            // If the hole lies between this entry's home slot and where it ended up, it must move into the hole.
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                slots.move(slot, hole);
+                hole = slot;
+            }
+        }
+        slots.clear(hole);
+    }
+}
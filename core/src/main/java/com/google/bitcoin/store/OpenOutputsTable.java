@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.common.collect.Lists;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Bulk operations on the openOutputs table, which the H2 and Postgres stores lay out the same way.
+ */
+final class OpenOutputsTable {
+    // How many transaction hashes getTransactionOutputs puts in a single query.
+    static final int MAX_HASHES_PER_QUERY = 500;
+
+    private OpenOutputsTable() {}
+
+    /** Implements {@link FullPrunedBlockStore#getTransactionOutputs(java.util.List)} on the given connection. */
+    static List<StoredTransactionOutput> getTransactionOutputs(Connection conn, List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        // Select every open output of the transactions involved, a chunk of transactions at a time, and then pick out
+        // the ones that were asked for. A transaction rarely has many outputs left open, so this costs little.
+        Set<Sha256Hash> hashSet = new LinkedHashSet<Sha256Hash>();
+        for (TransactionOutPoint outpoint : outpoints)
+            hashSet.add(outpoint.getHash());
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(hashSet);
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        PreparedStatement s = null;
+        try {
+            for (List<Sha256Hash> chunk : Lists.partition(hashes, MAX_HASHES_PER_QUERY)) {
+                StringBuilder query = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs " +
+                        "WHERE hash IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    query.append(i == 0 ? "?" : ", ?");
+                query.append(")");
+                s = conn.prepareStatement(query.toString());
+                for (int i = 0; i < chunk.size(); i++)
+                    s.setBytes(i + 1, chunk.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    int height = results.getInt(3);
+                    BigInteger value = new BigInteger(results.getBytes(4));
+                    // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                    found.put(new StoredTransactionOutPoint(hash, index),
+                            new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(5)));
+                }
+                s.close();
+                s = null;
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+        }
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(found.get(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex())));
+        return outputs;
+    }
+
+    /**
+     * Deletes the given outputs with a single batch. The update counts tell us about missing outputs, so there's no
+     * need to look them up first.
+     */
+    static void removeOutputs(Connection conn, List<StoredTransactionOutput> spent, String storeName)
+            throws BlockStoreException, SQLException {
+        PreparedStatement s = conn.prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+        try {
+            for (StoredTransactionOutput out : spent) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch())
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from " + storeName +
+                            " that it didn't have!");
+        } finally {
+            s.close();
+        }
+    }
+}
@@ -761,7 +761,25 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+            setOpenOutputParameters(s, out);
+            s.executeUpdate();
+            s.close();
+        } catch (SQLException e) {
+            if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
+                throw new BlockStoreException(e);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException(e); }
+        }
+    }
 
+    /** Sets the parameters of an INSERT into openOutputs for the given output, calculating its toAddress (if any). */
+    private void setOpenOutputParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -801,28 +819,14 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             }
         }
 
-        try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
-        }
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
@@ -843,6 +847,50 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        maybeConnect();
+        return OpenOutputsTable.getTransactionOutputs(conn.get(), outpoints);
+    }
+
+    public void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent, List<StoredTransactionOutput> created)
+            throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            if (!spent.isEmpty())
+                OpenOutputsTable.removeOutputs(conn.get(), spent, "PostgresFullPrunedBlockStore");
+            if (!created.isEmpty()) {
+                s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?)");
+                for (StoredTransactionOutput out : created) {
+                    setOpenOutputParameters(s, out);
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+                    if (!POSTGRES_DUPLICATE_KEY_ERROR_CODE.equals(cause.getSQLState()))
+                        throw e;
+                    // Some outputs were already there, which only happens for the duplicated transactions of BIP30
+                    // violator blocks. Go again one at a time, ignoring the duplicates.
+                    for (StoredTransactionOutput out : created)
+                        addUnspentTransactionOutput(out);
+                }
+                s.close();
+                s = null;
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException(e); }
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
@@ -18,6 +18,8 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,13 +27,13 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -39,9 +41,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found via an open addressing hash table kept in a second memory mapped file next to the ring (the
+ * ring file name with {@link #INDEX_FILE_SUFFIX} appended), so a lookup costs the same however many headers the store
+ * holds. The index is rebuilt from the ring when the store is opened if it's missing or wasn't closed cleanly.
+ * Lookups don't take the store lock: they read the mapped buffers directly and retry in the rare case that a write
+ * happened at the same time.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -49,6 +57,9 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
+    /** Appended to the name of the ring buffer file to get the name of the index file. */
+    public static final String INDEX_FILE_SUFFIX = ".index";
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
@@ -56,45 +67,83 @@ public class SPVBlockStore implements BlockStore {
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
+    // The hash index: a mapped table of ring record numbers plus one (zero means empty), probed linearly from the slot
+    // picked by the last four bytes of the block hash. It is only modified with the lock held.
+    protected MappedByteBuffer indexBuffer;
+    protected int indexSlots;
+    protected RandomAccessFile indexFile;
+    private final OpenAddressing.Slots slots = new OpenAddressing.Slots() {
+        @Override
+        public boolean isEmpty(int slot) {
+            return indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4) == 0;
+        }
+
+        @Override
+        public int homeSlot(int slot) {
+            int entry = indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4);
+            return SPVBlockStore.this.homeSlot(buffer.getInt(recordOffset(entry - 1) + 28));
+        }
+
+        @Override
+        public void move(int from, int to) {
+            indexBuffer.putInt(INDEX_PROLOGUE_BYTES + to * 4, indexBuffer.getInt(INDEX_PROLOGUE_BYTES + from * 4));
+        }
+
+        @Override
+        public void clear(int slot) {
+            indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * 4, 0);
+        }
+    };
+
+    // Incremented before and after every modification of the ring or the index, so it's odd while a write is in
+    // progress. Readers which don't take the lock check it hasn't moved to know that what they read is consistent.
+    // Both sides use atomic read-modify-write operations on it, not just volatile accesses, as those act as full
+    // fences: a volatile read alone wouldn't stop the reads of the buffers before it from being reordered after it.
+    private final AtomicLong writeSequence = new AtomicLong();
+
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
     //
     // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
-    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The cache
+    // below lets us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    // Misses used to be cached as well, as they required a scan of the whole ring, but with the index they're cheap.
+    private final Cache<Sha256Hash, StoredBlock> headerCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+    /** @deprecated No longer used: lookups go through a private cache which doesn't need the lock. */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>();
+    /** @deprecated No longer used: misses are cheap now that the store is indexed. */
+    @Deprecated
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    /** @deprecated No longer used: misses are cheap now that the store is indexed. */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>();
+
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers. Will create the
+     * given file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file if
+     * it's missing, an existing file must have been created with the same capacity. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -126,12 +175,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX));
             } else {
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX));
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexFile != null) indexFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -156,6 +208,64 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Maps the index file, rebuilding its contents from the ring if it's missing, was made for a different capacity or
+     * wasn't closed cleanly, which means it may have missed writes to the ring.
+     */
+    private void openIndex(File file) throws IOException, BlockStoreException {
+        // Keep the load factor at or below one half so probe sequences stay short.
+        indexSlots = Integer.highestOneBit(numHeaders) * 4;
+        long indexFileSize = INDEX_PROLOGUE_BYTES + indexSlots * 4L;
+        boolean exists = file.exists();
+        indexFile = new RandomAccessFile(file, "rw");
+        boolean valid = exists && indexFile.length() == indexFileSize;
+        if (!valid)
+            indexFile.setLength(indexFileSize);
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFileSize);
+        if (valid) {
+            byte[] header = new byte[4];
+            indexBuffer.get(header);
+            valid = new String(header, "US-ASCII").equals(INDEX_HEADER_MAGIC) &&
+                    indexBuffer.getInt(4) == numHeaders &&
+                    indexBuffer.getInt(12) == 1 &&
+                    (buffer.getInt(4) == 0 || indexBuffer.getInt(8) == getRingCursor(buffer));
+        }
+        lock.lock();
+        try {
+            if (!valid) {
+                if (exists)
+                    log.info("Rebuilding SPV block store index " + file);
+                rebuildIndex();
+            }
+            // Mark the index as in use until it's closed, so a crash makes us rebuild it next time.
+            indexBuffer.putInt(12, 0);
+            indexBuffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rebuildIndex() throws UnsupportedEncodingException {
+        checkState(lock.isHeldByCurrentThread());
+        indexBuffer.position(0);
+        indexBuffer.put(INDEX_HEADER_MAGIC.getBytes("US-ASCII"));
+        indexBuffer.putInt(4, numHeaders);
+        for (int slot = 0; slot < indexSlots; slot++)
+            indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * 4, 0);
+        if (buffer.getInt(4) == 0)
+            return;  // A brand new store, the ring is empty.
+        // Walk the ring from oldest to newest record, so if a block was stored more than once the newest copy wins.
+        final int start = recordNumber(getRingCursor(buffer));
+        final byte[] hash = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int record = (start + i) % numHeaders;
+            buffer.position(recordOffset(record));
+            buffer.get(hash);
+            if (!isEmptyHash(hash))
+                indexInsert(hash, record);
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -172,13 +282,25 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
+            int record = recordNumber(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
+            byte[] oldHash = new byte[32];
+            buffer.position(cursor);
+            buffer.get(oldHash);
+            writeSequence.incrementAndGet();
+            try {
+                // The record we're about to overwrite is the oldest in the ring, so it drops out of the index.
+                if (!isEmptyHash(oldHash))
+                    indexRemove(oldHash, record);
+                buffer.position(cursor);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                setRingCursor(buffer, buffer.position());
+                indexInsert(hash.getBytes(), record);
+            } finally {
+                writeSequence.incrementAndGet();
+            }
+            headerCache.put(hash, block);
         } finally { lock.unlock(); }
     }
 
@@ -187,43 +309,41 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
+        StoredBlock cacheHit = headerCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+
+        // Read without the lock, using our own view of the buffer so as not to disturb the writer's position. If a
+        // write overlapped with the read we may have seen a half updated record or index, so go round again.
+        final ByteBuffer ring = buffer.duplicate();
+        final byte[] targetHashBytes = hash.getBytes();
+        while (true) {
+            final long sequence = writeSequence.get();
+            if ((sequence & 1) == 0) {
+                StoredBlock storedBlock = null;
+                RuntimeException failure = null;
+                try {
+                    int slot = indexFind(ring, targetHashBytes, -1);
+                    if (slot >= 0) {
+                        ring.position(recordOffset(indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4) - 1) + 32);
+                        storedBlock = StoredBlock.deserializeCompact(params, ring);
+                    }
+                } catch (ProtocolException e) {
+                    failure = new RuntimeException(e);  // Cannot happen unless we raced with a write.
+                } catch (RuntimeException e) {
+                    failure = e;
                 }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
+                // Succeeds, without changing anything, only if no write started since we began.
+                if (writeSequence.compareAndSet(sequence, sequence)) {
+                    if (failure != null)
+                        throw failure;
+                    if (storedBlock != null)
+                        headerCache.put(hash, storedBlock);
                     return storedBlock;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+            }
+            Thread.yield();
+        }
     }
 
     protected StoredBlock lastChainHead = null;
@@ -262,12 +382,20 @@ public class SPVBlockStore implements BlockStore {
     }
 
     public void close() throws BlockStoreException {
+        lock.lock();
         try {
             buffer.force();
+            // Only once the ring is safely on disk can the index say it matches it.
+            indexBuffer.putInt(8, getRingCursor(buffer));
+            indexBuffer.putInt(12, 1);
+            indexBuffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
+            indexFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -285,6 +413,15 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes for the number of headers the ring holds
+    //   4 bytes for the ring cursor when the index was last closed
+    //   4 bytes which are 1 if the index was closed cleanly, 0 while it's in use
+    //
+    // Then a power of two number of 4 byte slots, each holding a ring record number plus one, or zero if empty.
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -296,4 +433,71 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static int recordNumber(int offset) {
+        return (offset - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    }
+
+    private static boolean isEmptyHash(byte[] hash) {
+        for (byte b : hash)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    /** Picks the first slot to probe for a hash, using the same bytes as {@link Sha256Hash#hashCode()}. */
+    private int homeSlot(int hashCode) {
+        return hashCode & (indexSlots - 1);
+    }
+
+    private static int hashCodeOf(byte[] hash) {
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    /**
+     * Returns the index slot that refers to the given hash, or to the given record if it is not -1, or -1 if there
+     * is no such slot. Only uses absolute reads, so is safe to call without the lock.
+     */
+    private int indexFind(ByteBuffer ring, byte[] hash, int record) {
+        final int mask = indexSlots - 1;
+        for (int i = 0, slot = homeSlot(hashCodeOf(hash)); i < indexSlots; i++, slot = (slot + 1) & mask) {
+            int entry = indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4);
+            if (entry == 0)
+                return -1;
+            if (record >= 0 ? entry - 1 == record : recordHashEquals(ring, recordOffset(entry - 1), hash))
+                return slot;
+        }
+        return -1;
+    }
+
+    private static boolean recordHashEquals(ByteBuffer ring, int offset, byte[] hash) {
+        for (int i = 31; i >= 0; i--)  // The last bytes of a block hash are the least likely to match by chance.
+            if (ring.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private void indexInsert(byte[] hash, int record) {
+        final int mask = indexSlots - 1;
+        for (int slot = homeSlot(hashCodeOf(hash)); ; slot = (slot + 1) & mask) {
+            int entry = indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4);
+            // An existing entry for the same hash is an older copy of the same block, so point it at the new one.
+            if (entry == 0 || recordHashEquals(buffer, recordOffset(entry - 1), hash)) {
+                indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * 4, record + 1);
+                return;
+            }
+        }
+    }
+
+    /** Removes the entry for the given record, if the index still refers to it. */
+    private void indexRemove(byte[] hash, int record) {
+        int slot = indexFind(buffer, hash, record);
+        if (slot < 0)
+            return;  // A newer copy of the same block has taken over the slot.
+        OpenAddressing.remove(slots, indexSlots, slot);
+    }
 }
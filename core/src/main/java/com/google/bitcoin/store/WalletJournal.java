@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only journal of the changes made to a wallet, kept in a file next to the wallet file. Saving a large
+ * wallet with {@link Wallet#saveToJournal(WalletJournal)} only appends the transactions, keys, scripts and extensions
+ * that changed since the last save, instead of rewriting every one of them. Now and then the whole wallet is written
+ * out as a new snapshot, using a temp file and an atomic rename as {@link Wallet#saveToFile(java.io.File)} does, and
+ * the journal is started again.</p>
+ *
+ * <p>Each journal record is a partial wallet protocol buffer, framed by its length and a CRC32 checksum and synced to
+ * disk before the save returns. The snapshot and the journal header share a random generation number, so that a
+ * journal left behind by an older snapshot is never replayed on top of a newer one, and a record torn by a crash whilst
+ * it was being appended is ignored along with anything after it. A wallet saved this way must be read back with
+ * {@link WalletProtobufSerializer#readWallet(java.io.File)}, which {@link Wallet#loadFromFile(java.io.File)} uses and
+ * which streams the snapshot as it replays the journal on top, or with {@link #readProto(java.io.File)}.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The ID of the wallet extension in which a snapshot records its generation. */
+    public static final String EXTENSION_ID = "com.google.bitcoin.store.WalletJournal";
+
+    private static final int MAGIC = 0x574a524e;  // "WJRN"
+    private static final int HEADER_LENGTH = 4 + 8;
+    private static final int RECORD_HEADER_LENGTH = 4 + 4;
+    // The journal is compacted into a new snapshot once it's half the size of the last one, or this size if larger.
+    private static final long MIN_COMPACTION_LENGTH = 64 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final File walletFile;
+    private final File journalFile;
+    // The generation of the last snapshot written, or zero if the next save must write a snapshot: either none has
+    // been written yet or the journal may be unusable after a failed write.
+    private long generation;
+    private long snapshotLength;
+    private long journalLength;
+
+    public WalletJournal(File walletFile) {
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the file the journal for the given wallet file is kept in. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Returns the wallet file the snapshots are written to. */
+    public File getWalletFile() {
+        return walletFile;
+    }
+
+    /** Returns true if the next save should write the whole wallet rather than append to the journal. */
+    public synchronized boolean needsSnapshot() {
+        return generation == 0 || journalLength >= Math.max(MIN_COMPACTION_LENGTH, snapshotLength / 2);
+    }
+
+    /**
+     * Writes the given wallet to the wallet file in full and starts a new, empty journal for it. The wallet file is
+     * replaced with an atomic rename, and the journal left behind by the previous snapshot no longer applies to it
+     * even if the new one can't be created.
+     */
+    public synchronized void writeSnapshot(Protos.Wallet walletProto) throws IOException {
+        long newGeneration;
+        do {
+            newGeneration = random.nextLong();
+        } while (newGeneration == 0 || newGeneration == generation);
+        generation = 0;
+        Protos.Wallet snapshot = walletProto.toBuilder()
+                .addExtension(Protos.Extension.newBuilder()
+                        .setId(EXTENSION_ID)
+                        .setMandatory(false)
+                        .setData(ByteString.copyFrom(Longs.toByteArray(newGeneration))))
+                .build();
+        File directory = walletFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            snapshot.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = walletFile.getCanonicalFile();
+                canonical.delete();
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(walletFile)) {
+                throw new IOException("Failed to rename " + temp + " to " + walletFile);
+            }
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            if (temp.delete()) {
+                log.warn("Deleted temp file after failed save.");
+            }
+        }
+        // From here on the old journal doesn't match the wallet file, so it's safe to truncate it.
+        stream = new FileOutputStream(journalFile, false);
+        try {
+            stream.write(ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putLong(newGeneration).array());
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        snapshotLength = snapshot.getSerializedSize();
+        journalLength = HEADER_LENGTH;
+        generation = newGeneration;
+    }
+
+    /**
+     * Appends the given changes, as built by {@link WalletProtobufSerializer#walletChangesToProto}, to the journal and
+     * syncs it to disk. A snapshot must have been written first.
+     */
+    public synchronized void append(Protos.Wallet changes) throws IOException {
+        checkState(generation != 0, "No snapshot to append to");
+        byte[] bytes = changes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + bytes.length)
+                .putInt(bytes.length)
+                .putInt((int) crc.getValue())
+                .put(bytes)
+                .array();
+        // If the write fails part of the record may have made it to disk, and records after a torn one are never
+        // replayed, so make the next save a snapshot.
+        long current = generation;
+        generation = 0;
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        try {
+            stream.write(record);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        journalLength += record.length;
+        generation = current;
+    }
+
+    /**
+     * Reads the wallet protocol buffer from the given wallet file and replays its journal, if there is one that
+     * belongs to it, on top. Wallet files saved without a journal are returned as they are.
+     */
+    public static Protos.Wallet readProto(File walletFile) throws IOException {
+        return readProto(walletFile, true);
+    }
+
+    /**
+     * As {@link #readProto(java.io.File)}, but if includeTransactions is false transactions are skipped over rather
+     * than parsed, which is much quicker for large wallets when only the keys and metadata are needed.
+     */
+    public static Protos.Wallet readProto(File walletFile, boolean includeTransactions) throws IOException {
+        Protos.Wallet snapshot;
+        FileInputStream stream = new FileInputStream(walletFile);
+        try {
+            InputStream input = new BufferedInputStream(stream);
+            snapshot = includeTransactions ? WalletProtobufSerializer.parseToProto(input)
+                                           : WalletProtobufSerializer.parseToProtoWithoutTransactions(input);
+        } finally {
+            stream.close();
+        }
+        return replay(walletFile, snapshot, includeTransactions);
+    }
+
+    /**
+     * Replays the journal of the given wallet file, if there is one that belongs to it, on top of the given snapshot
+     * read from that file. The snapshot may have been read without its transactions, in which case those in the
+     * result are just the ones the journal holds, and the rest need burying by
+     * {@link #bury(Protos.Transaction, int, int)}.
+     */
+    static Protos.Wallet replay(File walletFile, Protos.Wallet snapshot, boolean includeTransactions)
+            throws IOException {
+        long generation = 0;
+        Protos.Wallet.Builder wallet = snapshot.toBuilder().clearExtension();
+        for (Protos.Extension extension : snapshot.getExtensionList()) {
+            if (extension.getId().equals(EXTENSION_ID))
+                generation = Longs.fromByteArray(extension.getData().toByteArray());
+            else
+                wallet.addExtension(extension);
+        }
+        File journalFile = getJournalFile(walletFile);
+        if (generation == 0 || !journalFile.exists())
+            return wallet.build();
+        ByteBuffer journal = ByteBuffer.wrap(Files.toByteArray(journalFile));
+        if (journal.remaining() < HEADER_LENGTH || journal.getInt() != MAGIC || journal.getLong() != generation) {
+            log.info("Ignoring journal {} as it doesn't belong to the wallet file", journalFile);
+            return wallet.build();
+        }
+        Replay replay = new Replay(wallet);
+        while (journal.remaining() >= RECORD_HEADER_LENGTH) {
+            int length = journal.getInt();
+            int checksum = journal.getInt();
+            if (length < 0 || length > journal.remaining())
+                break;
+            CRC32 crc = new CRC32();
+            crc.update(journal.array(), journal.position(), length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            Protos.Wallet changes;
+            try {
+                changes = Protos.Wallet.parseFrom(ByteString.copyFrom(journal.array(), journal.position(), length));
+            } catch (InvalidProtocolBufferException e) {
+                break;
+            }
+            journal.position(journal.position() + length);
+            if (!includeTransactions)
+                changes = changes.toBuilder().clearTransaction().build();
+            replay.apply(changes);
+        }
+        if (journal.hasRemaining())
+            log.warn("Ignoring {} bytes of incomplete or corrupt records at the end of journal {}",
+                    journal.remaining(), journalFile);
+        log.info("Replayed {} journal records on top of wallet snapshot", replay.records);
+        return replay.build();
+    }
+
+    // Merges journal records into a snapshot: each record replaces the transactions and extensions it contains and
+    // adds its keys and scripts.
+    private static class Replay {
+        private final Protos.Wallet.Builder wallet;
+        private final LinkedHashMap<ByteString, Protos.Transaction> transactions;
+        // The last seen block height as of when each transaction was written, to bring its depth up to date.
+        private final HashMap<ByteString, Integer> heights;
+        private final HashSet<ByteString> pubKeys;
+        private final HashSet<ByteString> programs;
+        private final LinkedHashMap<String, Protos.Extension> extensions;
+        int records;
+
+        Replay(Protos.Wallet.Builder wallet) {
+            this.wallet = wallet;
+            transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+            heights = new HashMap<ByteString, Integer>();
+            int height = wallet.hasLastSeenBlockHeight() ? wallet.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : wallet.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                heights.put(tx.getHash(), height);
+            }
+            pubKeys = new HashSet<ByteString>();
+            for (Protos.Key key : wallet.getKeyList())
+                pubKeys.add(key.getPublicKey());
+            programs = new HashSet<ByteString>();
+            for (Protos.Script script : wallet.getWatchedScriptList())
+                programs.add(script.getProgram());
+            extensions = new LinkedHashMap<String, Protos.Extension>();
+            for (Protos.Extension extension : wallet.getExtensionList())
+                extensions.put(extension.getId(), extension);
+        }
+
+        void apply(Protos.Wallet changes) {
+            int height = changes.hasLastSeenBlockHeight() ? changes.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : changes.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                heights.put(tx.getHash(), height);
+            }
+            for (Protos.Key key : changes.getKeyList()) {
+                if (pubKeys.add(key.getPublicKey()))
+                    wallet.addKey(key);
+            }
+            for (Protos.Script script : changes.getWatchedScriptList()) {
+                if (programs.add(script.getProgram()))
+                    wallet.addWatchedScript(script);
+            }
+            if (changes.hasLastSeenBlockHash()) {
+                wallet.setLastSeenBlockHash(changes.getLastSeenBlockHash());
+                wallet.setLastSeenBlockHeight(changes.getLastSeenBlockHeight());
+            } else {
+                wallet.clearLastSeenBlockHash();
+                wallet.clearLastSeenBlockHeight();
+            }
+            if (changes.hasLastSeenBlockTimeSecs())
+                wallet.setLastSeenBlockTimeSecs(changes.getLastSeenBlockTimeSecs());
+            else
+                wallet.clearLastSeenBlockTimeSecs();
+            for (Protos.Extension extension : changes.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            records++;
+        }
+
+        Protos.Wallet build() {
+            // Every block since a transaction was written buried it one deeper, as anything else (a re-org) makes
+            // the wallet write a snapshot. Work done isn't brought up to date, it's only informational.
+            int height = wallet.hasLastSeenBlockHeight() ? wallet.getLastSeenBlockHeight() : -1;
+            wallet.clearTransaction();
+            for (Map.Entry<ByteString, Protos.Transaction> entry : transactions.entrySet()) {
+                wallet.addTransaction(bury(entry.getValue(), heights.get(entry.getKey()), height));
+            }
+            wallet.clearExtension();
+            wallet.addAllExtension(extensions.values());
+            return wallet.build();
+        }
+    }
+
+    /**
+     * Returns the given transaction, written when the last seen block height was writtenAt, with its depth brought up
+     * to date for the given height. Either height may be -1 if unknown, in which case it's returned as it is.
+     */
+    static Protos.Transaction bury(Protos.Transaction tx, int writtenAt, int height) {
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        if (height < 0 || writtenAt < 0 || height == writtenAt || !confidence.hasDepth() ||
+                confidence.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return tx;
+        confidence = confidence.toBuilder().setDepth(confidence.getDepth() + height - writtenAt).build();
+        return tx.toBuilder().setConfidence(confidence).build();
+    }
+}
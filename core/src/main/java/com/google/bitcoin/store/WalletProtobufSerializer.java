@@ -25,24 +25,37 @@ import com.google.bitcoin.script.Script;
 import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.WireFormat;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -112,73 +125,142 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
-
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
+        return walletToProto(snapshot(wallet));
+    }
 
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+    /**
+     * The parts of a wallet that change whilst it's in use, copied out by {@link #snapshot(Wallet)}. The copy is
+     * shallow: a transaction's inputs and outputs don't change once it's in the wallet, so only the things that do,
+     * like its pool, confidence and which outputs are spent, are copied. Keys are the exception: encrypting or
+     * decrypting the wallet changes them in place, so they're serialized as the snapshot is taken. That keeps a
+     * snapshot cheap to take under the wallet lock, and {@link #walletToProto(Snapshot)} can then do the real work of
+     * serialization without it. A snapshot taken by {@link #snapshotChanges} holds only part of the wallet, for
+     * {@link #walletChangesToProto(Snapshot)}.
+     */
+    public static class Snapshot {
+        private final NetworkParameters params;
+        @Nullable private final String description;
+        private final List<TransactionSnapshot> transactions;
+        private final List<Protos.Key> keys;
+        private final List<Script> scripts;
+        @Nullable private final Sha256Hash lastSeenBlockHash;
+        private final int lastSeenBlockHeight;
+        private final long lastSeenBlockTimeSecs;
+        @Nullable private final KeyCrypter keyCrypter;
+        @Nullable private final Date keyRotationTime;
+        private final List<WalletExtension> extensions;
+        private final int version;
+        private final boolean complete;
 
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+        private Snapshot(Wallet wallet) {
+            complete = true;
+            params = wallet.getNetworkParameters();
+            description = wallet.getDescription();
+            transactions = Lists.newArrayList();
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                transactions.add(new TransactionSnapshot(wtx));
+            keys = Lists.newArrayList();
+            for (ECKey key : wallet.getKeys())
+                keys.add(makeKeyProto(key));
+            scripts = wallet.getWatchedScripts();
+            lastSeenBlockHash = wallet.getLastBlockSeenHash();
+            lastSeenBlockHeight = wallet.getLastBlockSeenHeight();
+            lastSeenBlockTimeSecs = wallet.getLastBlockSeenTimeSecs();
+            keyCrypter = wallet.getKeyCrypter();
+            keyRotationTime = wallet.getKeyRotationTime();
+            // Extensions look after their own state, so they're serialized along with everything else.
+            extensions = Lists.newArrayList(wallet.getExtensions().values());
+            version = wallet.getVersion();
+        }
 
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        private Snapshot(Wallet wallet, Collection<WalletTransaction> transactions, Collection<ECKey> keys,
+                         Collection<Script> scripts, Collection<String> extensionIds) {
+            complete = false;
+            params = wallet.getNetworkParameters();
+            description = null;
+            this.transactions = Lists.newArrayList();
+            for (WalletTransaction wtx : transactions)
+                this.transactions.add(new TransactionSnapshot(wtx));
+            this.keys = Lists.newArrayList();
+            for (ECKey key : keys)
+                this.keys.add(makeKeyProto(key));
+            this.scripts = Lists.newArrayList(scripts);
+            lastSeenBlockHash = wallet.getLastBlockSeenHash();
+            lastSeenBlockHeight = wallet.getLastBlockSeenHeight();
+            lastSeenBlockTimeSecs = wallet.getLastBlockSeenTimeSecs();
+            keyCrypter = null;
+            keyRotationTime = null;
+            extensions = Lists.newArrayList();
+            Map<String, WalletExtension> walletExtensions = wallet.getExtensions();
+            for (String id : extensionIds) {
+                WalletExtension extension = walletExtensions.get(id);
+                if (extension != null)
+                    extensions.add(extension);
             }
+            version = 0;
+        }
+    }
+
+    private static class TransactionSnapshot {
+        private final Transaction tx;
+        private final WalletTransaction.Pool pool;
+        private final Date updateTime;
+        private final Transaction.Purpose purpose;
+        // The input spending each output, or null where it's unspent.
+        private final TransactionInput[] spentBy;
+        @Nullable private final Map<Sha256Hash, Integer> appearsInHashes;
+        @Nullable private final TransactionConfidence confidence;
 
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
+        private TransactionSnapshot(WalletTransaction wtx) {
+            tx = wtx.getTransaction();
+            pool = wtx.getPool();
+            updateTime = tx.getUpdateTime();
+            purpose = tx.getPurpose();
+            List<TransactionOutput> outputs = tx.getOutputs();
+            spentBy = new TransactionInput[outputs.size()];
+            for (int i = 0; i < spentBy.length; i++)
+                spentBy[i] = outputs.get(i).getSpentBy();
+            appearsInHashes = tx.getAppearsInHashes();
+            confidence = tx.hasConfidence() ? tx.getConfidence().duplicate() : null;
         }
+    }
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+    /**
+     * Copies out the state of the given wallet that {@link #walletToProto(Snapshot)} needs. Hold the wallet lock
+     * whilst calling this to get a consistent view of it.
+     */
+    public Snapshot snapshot(Wallet wallet) {
+        return new Snapshot(wallet);
+    }
 
-            walletBuilder.addWatchedScript(protoScript);
+    /**
+     * Converts a snapshot of a wallet to the object representation of the protocol buffers, as
+     * {@link #walletToProto(Wallet)} does. The wallet doesn't need to be locked whilst this runs.
+     */
+    public Protos.Wallet walletToProto(Snapshot snapshot) {
+        checkArgument(snapshot.complete, "Snapshot only holds changes, use walletChangesToProto");
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(snapshot.params.getId());
+        if (snapshot.description != null) {
+            walletBuilder.setDescription(snapshot.description);
         }
 
-        // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        for (TransactionSnapshot tx : snapshot.transactions) {
+            Protos.Transaction txProto = makeTxProto(tx);
+            walletBuilder.addTransaction(txProto);
         }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+
+        for (Protos.Key key : snapshot.keys)
+            walletBuilder.addKey(key);
+
+        for (Script script : snapshot.scripts)
+            walletBuilder.addWatchedScript(makeScriptProto(script));
+
+        populateLastSeenBlock(snapshot.lastSeenBlockHash, snapshot.lastSeenBlockHeight, snapshot.lastSeenBlockTimeSecs,
+                walletBuilder);
 
         // Populate the scrypt parameters.
-        KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        KeyCrypter keyCrypter = snapshot.keyCrypter;
         if (keyCrypter == null) {
             // The wallet is unencrypted.
             walletBuilder.setEncryptionType(EncryptionType.UNENCRYPTED);
@@ -194,39 +276,133 @@ public class WalletProtobufSerializer {
             }
         }
 
-        if (wallet.getKeyRotationTime() != null) {
-            long timeSecs = wallet.getKeyRotationTime().getTime() / 1000;
+        if (snapshot.keyRotationTime != null) {
+            long timeSecs = snapshot.keyRotationTime.getTime() / 1000;
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        for (WalletExtension extension : snapshot.extensions)
+            walletBuilder.addExtension(makeExtensionProto(extension));
 
         // Populate the wallet version.
-        walletBuilder.setVersion(wallet.getVersion());
+        walletBuilder.setVersion(snapshot.version);
+
+        return walletBuilder.build();
+    }
+
+    /**
+     * Copies out the parts of the given wallet that {@link #walletChangesToProto(Snapshot)} needs: just the given
+     * transactions, keys, scripts and extensions, along with the last seen block. Hold the wallet lock whilst calling
+     * this to get a consistent view of it.
+     */
+    public Snapshot snapshotChanges(Wallet wallet, Collection<WalletTransaction> transactions, Collection<ECKey> keys,
+                                    Collection<Script> scripts, Collection<String> extensionIds) {
+        return new Snapshot(wallet, transactions, keys, scripts, extensionIds);
+    }
 
+    /**
+     * Converts part of the given wallet to the object representation of the protocol buffers: just the given
+     * transactions, keys, scripts and extensions, along with the last seen block. This is what a
+     * {@link WalletJournal} records for each save.
+     */
+    public Protos.Wallet walletChangesToProto(Wallet wallet, Collection<WalletTransaction> transactions,
+                                              Collection<ECKey> keys, Collection<Script> scripts,
+                                              Collection<String> extensionIds) {
+        return walletChangesToProto(snapshotChanges(wallet, transactions, keys, scripts, extensionIds));
+    }
+
+    /**
+     * Converts a snapshot of a wallet to the object representation of the protocol buffers, recording only the parts
+     * it was taken with, as {@link #walletChangesToProto(Wallet, Collection, Collection, Collection, Collection)} does.
+     * The wallet doesn't need to be locked whilst this runs.
+     */
+    public Protos.Wallet walletChangesToProto(Snapshot snapshot) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(snapshot.params.getId());
+        for (TransactionSnapshot tx : snapshot.transactions)
+            walletBuilder.addTransaction(makeTxProto(tx));
+        for (Protos.Key key : snapshot.keys)
+            walletBuilder.addKey(key);
+        for (Script script : snapshot.scripts)
+            walletBuilder.addWatchedScript(makeScriptProto(script));
+        populateLastSeenBlock(snapshot.lastSeenBlockHash, snapshot.lastSeenBlockHeight, snapshot.lastSeenBlockTimeSecs,
+                walletBuilder);
+        for (WalletExtension extension : snapshot.extensions)
+            walletBuilder.addExtension(makeExtensionProto(extension));
         return walletBuilder.build();
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
+    private static void populateLastSeenBlock(@Nullable Sha256Hash lastSeenBlockHash, int lastSeenBlockHeight,
+                                              long lastSeenBlockTimeSecs, Protos.Wallet.Builder walletBuilder) {
+        // Populate the lastSeenBlockHash field.
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(lastSeenBlockHeight);
         }
+        if (lastSeenBlockTimeSecs > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(lastSeenBlockTimeSecs);
+    }
+
+    private static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
-        Transaction tx = wtx.getTransaction();
+    private static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
+    private static Protos.Script makeScriptProto(Script script) {
+        return Protos.Script.newBuilder()
+                .setProgram(ByteString.copyFrom(script.getProgram()))
+                .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                .build();
+    }
+
+    private static Protos.Transaction makeTxProto(TransactionSnapshot snapshot) {
+        Transaction tx = snapshot.tx;
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
         
-        txBuilder.setPool(getProtoPool(wtx))
+        txBuilder.setPool(getProtoPool(snapshot.pool))
                  .setHash(hashToByteString(tx.getHash()))
                  .setVersion((int) tx.getVersion());
 
-        if (tx.getUpdateTime() != null) {
-            txBuilder.setUpdatedAt(tx.getUpdateTime().getTime());
+        if (snapshot.updateTime != null) {
+            txBuilder.setUpdatedAt(snapshot.updateTime.getTime());
         }
         
         if (tx.getLockTime() > 0) {
@@ -246,11 +422,13 @@ public class WalletProtobufSerializer {
         }
         
         // Handle outputs.
-        for (TransactionOutput output : tx.getOutputs()) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
             Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
                 .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
                 .setValue(output.getValue().longValue());
-            final TransactionInput spentBy = output.getSpentBy();
+            final TransactionInput spentBy = snapshot.spentBy[i];
             if (spentBy != null) {
                 Sha256Hash spendingHash = spentBy.getParentTransaction().getHash();
                 int spentByTransactionIndex = spentBy.getParentTransaction().getInputs().indexOf(spentBy);
@@ -261,7 +439,7 @@ public class WalletProtobufSerializer {
         }
         
         // Handle which blocks tx was seen in.
-        final Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        final Map<Sha256Hash, Integer> appearsInHashes = snapshot.appearsInHashes;
         if (appearsInHashes != null) {
             for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet()) {
                 txBuilder.addBlockHash(hashToByteString(entry.getKey()));
@@ -269,14 +447,14 @@ public class WalletProtobufSerializer {
             }
         }
         
-        if (tx.hasConfidence()) {
-            TransactionConfidence confidence = tx.getConfidence();
+        if (snapshot.confidence != null) {
+            TransactionConfidence confidence = snapshot.confidence;
             Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
             writeConfidence(txBuilder, confidence, confidenceBuilder);
         }
 
         Protos.Transaction.Purpose purpose;
-        switch (tx.getPurpose()) {
+        switch (snapshot.purpose) {
             case UNKNOWN: purpose = Protos.Transaction.Purpose.UNKNOWN; break;
             case USER_PAYMENT: purpose = Protos.Transaction.Purpose.USER_PAYMENT; break;
             case KEY_ROTATION: purpose = Protos.Transaction.Purpose.KEY_ROTATION; break;
@@ -288,8 +466,8 @@ public class WalletProtobufSerializer {
         return txBuilder.build();
     }
 
-    private static Protos.Transaction.Pool getProtoPool(WalletTransaction wtx) {
-        switch (wtx.getPool()) {
+    private static Protos.Transaction.Pool getProtoPool(WalletTransaction.Pool pool) {
+        switch (pool) {
             case UNSPENT: return Protos.Transaction.Pool.UNSPENT;
             case SPENT: return Protos.Transaction.Pool.SPENT;
             case DEAD: return Protos.Transaction.Pool.DEAD;
@@ -362,18 +540,175 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
+        return streamWallet(input, null, null);
+    }
+
+    /**
+     * <p>Parses a wallet from the given stream into the given Wallet object, which is useful when you wish to
+     * pre-register extension objects. See {@link #readWallet(java.io.InputStream)}. Note that if loading fails the
+     * provided Wallet object may be in an indeterminate state and should be thrown away.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public void readWallet(InputStream input, Wallet wallet) throws UnreadableWalletException {
+        streamWallet(input, checkNotNull(wallet), null);
+    }
+
+    /**
+     * <p>Reads the wallet in the given file, streaming it as {@link #readWallet(java.io.InputStream)} does, and replays
+     * the {@link WalletJournal} kept next to it on top if it was saved with one.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public Wallet readWallet(File file) throws UnreadableWalletException {
+        return readWallet(file, null, WalletJournal.getJournalFile(file).exists());
+    }
+
+    /**
+     * <p>Reads the wallet in the given file into the given Wallet object, as {@link #readWallet(java.io.File)} does.
+     * Note that if loading fails the provided Wallet object may be in an indeterminate state and should be thrown
+     * away.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public void readWallet(File file, Wallet wallet) throws UnreadableWalletException {
+        readWallet(file, checkNotNull(wallet), WalletJournal.getJournalFile(file).exists());
+    }
+
+    private Wallet readWallet(File file, @Nullable Wallet wallet, boolean journaled) throws UnreadableWalletException {
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(file));
+            return streamWallet(input, wallet, journaled ? file : null);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private static void closeQuietly(@Nullable InputStream input) {
+        if (input == null)
+            return;
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            Wallet wallet = new Wallet(params);
-            readWallet(walletProto, wallet);
-            return wallet;
+            input.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet file", e);
+        }
+    }
+
+    // Reads the wallet a field at a time. Each transaction is turned into a Transaction object as soon as it's read and
+    // only its spent by links and confidence are held on to, until all of them have been read and they can be
+    // connected together, so the parsed protocol buffer of every transaction never has to be in memory at once.
+    // Everything else is small and is copied aside unparsed to be read once the stream ends, as the keys depend
+    // on the encryption parameters which come after them. If the wallet was read from a file with a journal, the journal
+    // is replayed on top: the transactions it holds replace those read from the file.
+    private Wallet streamWallet(InputStream input, @Nullable Wallet wallet, @Nullable File journaledFile)
+            throws UnreadableWalletException {
+        Protos.Wallet walletProto;
+        LinkedHashMap<ByteString, Protos.Transaction> links = new LinkedHashMap<ByteString, Protos.Transaction>();
+        try {
+            CodedInputStream coded = CodedInputStream.newInstance(input);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CodedOutputStream fields = CodedOutputStream.newInstance(bytes);
+            NetworkParameters params = wallet != null ? wallet.getParams() : null;
+            String paramsID = null;
+            int tag;
+            while ((tag = coded.readTag()) != 0) {
+                int field = tag >>> 3;
+                if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER) {
+                    if (params == null)
+                        params = getParams(paramsID);
+                    Protos.Transaction txProto =
+                            coded.readMessage(Protos.Transaction.PARSER, ExtensionRegistryLite.getEmptyRegistry());
+                    readTransaction(txProto, params);
+                    links.put(txProto.getHash(), getLinks(txProto));
+                } else if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER) {
+                    paramsID = coded.readString();
+                    fields.writeString(field, paramsID);
+                } else {
+                    copyField(tag, coded, fields);
+                }
+                // The size limit guards against a single message that's too large, not a wallet with many of them.
+                coded.resetSizeCounter();
+            }
+            fields.flush();
+            walletProto = Protos.Wallet.parseFrom(bytes.toByteArray());
+            if (journaledFile != null) {
+                int writtenAt = walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1;
+                walletProto = WalletJournal.replay(journaledFile, walletProto, true);
+                int height = walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1;
+                for (Map.Entry<ByteString, Protos.Transaction> entry : links.entrySet())
+                    entry.setValue(WalletJournal.bury(entry.getValue(), writtenAt, height));
+                if (walletProto.getTransactionCount() > 0 && params == null)
+                    params = getParams(walletProto.getNetworkIdentifier());
+                for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                    txMap.remove(txProto.getHash());
+                    readTransaction(txProto, params);
+                    links.put(txProto.getHash(), getLinks(txProto));
+                }
+            }
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
+        if (wallet == null)
+            wallet = new Wallet(getParams(walletProto.getNetworkIdentifier()));
+        readKeysAndScripts(walletProto, wallet);
+        for (Protos.Transaction txProto : links.values())
+            wallet.addWalletTransaction(connectTransactionOutputs(txProto));
+        readMetadataAndExtensions(walletProto, wallet);
+        return wallet;
+    }
+
+    // Copies the field with the given tag from the input to the output without parsing it.
+    private static void copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        output.writeRawVarint32(tag);
+        switch (tag & 7) {
+            case WireFormat.WIRETYPE_VARINT: output.writeRawVarint64(input.readRawVarint64()); break;
+            case WireFormat.WIRETYPE_FIXED64: output.writeRawLittleEndian64(input.readRawLittleEndian64()); break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED: output.writeBytesNoTag(input.readBytes()); break;
+            case WireFormat.WIRETYPE_FIXED32: output.writeRawLittleEndian32(input.readRawLittleEndian32()); break;
+            default:
+                throw new InvalidProtocolBufferException("Unexpected field in wallet with tag " + tag);
+        }
+    }
+
+    private static NetworkParameters getParams(@Nullable String paramsID) throws UnreadableWalletException {
+        NetworkParameters params = paramsID == null ? null : NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return params;
+    }
+
+    // Returns what connectTransactionOutputs needs of the given transaction, leaving out the scripts that make up most
+    // of it.
+    private static Protos.Transaction getLinks(Protos.Transaction txProto) {
+        Protos.Transaction.Builder links = Protos.Transaction.newBuilder()
+                .setHash(txProto.getHash())
+                .setPool(txProto.getPool());
+        if (txProto.hasConfidence())
+            links.setConfidence(txProto.getConfidence());
+        for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+            Protos.TransactionOutput.Builder outputLinks = Protos.TransactionOutput.newBuilder();
+            if (output.hasSpentByTransactionHash()) {
+                outputLinks.setSpentByTransactionHash(output.getSpentByTransactionHash())
+                           .setSpentByTransactionIndex(output.getSpentByTransactionIndex());
+            }
+            links.addTransactionOutput(outputLinks.buildPartial());
+        }
+        return links.buildPartial();
+    }
+
+    /**
+     * <p>Loads a wallet from the given protocol buffer, for instance one returned by
+     * {@link WalletJournal#readProto(java.io.File)}.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        Wallet wallet = new Wallet(getParams(walletProto.getNetworkIdentifier()));
+        readWallet(walletProto, wallet);
+        return wallet;
     }
 
     /**
@@ -388,6 +723,23 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public void readWallet(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
+        readKeysAndScripts(walletProto, wallet);
+
+        // Read all transactions and insert into the txMap.
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            readTransaction(txProto, wallet.getParams());
+        }
+
+        // Update transaction outputs to point to inputs that spend them
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            wallet.addWalletTransaction(wtx);
+        }
+
+        readMetadataAndExtensions(walletProto, wallet);
+    }
+
+    private void readKeysAndScripts(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         if (walletProto.hasEncryptionParameters()) {
             Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
@@ -440,18 +792,9 @@ public class WalletProtobufSerializer {
         }
 
         wallet.addWatchedScripts(scripts);
+    }
 
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
-        }
-
-        // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
-            wallet.addWalletTransaction(wtx);
-        }
-
+    private void readMetadataAndExtensions(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
             wallet.setLastBlockSeenHash(null);
@@ -515,6 +858,27 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
+    /**
+     * Returns the loaded protocol buffer from the given byte stream with its transactions skipped over rather than
+     * parsed, which for a large wallet is much quicker. Useful when only the keys, watched scripts or last seen block
+     * are needed, such as to pick a checkpoint by the earliest key creation time before the wallet is loaded.
+     */
+    public static Protos.Wallet parseToProtoWithoutTransactions(InputStream input) throws IOException {
+        CodedInputStream coded = CodedInputStream.newInstance(input);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream fields = CodedOutputStream.newInstance(bytes);
+        int tag;
+        while ((tag = coded.readTag()) != 0) {
+            if (tag >>> 3 == Protos.Wallet.TRANSACTION_FIELD_NUMBER)
+                coded.skipField(tag);
+            else
+                copyField(tag, coded, fields);
+            coded.resetSizeCounter();
+        }
+        fields.flush();
+        return Protos.Wallet.parseFrom(bytes.toByteArray());
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
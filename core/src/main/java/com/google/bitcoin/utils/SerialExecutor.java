@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An executor which runs tasks one at a time, in the order they were submitted, on the threads of another executor
+ * that may be shared with many others. Tasks from different SerialExecutors can run in parallel, tasks from the same
+ * one never do.</p>
+ *
+ * <p>{@link #execute(Runnable)} never blocks, as the producer is often a network thread serving many connections.
+ * Instead a {@link Listener} is told once a given number of tasks are waiting, so the producer can stop producing, and
+ * again once half of them have run, so it can start again. If the producer carries on regardless, the queue keeps
+ * growing.</p>
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    /** Told when the queue fills up and when it has room again. */
+    public interface Listener {
+        /**
+         * Called by {@link #execute(Runnable)} once the queue holds the maximum number of tasks. Called with the
+         * executor's lock held, so it should be quick and mustn't call back into the executor.
+         */
+        void onQueueFull();
+
+        /**
+         * Called once the queue has drained to half the maximum after {@link #onQueueFull()}, on the thread running
+         * the tasks. Called with the executor's lock held, as above.
+         */
+        void onQueueNotFull();
+    }
+
+    private final Executor executor;
+    private final int maxQueued;
+    @Nullable private final Listener listener;
+
+    private final ReentrantLock lock = Threading.lock("serialexecutor");
+    @GuardedBy("lock") private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    // Whether a task from this executor has been handed to the underlying one and not yet finished.
+    @GuardedBy("lock") private boolean running;
+    // Whether the listener was told the queue is full, and hasn't been told it has room again yet.
+    @GuardedBy("lock") private boolean full;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates an executor that runs its tasks on the given one, telling the given listener, if any, when maxQueued
+     * tasks are waiting.
+     */
+    public SerialExecutor(Executor executor, int maxQueued, @Nullable Listener listener) {
+        checkArgument(maxQueued > 0);
+        this.executor = checkNotNull(executor);
+        this.maxQueued = maxQueued;
+        this.listener = listener;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        checkNotNull(task);
+        boolean start;
+        lock.lock();
+        try {
+            tasks.add(task);
+            if (!full && tasks.size() >= maxQueued) {
+                full = true;
+                if (listener != null)
+                    listener.onQueueFull();
+            }
+            start = !running;
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        if (start)
+            executor.execute(drain);
+    }
+
+    /** Returns how many tasks are waiting to run, not counting one that is running. */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+                if (full && tasks.size() <= maxQueued / 2) {
+                    full = false;
+                    if (listener != null)
+                        listener.onQueueNotFull();
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Exception in serially executed task", e);
+            }
+        }
+    }
+}
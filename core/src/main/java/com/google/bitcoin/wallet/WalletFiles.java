@@ -17,6 +17,7 @@
 package com.google.bitcoin.wallet;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.WalletJournal;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
@@ -48,6 +49,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -105,16 +107,37 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * If enabled, saves append what changed in the wallet to a {@link WalletJournal} kept next to the wallet file
+     * rather than rewriting the whole file, which for large wallets is much cheaper. The first save after enabling it
+     * writes the whole wallet, as does every save once the journal has grown large. A wallet saved this way must be
+     * loaded with {@link Wallet#loadFromFile(java.io.File)} or {@link WalletJournal#readProto(java.io.File)}. The
+     * listener's {@link Listener#onBeforeAutoSave(java.io.File)} isn't called whilst journaling.
+     */
+    public void setJournaling(boolean enabled) {
+        vJournal = enabled ? new WalletJournal(file) : null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst it's serialized, so two saves can be in flight
+        // at once (using different temp files), but the one that serialized it last always ends up on disk.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
         saveNowInternal();
     }
 
     private void saveNowInternal() throws IOException {
         long now = System.currentTimeMillis();
+        final WalletJournal journal = vJournal;
+        if (journal != null) {
+            wallet.saveToJournal(journal);
+            final Listener listener = vListener;
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+            log.info("Save completed in {}msec, wallet locked for {}msec", System.currentTimeMillis() - now,
+                    wallet.getLastSaveLockTime(TimeUnit.MILLISECONDS));
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
@@ -123,7 +146,8 @@ public class WalletFiles {
         wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        log.info("Save completed in {}msec, wallet locked for {}msec", System.currentTimeMillis() - now,
+                wallet.getLastSaveLockTime(TimeUnit.MILLISECONDS));
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
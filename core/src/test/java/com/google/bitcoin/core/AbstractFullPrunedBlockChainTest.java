@@ -24,6 +24,7 @@ import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -32,6 +33,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -57,6 +60,12 @@ public abstract class AbstractFullPrunedBlockChainTest
         };
     }
 
+    @After
+    public void closeChain() throws Exception {
+        if (chain != null)
+            chain.close();
+    }
+
     public abstract FullPrunedBlockStore createStore(NetworkParameters params, int blockCount)
         throws BlockStoreException;
 
@@ -200,6 +209,44 @@ public abstract class AbstractFullPrunedBlockChainTest
         assertNull(out.get());
     }
     
+    @Test
+    public void batchedOutputUpdates() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash1 = Sha256Hash.create(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[] {2});
+        StoredTransactionOutput a = new StoredTransactionOutput(hash1, 0, Utils.COIN, 1, false, new byte[] {1});
+        StoredTransactionOutput b = new StoredTransactionOutput(hash1, 1, Utils.CENT, 1, false, new byte[] {2});
+        StoredTransactionOutput c = new StoredTransactionOutput(hash2, 0, Utils.COIN, 1, true, new byte[] {3});
+        List<StoredTransactionOutput> none = Collections.emptyList();
+
+        store.beginDatabaseBatchWrite();
+        store.updateUnspentTransactionOutputs(none, Arrays.asList(a, b, c));
+        store.commitDatabaseBatchWrite();
+        // Results come back in the order asked for, with gaps for outputs the store doesn't have.
+        List<StoredTransactionOutput> found = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(params, 1, hash1), new TransactionOutPoint(params, 1, hash2),
+                new TransactionOutPoint(params, 0, hash1), new TransactionOutPoint(params, 0, hash2)));
+        assertEquals(4, found.size());
+        assertEquals(b, found.get(0));
+        assertEquals(Utils.CENT, found.get(0).getValue());
+        assertNull(found.get(1));
+        assertEquals(a, found.get(2));
+        assertEquals(c, found.get(3));
+        assertEquals(1, found.get(3).getHeight());
+
+        store.updateUnspentTransactionOutputs(Arrays.asList(a, c), none);
+        assertNull(store.getTransactionOutput(hash1, 0));
+        assertNotNull(store.getTransactionOutput(hash1, 1));
+        assertFalse(store.hasUnspentOutputs(hash2, 1));
+        try {
+            store.updateUnspentTransactionOutputs(Arrays.asList(a), none);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
@@ -17,14 +17,20 @@
 package com.google.bitcoin.core;
 
 
+import com.google.bitcoin.net.BufferPool;
+import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.net.PooledBufferOutputStream;
 import com.google.bitcoin.params.MainNetParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -68,6 +74,131 @@ public class BitcoinSerializerTest {
         //assertTrue(LazyParseByteCacheTest.arrayContains(bos.toByteArray(), addrMessage));
     }
 
+    @Test
+    public void serializeToPooledBuffers() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), true, true);
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        BufferPool pool = new BufferPool(64, 4);
+        PooledBufferOutputStream out = new PooledBufferOutputStream(pool);
+        bs.serialize(tx, out);
+        ByteBuffer[] buffers = out.toBuffers();
+        // The header goes in a buffer of its own, and the cached transaction bytes are shared rather than copied.
+        assertEquals(2, buffers.length);
+        assertTrue(buffers[1].hasArray());
+        assertArrayEquals(txMessage, concat(buffers));
+
+        // A message without cached bytes is written into pooled buffers, and comes out the same as through a stream.
+        GetDataMessage getdata = new GetDataMessage(MainNetParams.get());
+        for (int i = 0; i < 10; i++)
+            getdata.addTransaction(Sha256Hash.create(new byte[] {(byte) i}));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(getdata, bos);
+        out = new PooledBufferOutputStream(pool);
+        bs.serialize(getdata, out);
+        buffers = out.toBuffers();
+        assertTrue(buffers.length > 2);
+        assertTrue(buffers[1].isDirect());
+        assertArrayEquals(bos.toByteArray(), concat(buffers));
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        assertEquals(4, pool.getFreeCount());
+
+        // A small message doesn't tie up a pooled buffer whilst it waits to be written.
+        Ping ping = new Ping(1234);
+        bos = new ByteArrayOutputStream();
+        bs.serialize(ping, bos);
+        out = new PooledBufferOutputStream(pool);
+        bs.serialize(ping, out);
+        buffers = out.toBuffers();
+        for (ByteBuffer buffer : buffers)
+            assertFalse(buffer.isDirect());
+        assertEquals(4, pool.getFreeCount());
+        assertArrayEquals(bos.toByteArray(), concat(buffers));
+
+        // A message that kept the checksum from its header but not the bytes has its checksum worked out again, as
+        // the bytes written might not be the ones received.
+        bs = new BitcoinSerializer(MainNetParams.get());
+        tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        assertFalse(tx.isCached());
+        tx.setChecksum(new byte[4]);
+        bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        out = new PooledBufferOutputStream(pool);
+        bs.serialize(tx, out);
+        assertArrayEquals(bos.toByteArray(), concat(out.toBuffers()));
+    }
+
+    @Test
+    public void writeBuffersToPlainTarget() throws Exception {
+        // A target that only takes byte arrays gets the buffers copied into one, and pooled buffers are released.
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageWriteTarget target = new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) throws IOException {
+                written.write(message);
+            }
+
+            @Override
+            public void closeConnection() {}
+        };
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer pooled = pool.acquire();
+        int free = pool.getFreeCount();
+        pooled.put(new byte[] {3, 4}).flip();
+        BufferPool.write(target, new ByteBuffer[] {ByteBuffer.wrap(new byte[] {1, 2}), pooled});
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, written.toByteArray());
+        assertEquals(free + 1, pool.getFreeCount());
+    }
+
+    private static byte[] concat(ByteBuffer[] buffers) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            bos.write(bytes, 0, bytes.length);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void decodeIncrementally() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Sha256Hash txHash = ((Transaction) bs.deserialize(ByteBuffer.wrap(txMessage))).getHash();
+        // Garbage, including the start of a magic, then two messages back to back.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(new byte[] {1, (byte) 0xf9, (byte) 0xbe, 2, (byte) 0xf9});
+        bos.write(txMessage);
+        bos.write(addrMessage);
+        byte[] stream = bos.toByteArray();
+
+        // Feed the stream in pieces of every size up to a little more than a message, so that each message is split
+        // at every point in its magic, header and payload.
+        for (int chunk = 1; chunk <= txMessage.length + 10; chunk++) {
+            MessageDecoder decoder = new MessageDecoder(bs, MainNetParams.get());
+            List<Message> messages = new ArrayList<Message>();
+            for (int pos = 0; pos < stream.length; pos += chunk) {
+                ByteBuffer buff = ByteBuffer.wrap(stream, pos, Math.min(chunk, stream.length - pos));
+                Message message;
+                while ((message = decoder.decode(buff)) != null)
+                    messages.add(message);
+                assertFalse(buff.hasRemaining());
+            }
+            assertEquals(2, messages.size());
+            assertEquals(txHash, ((Transaction) messages.get(0)).getHash());
+            assertEquals(1, ((AddressMessage) messages.get(1)).getAddresses().size());
+        }
+
+        // A corrupted payload fails its checksum.
+        byte[] corrupted = Arrays.copyOf(txMessage, txMessage.length);
+        corrupted[corrupted.length - 1] ^= 1;
+        try {
+            new MessageDecoder(bs, MainNetParams.get()).decode(ByteBuffer.wrap(corrupted));
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testLazyParsing()  throws Exception {
         BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), true, false);
@@ -31,7 +31,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -400,6 +402,46 @@ public class BlockChainTest {
         assertEquals(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parse("2012-10-23T08:35:05.000-0700"), d);
     }
 
+    @Test
+    public void heightIndex() throws Exception {
+        List<Block> blocks = new ArrayList<Block>();
+        blocks.add(unitTestParams.getGenesisBlock());
+        for (int i = 1; i <= 40; i++) {
+            Block b = blocks.get(i - 1).createNextBlock(coinbaseTo);
+            assertTrue(chain.add(b));
+            blocks.add(b);
+        }
+        // Ten blocks from the top, then doubling gaps, then the genesis block.
+        List<Sha256Hash> locator = chain.getBlockLocator();
+        int[] heights = {40, 39, 38, 37, 36, 35, 34, 33, 32, 31, 29, 25, 17, 1, 0};
+        assertEquals(heights.length, locator.size());
+        for (int i = 0; i < heights.length; i++)
+            assertEquals(blocks.get(heights[i]).getHash(), locator.get(i));
+
+        // A longer fork takes over the heights above the split.
+        Block forkPrev = blocks.get(35);
+        List<Block> fork = new ArrayList<Block>();
+        for (int i = 36; i <= 41; i++) {
+            forkPrev = forkPrev.createNextBlock(coinbaseTo);
+            chain.add(forkPrev);
+            fork.add(forkPrev);
+        }
+        assertEquals(41, chain.getBestChainHeight());
+        assertEquals(blocks.get(35).getHash(), chain.getBlockAtHeight(35).getHeader().getHash());
+        assertEquals(fork.get(0).getHash(), chain.getBlockAtHeight(36).getHeader().getHash());
+        assertEquals(fork.get(5).getHash(), chain.getBlockAtHeight(41).getHeader().getHash());
+        assertNull(chain.getBlockAtHeight(42));
+
+        // A chain opened on the same store starts out knowing only its head, and fills in the rest from the store.
+        BlockChain reopened = new BlockChain(unitTestParams, blockStore);
+        assertEquals(blocks.get(5).getHash(), reopened.getBlockAtHeight(5).getHeader().getHash());
+        assertEquals(fork.get(2).getHash(), reopened.getBlockAtHeight(38).getHeader().getHash());
+        ListenableFuture<StoredBlock> future = reopened.getHeightFuture(3);
+        assertTrue(future.isDone());
+        assertEquals(blocks.get(3).getHash(), future.get().getHeader().getHash());
+        assertEquals(blocks.get(10).getTimeSeconds() * 1000, reopened.estimateBlockTime(10).getTime());
+    }
+
     @Test
     public void falsePositives() throws Exception {
         double decay = AbstractBlockChain.FP_ESTIMATOR_ALPHA;
@@ -4,7 +4,10 @@ import com.google.bitcoin.params.MainNetParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -74,4 +77,37 @@ public class BloomFilterTest {
         // Value generated by the reference client
         assertTrue(Arrays.equals(Hex.decode("082ae5edc8e51d4a03080000000000000002"), filter.bitcoinSerialize()));
     }
+
+    @Test
+    public void batchInsertAndSerializeRoundTrip() throws Exception {
+        // Elements of varying lengths, so every tail case of the hash is used, in a filter that isn't a whole number
+        // of 64 bit words long.
+        Random random = new Random(1);
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            byte[] element = new byte[1 + random.nextInt(80)];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        BloomFilter one = new BloomFilter(200, 0.001, 12345);
+        for (byte[] element : elements)
+            one.insert(element);
+        BloomFilter all = new BloomFilter(200, 0.001, 12345);
+        all.insertAll(elements);
+        assertEquals(one, all);
+        for (byte[] element : elements)
+            assertTrue(all.contains(element));
+
+        BloomFilter parsed = new BloomFilter(MainNetParams.get(), all.bitcoinSerialize());
+        assertEquals(all, parsed);
+        assertArrayEquals(all.bitcoinSerialize(), parsed.bitcoinSerialize());
+
+        BloomFilter empty = new BloomFilter(200, 0.001, 12345);
+        assertFalse(empty.containsAny(elements));
+        empty.insert(elements.get(100));
+        assertTrue(empty.containsAny(elements));
+        assertFalse(parsed.matchesAll());
+        parsed.setMatchAll();
+        assertTrue(parsed.matchesAll());
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the FullPrunedBlockStore tests against a {@link CachingFullPrunedBlockStore} that writes through at every block,
+ * and checks the caching itself separately.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 0);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op for memory store, because it's not persistent
+    }
+
+    @Test
+    public void outputsStayInMemoryUntilFlushed() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        MemoryFullPrunedBlockStore backing = new MemoryFullPrunedBlockStore(params, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(backing, 1000);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        StoredTransactionOutput a = new StoredTransactionOutput(hash, 0, Utils.COIN, 1, false, new byte[] {1});
+        StoredTransactionOutput b = new StoredTransactionOutput(hash, 1, Utils.COIN, 1, false, new byte[] {2});
+        List<StoredTransactionOutput> none = Collections.emptyList();
+
+        // Changes in an aborted batch disappear.
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(none, Arrays.asList(a));
+        assertEquals(a, cache.getTransactionOutput(hash, 0));
+        cache.abortDatabaseBatchWrite();
+        assertNull(cache.getTransactionOutput(hash, 0));
+
+        // Committed ones are visible, but only in memory.
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(none, Arrays.asList(a, b));
+        cache.commitDatabaseBatchWrite();
+        assertEquals(a, cache.getTransactionOutput(hash, 0));
+        assertNull(backing.getTransactionOutput(hash, 0));
+        assertEquals(2, cache.getDirtyOutputs());
+
+        // An output that is created and spent before a flush never reaches the backing store.
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(Arrays.asList(a), none);
+        cache.commitDatabaseBatchWrite();
+        assertNull(cache.getTransactionOutput(hash, 0));
+        cache.flush();
+        assertEquals(1, cache.getFlushes());
+        assertEquals(0, cache.getDirtyOutputs());
+        assertNull(backing.getTransactionOutput(hash, 0));
+        assertEquals(b, backing.getTransactionOutput(hash, 1));
+
+        // Spending a flushed output is remembered until the next flush.
+        cache.updateUnspentTransactionOutputs(Arrays.asList(b), none);
+        assertNull(cache.getTransactionOutput(hash, 1));
+        assertFalse(cache.hasUnspentOutputs(hash, 2));
+        assertEquals(b, backing.getTransactionOutput(hash, 1));
+        cache.flush();
+        assertNull(backing.getTransactionOutput(hash, 1));
+
+        // Lookups only go to the backing store for outputs the cache knows nothing about.
+        long misses = cache.getMisses();
+        List<StoredTransactionOutput> found = cache.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(params, 0, hash), new TransactionOutPoint(params, 1, hash)));
+        assertEquals(Arrays.asList(null, null), found);
+        assertEquals(misses + 2, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void failedFlushLeavesCacheUnchanged() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        final boolean[] failWrites = {false};
+        MemoryFullPrunedBlockStore backing = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized void updateUnspentTransactionOutputs(List<StoredTransactionOutput> spent,
+                                                                     List<StoredTransactionOutput> created)
+                    throws BlockStoreException {
+                if (failWrites[0])
+                    throw new BlockStoreException("Disk full");
+                super.updateUnspentTransactionOutputs(spent, created);
+            }
+        };
+        // Every commit flushes.
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(backing, 0);
+        StoredBlock genesis = cache.getVerifiedChainHead();
+        StoredBlock next = genesis.build(params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params)));
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        StoredTransactionOutput a = new StoredTransactionOutput(hash, 0, Utils.COIN, 1, false, new byte[] {1});
+        StoredTransactionOutput b = new StoredTransactionOutput(hash, 1, Utils.COIN, 1, false, new byte[] {2});
+        List<StoredTransactionOutput> none = Collections.emptyList();
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(none, Arrays.asList(a));
+        cache.commitDatabaseBatchWrite();
+        assertEquals(a, backing.getTransactionOutput(hash, 0));
+
+        // A batch whose flush fails is thrown away, rather than being left in the cache for later lookups to see.
+        failWrites[0] = true;
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(Arrays.asList(a), Arrays.asList(b));
+        cache.setVerifiedChainHead(next);
+        try {
+            cache.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        assertEquals(a, cache.getTransactionOutput(hash, 0));
+        assertNull(cache.getTransactionOutput(hash, 1));
+        assertEquals(genesis, cache.getVerifiedChainHead());
+        assertEquals(0, cache.getDirtyOutputs());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+
+        // The same block can be connected again once the store works.
+        failWrites[0] = false;
+        cache.beginDatabaseBatchWrite();
+        cache.updateUnspentTransactionOutputs(Arrays.asList(a), Arrays.asList(b));
+        cache.setVerifiedChainHead(next);
+        cache.commitDatabaseBatchWrite();
+        assertNull(cache.getTransactionOutput(hash, 0));
+        assertNull(backing.getTransactionOutput(hash, 0));
+        assertEquals(b, backing.getTransactionOutput(hash, 1));
+        assertEquals(next, backing.getVerifiedChainHead());
+        assertEquals(0, cache.getDirtyOutputs());
+    }
+}
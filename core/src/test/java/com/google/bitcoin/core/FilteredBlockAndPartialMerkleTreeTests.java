@@ -3,6 +3,8 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -13,6 +15,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -49,6 +52,17 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
     
     @Test
     public void serializeDownloadBlockWithWallet() throws Exception {
+        downloadBlockWithWallet(false);
+    }
+
+    @Test
+    public void missingTransactionEndedByPong() throws Exception {
+        // The remote node may not send a transaction the block matched, if it thinks we already have it. The ping sent
+        // after the getdata ends the block anyway.
+        downloadBlockWithWallet(true);
+    }
+
+    private void downloadBlockWithWallet(boolean withholdLastTx) throws Exception {
         unitTestParams = UnitTestParams.get();
         
         // First we create all the neccessary objects, including lots of serialization and double-checks
@@ -118,22 +132,35 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         assertTrue(((GetDataMessage)getData).getItems().get(0).hash.equals(block.getHash()));
         assertTrue(((GetDataMessage)getData).getItems().get(0).type == InventoryItem.Type.FilteredBlock);
         
-        // Check that we then immediately pinged.
+        // Check that we then immediately pinged, in case some of the block's transactions never come.
         Object ping = outbound(p1);
         assertTrue(ping instanceof Ping);
-        
-        // Respond with transactions and the filtered block
+        final SettableFuture<Block> downloaded = SettableFuture.create();
+        peerOf(p1).addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+                downloaded.set(block);
+            }
+        }, Threading.SAME_THREAD);
+
+        // Respond with transactions and the filtered block, which goes into the chain after the last transaction
+        // without waiting for the pong. If the last transaction is held back, the pong is what ends the block.
         inbound(p1, filteredBlock);
         inbound(p1, tx0);
         inbound(p1, tx1);
         inbound(p1, tx2);
-        inbound(p1, tx3);
-        inbound(p1, new Pong(((Ping)ping).getNonce()));
+        if (withholdLastTx)
+            inbound(p1, new Pong(((Ping) ping).getNonce()));
+        else
+            inbound(p1, tx3);
+        assertEquals(block.getHash(), downloaded.get(10, TimeUnit.SECONDS).getHash());
+        if (!withholdLastTx)
+            inbound(p1, new Pong(((Ping) ping).getNonce()));
 
         pingAndWait(p1);
 
         Set<Transaction> transactions = wallet.getTransactions(false);
-        assertTrue(transactions.size() == 4);
+        assertEquals(withholdLastTx ? 3 : 4, transactions.size());
         for (Transaction tx : transactions) {
             assertTrue(tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING);
             assertTrue(tx.getConfidence().getDepthInBlocks() == 1);
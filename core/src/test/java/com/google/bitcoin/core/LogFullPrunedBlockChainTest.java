@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.LogFullPrunedBlockStore;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A log structured implementation of the FullPrunedBlockStoreTest
+ */
+public class LogFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private List<File> directories = new ArrayList<File>();
+    private List<LogFullPrunedBlockStore> stores = new ArrayList<LogFullPrunedBlockStore>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (LogFullPrunedBlockStore store : stores)
+            store.close();
+        for (File directory : directories) {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        File directory = Files.createTempDir();
+        directories.add(directory);
+        return open(params, directory, blockCount, LogFullPrunedBlockStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    private LogFullPrunedBlockStore open(NetworkParameters params, File directory, int blockCount, int segmentSize)
+            throws BlockStoreException {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, blockCount, segmentSize);
+        stores.add(store);
+        return store;
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, every store gets a directory of its own.
+    }
+
+    private static int countSegments(File directory) {
+        int segments = 0;
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log"))
+                segments++;
+        return segments;
+    }
+
+    @Test
+    public void reopenAfterCompactionAndTornWrite() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Files.createTempDir();
+        directories.add(directory);
+        LogFullPrunedBlockStore logStore = open(params, directory, 10, 4096);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 100; i++)
+            outputs.add(new StoredTransactionOutput(hash, i, Utils.COIN, 1, false, new byte[20]));
+        List<StoredTransactionOutput> none = Collections.emptyList();
+        for (int i = 0; i < 100; i += 10) {
+            logStore.beginDatabaseBatchWrite();
+            logStore.updateUnspentTransactionOutputs(none, outputs.subList(i, i + 10));
+            logStore.commitDatabaseBatchWrite();
+        }
+        // Spending most of them leaves the older segments full of garbage.
+        for (int i = 0; i < 90; i += 10) {
+            logStore.beginDatabaseBatchWrite();
+            logStore.updateUnspentTransactionOutputs(outputs.subList(i, i + 10), none);
+            logStore.commitDatabaseBatchWrite();
+        }
+        // Compaction may already be under way in the background, but the first segment is certainly gone after this.
+        logStore.compact();
+        assertFalse(new File(directory, "00000000.log").exists());
+        assertTrue(countSegments(directory) > 0);
+        logStore.close();
+
+        // Add the start of a record after the last batch, as if the process died while writing it.
+        File newest = null;
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log") && (newest == null || file.getName().compareTo(newest.getName()) > 0))
+                newest = file;
+        ByteBuffer contents = ByteBuffer.wrap(Files.toByteArray(newest));
+        int end = 0;
+        while (end + 4 <= contents.capacity() && contents.getInt(end) != 0)
+            end += 4 + contents.getInt(end);
+        assertTrue(end + 8 <= contents.capacity());
+        RandomAccessFile file = new RandomAccessFile(newest, "rw");
+        file.seek(end);
+        file.write(new byte[] {0, 0, 0, 50, 1, 0, 37, 'o'});
+        file.close();
+
+        logStore = open(params, directory, 10, 4096);
+        assertEquals(params.getGenesisBlock().getHash(), logStore.getVerifiedChainHead().getHeader().getHash());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i >= 90, logStore.getTransactionOutput(hash, i) != null);
+        // New batches still go after the last complete one.
+        logStore.beginDatabaseBatchWrite();
+        logStore.updateUnspentTransactionOutputs(outputs.subList(90, 91), none);
+        logStore.commitDatabaseBatchWrite();
+        logStore.close();
+        logStore = open(params, directory, 10, 4096);
+        assertNull(logStore.getTransactionOutput(hash, 90));
+        assertNotNull(logStore.getTransactionOutput(hash, 91));
+    }
+}
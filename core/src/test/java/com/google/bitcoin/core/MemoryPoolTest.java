@@ -24,8 +24,7 @@ import org.junit.Test;
 
 import java.net.InetAddress;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class MemoryPoolTest {
     private NetworkParameters params = UnitTestParams.get();
@@ -75,4 +74,75 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        MemoryPool pool = new MemoryPool(3, 1000000);
+        Sha256Hash[] hashes = new Sha256Hash[5];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i});
+        // A transaction a wallet is watching is never evicted, even though it's the least recently used.
+        tx1.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+            }
+        });
+        pool.seen(tx1, address1);
+        pool.seen(hashes[0], address1);
+        pool.seen(hashes[1], address1);
+        // Touching the first hash makes the second the least recently used.
+        assertTrue(pool.maybeWasSeen(hashes[0]));
+        pool.seen(hashes[2], address1);
+        assertEquals(3, pool.size());
+        assertEquals(1, pool.getEvictionCount());
+        assertFalse(pool.maybeWasSeen(hashes[1]));
+        assertTrue(pool.maybeWasSeen(hashes[0]));
+        assertEquals(tx1, pool.get(tx1.getHash()));
+
+        // The byte limit applies too: a pool that can only hold one transaction forgets the previous one.
+        pool = new MemoryPool(10, tx1.getMessageSize() + 200);
+        Transaction tx3 = TestUtils.createFakeTx(params, Utils.toNanoCoins(2, 0), new ECKey().toAddress(params));
+        pool.seen(tx2, address1);
+        pool.seen(tx3, address1);
+        assertNull(pool.get(tx2.getHash()));
+        assertEquals(tx3, pool.get(tx3.getHash()));
+        assertEquals(1, pool.size());
+        assertTrue(pool.getSizeInBytes() <= pool.getMaxSizeInBytes());
+    }
+
+    @Test
+    public void manyWatchedAtEldestEnd() throws Exception {
+        // Watched transactions may take up half the pool. Past that they're evicted like anything else, so the pool
+        // stays within its limits and still has room for announcements.
+        MemoryPool pool = new MemoryPool(20, 1000000);
+        TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+            }
+        };
+        Transaction[] watched = new Transaction[40];
+        for (int i = 0; i < watched.length; i++) {
+            watched[i] = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, i), new ECKey().toAddress(params));
+            watched[i].getConfidence().addEventListener(listener);
+            pool.seen(watched[i], address1);
+            assertTrue(pool.size() <= pool.getMaxSize());
+        }
+        Sha256Hash[] hashes = new Sha256Hash[30];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i});
+            pool.seen(hashes[i], address1);
+            assertTrue(pool.size() <= pool.getMaxSize());
+        }
+        assertEquals(20, pool.size());
+        assertEquals(watched.length + hashes.length - 20, pool.getEvictionCount());
+        assertTrue(pool.getSizeInBytes() <= pool.getMaxSizeInBytes());
+        // The most recently used of each kind are the ones kept.
+        for (int i = 0; i < watched.length; i++)
+            assertEquals(i >= 30 ? watched[i] : null, pool.get(watched[i].getHash()));
+        for (int i = 0; i < hashes.length; i++)
+            assertEquals(i >= 20, pool.maybeWasSeen(hashes[i]));
+        // An evicted wallet transaction is simply interned again when next seen.
+        assertEquals(watched[0], pool.seen(watched[0], address2));
+        assertEquals(watched[0], pool.get(watched[0].getHash()));
+    }
 }
@@ -272,6 +272,47 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stop();
     }
 
+    @Test
+    public void parallelDownload() throws Exception {
+        // Headers come from the download peer, and blocks from whichever peers have them, but go into the chain in order.
+        peerGroup.setParallelDownload(true);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 3);
+        versionMessage.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+
+        Block b1 = TestUtils.makeSolvedTestBlock(blockStore, address);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(params.getGenesisBlock().getHash(), getheaders.getLocator().get(0));
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(3, getdata.getItems().size());
+        assertTrue(outbound(p1) instanceof Ping);
+        assertNull(outbound(p2));
+
+        // The first peer doesn't have the second block after all, so it's asked of the other.
+        inbound(p1, new NotFoundMessage(params, getdata.getItems().subList(1, 2)));
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(b2.getHash(), getdata.getItems().get(0).hash);
+
+        // The third block waits for the second.
+        inbound(p1, b1);
+        inbound(p1, b3);
+        pingAndWait(p1);
+        assertEquals(b1, blockChain.getChainHead().getHeader());
+        inbound(p2, b2);
+        pingAndWait(p2);
+        assertEquals(b3, blockChain.getChainHead().getHeader());
+        peerGroup.stop();
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -332,6 +373,65 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(tx.getConfidence().wasBroadcastBy(peerOf(p3).getAddress()));
     }
 
+    @Test
+    public void refetchFromNextAnnouncer() throws Exception {
+        // A transaction that its first announcer doesn't deliver is asked of the next one.
+        Utils.setMockClock(System.currentTimeMillis() / 1000);
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+
+        Transaction t1 = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), address);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addTransaction(t1);
+        inbound(p1, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        inbound(p2, inv);
+        inbound(p3, inv);
+        assertNull(outbound(p2));
+        // The first announcer doesn't have it after all, so the second is asked.
+        inbound(p1, new NotFoundMessage(params, getdata.getItems()));
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+        assertNull(outbound(p3));
+        // The second never answers, so once its request times out the third is asked, and delivers.
+        Utils.rollMockClockMillis(InventoryTracker.REQUEST_TIMEOUT_MSEC + 1);
+        peerGroup.getInventoryTracker().checkTimeouts();
+        getdata = (GetDataMessage) waitForOutbound(p3);
+        assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+        inbound(p3, t1);
+        pingAndWait(p3);
+        InventoryTracker tracker = peerGroup.getInventoryTracker();
+        assertEquals(1, tracker.getReceivedCount());
+        assertEquals(2, tracker.getRefetchCount());
+        assertEquals(0, tracker.getPendingCount());
+        assertTrue(tracker.getMaxLatencyMillis() > InventoryTracker.REQUEST_TIMEOUT_MSEC);
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void inventoryTrackerFull() throws Exception {
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InventoryTracker tracker = peerGroup.getInventoryTracker();
+        List<InventoryItem> items = new ArrayList<InventoryItem>();
+        for (int i = 0; i <= InventoryTracker.MAX_TRACKED; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+            items.add(new InventoryItem(InventoryItem.Type.Transaction, hash));
+        }
+        InventoryItem newest = items.remove(items.size() - 1);
+        assertEquals(InventoryTracker.MAX_TRACKED, tracker.announced(p1.peer, items).size());
+        // Once the tracker is full, a new transaction is still requested, and the oldest is given up on to make room.
+        assertEquals(ImmutableList.of(newest), tracker.announced(p1.peer, ImmutableList.of(newest)));
+        assertEquals(InventoryTracker.MAX_TRACKED, tracker.getPendingCount());
+        assertEquals(1, tracker.getExpiredCount());
+        tracker.received(p1.peer, items.get(0).hash);
+        assertEquals(0, tracker.getReceivedCount());
+        tracker.received(p1.peer, newest.hash);
+        assertEquals(1, tracker.getReceivedCount());
+    }
+
     @Test
     public void testWalletCatchupTime() throws Exception {
         // Check the fast catchup time was initialized to something around the current runtime minus a week.
@@ -543,26 +643,47 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
     @Test
     public void testBloomResendOnNewKey() throws Exception {
-        // Check that when we add a new key to the wallet, the Bloom filter is re-calculated and re-sent.
+        // Check that when we add a new key to the wallet, it's added to the Bloom filter peers have with filteradd
+        // messages, rather than the whole filter being re-sent.
         peerGroup.startAndWait();
         // Create a couple of peers.
         InboundMessageQueuer p1 = connectPeer(1);
         InboundMessageQueuer p2 = connectPeer(2);
         BloomFilter f1 = p1.lastReceivedFilter;
-        BloomFilter f2 = p2.lastReceivedFilter;
         final ECKey key = new ECKey();
         wallet.addKey(key);
         peerGroup.waitForJobQueue();
-        BloomFilter f3 = (BloomFilter) outbound(p1);
-        BloomFilter f4 = (BloomFilter) outbound(p2);
-        assertTrue(outbound(p1) instanceof MemoryPoolMessage);
-        assertTrue(outbound(p2) instanceof MemoryPoolMessage);
-        assertNotEquals(f1, f3);
-        assertNotEquals(f2, f4);
-        assertEquals(f3, f4);
-        assertTrue(f3.contains(key.getPubKey()));
-        assertTrue(f3.contains(key.getPubKeyHash()));
+        for (InboundMessageQueuer p : new InboundMessageQueuer[] {p1, p2}) {
+            FilterAddMessage add1 = (FilterAddMessage) outbound(p);
+            FilterAddMessage add2 = (FilterAddMessage) outbound(p);
+            assertArrayEquals(key.getPubKey(), add1.getData());
+            assertArrayEquals(key.getPubKeyHash(), add2.getData());
+            assertTrue(outbound(p) instanceof MemoryPoolMessage);
+            assertNull(outbound(p));
+        }
         assertFalse(f1.contains(key.getPubKey()));
         assertFalse(f1.contains(key.getPubKeyHash()));
+        // A peer connecting now gets the whole filter, with the new key in it.
+        InboundMessageQueuer p3 = connectPeer(3);
+        assertTrue(p3.lastReceivedFilter.contains(key.getPubKey()));
+        assertTrue(p3.lastReceivedFilter.contains(key.getPubKeyHash()));
+    }
+
+    @Test
+    public void testBloomRebuiltWhenFull() throws Exception {
+        // Once more keys are added than the filter was sized for, it's recalculated and re-sent in full.
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+        BloomFilter f1 = p1.lastReceivedFilter;
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 60; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        peerGroup.waitForJobQueue();
+        BloomFilter f2 = (BloomFilter) outbound(p1);
+        assertTrue(outbound(p1) instanceof MemoryPoolMessage);
+        assertNotEquals(f1, f2);
+        for (ECKey key : keys)
+            assertTrue(f2.contains(key.getPubKeyHash()));
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.net.ReadPausableTarget;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void messageExecutorPausesReading() throws Exception {
+        final List<Long> processed = new ArrayList<Long>();
+        PeerSocketHandler handler = new PeerSocketHandler(params, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) throws Exception {
+                processed.add(((Ping) m).getNonce());
+            }
+
+            @Override
+            public void connectionClosed() {}
+
+            @Override
+            public void connectionOpened() {}
+        };
+        final List<Boolean> paused = new ArrayList<Boolean>();
+        handler.setWriteTarget(new ReadPausableTarget() {
+            @Override
+            public void setReadingPaused(boolean p) {
+                paused.add(p);
+            }
+
+            @Override
+            public void writeBytes(byte[] message) throws IOException {}
+
+            @Override
+            public void closeConnection() {}
+        });
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        handler.setMessageExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        });
+
+        // More messages arrive in one read than may be queued.
+        int numMessages = PeerSocketHandler.MAX_QUEUED_MESSAGES + 50;
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < numMessages; i++)
+            serializer.serialize(new Ping(i), bos);
+        ByteBuffer buff = ByteBuffer.wrap(bos.toByteArray());
+        assertEquals(buff.limit(), handler.receiveBytes(buff));
+
+        // Nothing was processed on the network thread, which didn't wait either: reading was paused instead, and the
+        // rest of what had already been read was queued.
+        assertEquals(0, processed.size());
+        assertEquals(Arrays.asList(true), paused);
+        assertEquals(1, pending.size());
+        pending.remove(0).run();
+        assertEquals(Arrays.asList(true, false), paused);
+        assertEquals(numMessages, processed.size());
+        for (int i = 0; i < numMessages; i++)
+            assertEquals(i, (long) processed.get(i));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final List<String> verified = Collections.synchronizedList(new ArrayList<String>());
+    // The first input to be verified waits on this, so that everything submitted after it queues up.
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ScriptVerificationScheduler scheduler;
+    private int txCounter;
+
+    private class FakeScheduler extends ScriptVerificationScheduler {
+        private final String failing;
+
+        FakeScheduler(int numThreads, String failing) {
+            super(numThreads);
+            this.failing = failing;
+        }
+
+        @Override
+        void verifyInput(Transaction tx, int index, Script prevOutScript, boolean enforcePayToScriptHash)
+                throws VerificationException {
+            String name = name(tx, index);
+            if (started.getCount() > 0) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            verified.add(name);
+            if (name.equals(failing))
+                throw new VerificationException("Bad input " + name);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    private Transaction tx(int numInputs) {
+        Transaction tx = new Transaction(params);
+        tx.setLockTime(txCounter++);
+        for (int i = 0; i < numInputs; i++)
+            tx.addInput(new TransactionInput(params, tx, new byte[] {(byte) i}));
+        return tx;
+    }
+
+    private static String name(Transaction tx, int index) {
+        return tx.getHashAsString() + ":" + index;
+    }
+
+    private static List<Script> scripts(int n) throws Exception {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < n; i++)
+            scripts.add(new Script(new byte[] {}));
+        return scripts;
+    }
+
+    @Test
+    public void priorityOrdering() throws Exception {
+        scheduler = new FakeScheduler(1, null);
+        ScriptVerificationScheduler.Batch first = scheduler.newBatch(true);
+        Transaction blocker = tx(1);
+        first.submit(blocker, scripts(1));
+        started.await();
+        // Whilst the only thread is busy, queue a later block and then more of the first one.
+        ScriptVerificationScheduler.Batch second = scheduler.newBatch(true);
+        Transaction big = tx(4);
+        second.submit(big, scripts(4));
+        Transaction small = tx(1);
+        first.submit(small, scripts(1));
+        Transaction medium = tx(2);
+        first.submit(medium, scripts(2));
+        assertEquals(7, scheduler.getQueueDepth());
+        release.countDown();
+        first.await();
+        second.await();
+        // Earlier blocks come first, then the transactions with the most inputs, then submission order.
+        assertEquals(Arrays.asList(name(blocker, 0), name(medium, 0), name(medium, 1), name(small, 0),
+                name(big, 0), name(big, 1), name(big, 2), name(big, 3)), verified);
+        assertEquals(8, scheduler.getInputsVerified());
+    }
+
+    @Test
+    public void failurePropagatesToBatch() throws Exception {
+        Transaction bad = tx(3);
+        scheduler = new FakeScheduler(2, name(bad, 1));
+        // One thread is stuck on an earlier block, but the failure on the other thread still ends this one.
+        ScriptVerificationScheduler.Batch slowBatch = scheduler.newBatch(true);
+        Transaction slow = tx(1);
+        slowBatch.submit(slow, scripts(1));
+        started.await();
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch(true);
+        batch.submit(bad, scripts(3));
+        batch.submit(tx(2), scripts(2));
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            assertEquals("Bad input " + name(bad, 1), e.getMessage());
+        }
+        release.countDown();
+        slowBatch.await();
+        // The inputs queued behind the failure were skipped, and the threads are still there for the next block.
+        ScriptVerificationScheduler.Batch next = scheduler.newBatch(true);
+        Transaction good = tx(1);
+        next.submit(good, scripts(1));
+        next.await();
+        assertEquals(Arrays.asList(name(bad, 0), name(bad, 1), name(slow, 0), name(good, 0)), verified);
+    }
+
+    @Test
+    public void cancelledBatchIsSkipped() throws Exception {
+        scheduler = new FakeScheduler(1, null);
+        ScriptVerificationScheduler.Batch blocked = scheduler.newBatch(true);
+        Transaction blocker = tx(1);
+        blocked.submit(blocker, scripts(1));
+        started.await();
+        ScriptVerificationScheduler.Batch cancelled = scheduler.newBatch(true);
+        cancelled.submit(tx(5), scripts(5));
+        ScriptVerificationScheduler.Batch other = scheduler.newBatch(true);
+        Transaction later = tx(2);
+        other.submit(later, scripts(2));
+        cancelled.cancel();
+        release.countDown();
+        // Cancelled inputs are accounted for without being verified, so waiting on the batch doesn't hang.
+        cancelled.await();
+        other.await();
+        blocked.await();
+        assertEquals(Arrays.asList(name(blocker, 0), name(later, 0), name(later, 1)), verified);
+        assertEquals(3, scheduler.getInputsVerified());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SignatureHasherTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = new Transaction(params);
+        for (int i = 0; i < 3; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            TransactionInput input = new TransactionInput(params, tx, new byte[] {1, 2, 3},
+                    new TransactionOutPoint(params, i, hash));
+            input.setSequenceNumber(100 + i);
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 2; i++)
+            tx.addOutput(Utils.toNanoCoins(i + 1, 0), new ECKey().toAddress(params));
+        tx.setLockTime(12345);
+        // Check that OP_CODESEPARATOR is deleted from the connected script.
+        byte[] program = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        connectedScript = new byte[program.length + 1];
+        connectedScript[0] = (byte) ScriptOpCodes.OP_CODESEPARATOR;
+        System.arraycopy(program, 0, connectedScript, 1, program.length);
+    }
+
+    @Test
+    public void matchesModifiedCopy() throws Exception {
+        checkAllTypes();
+    }
+
+    @Test
+    public void mutationAfterCaching() throws Exception {
+        byte sigHashAll = (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
+        // Hash once so the transaction caches a hasher, then modify an outpoint underneath it.
+        Sha256Hash before = tx.hashForSignature(0, connectedScript, sigHashAll);
+        tx.getInput(1).getOutpoint().setIndex(7);
+        Sha256Hash after = tx.hashForSignature(0, connectedScript, sigHashAll);
+        assertFalse(before.equals(after));
+        checkAllTypes();
+
+        tx.getInput(0).getOutpoint().setHash(Sha256Hash.create(new byte[] {42}));
+        assertFalse(after.equals(tx.hashForSignature(0, connectedScript, sigHashAll)));
+        checkAllTypes();
+
+        // Other changes made after caching are picked up too.
+        tx.getInput(2).setSequenceNumber(5);
+        tx.getOutput(1).setValue(Utils.toNanoCoins(3, 0));
+        tx.setLockTime(54321);
+        checkAllTypes();
+    }
+
+    private void checkAllTypes() throws Exception {
+        for (Transaction.SigHash type : new Transaction.SigHash[] {
+                Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE}) {
+            for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+                // Input 2 has no matching output, so SIGHASH_SINGLE takes the bug path for it.
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    assertEquals(type + " " + anyoneCanPay + " " + i,
+                            referenceHash(tx, i, connectedScript, sigHashType),
+                            tx.hashForSignature(i, connectedScript, sigHashType));
+                }
+            }
+        }
+    }
+
+    // The original implementation, which modified a copy of the transaction and then serialized it.
+    private static Sha256Hash referenceHash(Transaction original, int inputIndex, byte[] connectedScript,
+                                            byte sigHashType) throws Exception {
+        Transaction tx = new Transaction(params, original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.setScriptBytes(TransactionInput.EMPTY_ARRAY);
+        TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR));
+
+        int mode = sigHashType & 0x1f;
+        if (mode == Transaction.SigHash.NONE.ordinal() + 1) {
+            tx.clearOutputs();
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        } else if (mode == Transaction.SigHash.SINGLE.ordinal() + 1) {
+            if (inputIndex >= tx.getOutputs().size())
+                return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+            List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(tx.getOutputs());
+            tx.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                tx.addOutput(new TransactionOutput(params, tx, Utils.NEGATIVE_ONE, new byte[] {}));
+            TransactionOutput output = outputs.get(inputIndex);
+            tx.addOutput(new TransactionOutput(params, tx, output.getValue(), output.getScriptBytes()));
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        }
+        if ((sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE) {
+            tx.clearInputs();
+            tx.addInput(input);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        tx.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+}
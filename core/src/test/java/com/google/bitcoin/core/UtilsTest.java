@@ -20,6 +20,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static com.google.bitcoin.core.Utils.*;
 import static org.junit.Assert.*;
@@ -115,4 +117,32 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDoubleDigestVariants() throws Exception {
+        // The double SHA-256 of "hello", as used in the Bitcoin wiki.
+        byte[] input = "hello".getBytes("UTF-8");
+        String expected = "9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50";
+        assertEquals(expected, bytesToHexString(doubleDigest(input)));
+        assertEquals(expected, bytesToHexString(doubleDigest(ByteBuffer.wrap(input))));
+        assertEquals(expected, bytesToHexString(doubleDigestTwoBuffers(input, 0, 2, input, 2, 3)));
+
+        // Hashing into a buffer that overlaps the input.
+        byte[] buf = new byte[40];
+        System.arraycopy(input, 0, buf, 4, input.length);
+        doubleDigestInto(buf, 4, input.length, buf, 2);
+        assertEquals(expected, bytesToHexString(Arrays.copyOfRange(buf, 2, 34)));
+
+        // Streaming the same bytes in pieces, including via a direct buffer.
+        DoubleDigestOutputStream stream = new DoubleDigestOutputStream();
+        stream.write(input[0]);
+        stream.write(input, 1, 1);
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(input, 2, 3).flip();
+        DoubleDigestOutputStream copy = stream.copy();
+        stream.update(direct);
+        assertEquals(expected, bytesToHexString(stream.doubleDigest()));
+        copy.write(input, 2, 3);
+        assertEquals(expected, bytesToHexString(copy.doubleDigest()));
+    }
 }
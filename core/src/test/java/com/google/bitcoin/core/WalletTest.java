@@ -48,6 +48,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -549,6 +550,76 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void balancesFollowWalletChanges() throws Exception {
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Utils.COIN, wallet.getBalance());
+        assertEquals(Utils.COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // The change of our own spend only becomes available once the network has seen it.
+        ECKey otherKey = new ECKey();
+        Transaction spend = wallet.createSend(otherKey.toAddress(params), toNanoCoins(0, 40));
+        wallet.commitTx(spend);
+        assertEquals(toNanoCoins(0, 60), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(toNanoCoins(0, 60), wallet.getBalance());
+
+        // Outputs sent to a key stop counting when the key is removed, and count again when it's added back.
+        assertTrue(wallet.removeKey(myKey));
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(0, wallet.calculateAllSpendCandidates(false).size());
+        wallet.addKey(myKey);
+        assertEquals(toNanoCoins(0, 60), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(toNanoCoins(0, 60), wallet.getBalance());
+
+        // Confirming the spend doesn't change anything, and the candidates still match a scan of the pools.
+        StoredBlock b = createFakeBlock(blockStore, spend).storedBlock;
+        wallet.receiveFromBlock(spend, b, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(b);
+        assertEquals(toNanoCoins(0, 60), wallet.getBalance());
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        assertTrue(wallet.isConsistent());
+
+        // Adding the key the spend was sent to picks up that output as well.
+        wallet.addKey(otherKey);
+        assertEquals(Utils.COIN, wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void depthFollowsNewBlocks() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        TransactionConfidence confidence = tx1.getConfidence();
+        assertEquals(1, confidence.getDepthInBlocks());
+        BigInteger work = confidence.getWorkDone();
+        ListenableFuture<Transaction> future = confidence.getDepthFuture(3, Threading.SAME_THREAD);
+        assertFalse(future.isDone());
+
+        // A block that carries another of our transactions buries tx1 but doesn't count twice for the new one.
+        Transaction tx2 = sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(2, confidence.getDepthInBlocks());
+        assertEquals(work.shiftLeft(1), confidence.getWorkDone());
+        assertEquals(1, tx2.getConfidence().getDepthInBlocks());
+        assertFalse(future.isDone());
+
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(3, confidence.getDepthInBlocks());
+        assertEquals(2, tx2.getConfidence().getDepthInBlocks());
+        assertTrue(future.isDone());
+
+        // A copy doesn't move any more, and nor does a transaction that left the chain.
+        TransactionConfidence copy = confidence.duplicate();
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(3, copy.getDepthInBlocks());
+        assertEquals(3, confidence.getDepthInBlocks());
+        assertEquals(3, tx2.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void balances() throws Exception {
         BigInteger nanos = Utils.toNanoCoins(1, 0);
@@ -1236,6 +1307,57 @@ public class WalletTest extends TestWithWallet {
         assertEquals(f, results[1]);
     }
 
+    @Test
+    public void saveWritesWithoutLock() throws Exception {
+        // The wallet is only locked whilst a snapshot of it is taken, not whilst that's serialized and written out.
+        sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        final boolean[] locked = new boolean[2];
+        wallet.addExtension(new WalletExtension() {
+            @Override
+            public String getWalletExtensionID() {
+                return "com.example.lockcheck";
+            }
+
+            @Override
+            public boolean isWalletExtensionMandatory() {
+                return false;
+            }
+
+            @Override
+            public byte[] serializeWalletExtension() {
+                locked[0] |= wallet.lock.isLocked();
+                return new byte[0];
+            }
+
+            @Override
+            public void deserializeWalletExtension(Wallet containingWallet, byte[] data) {}
+        });
+        wallet.saveToFileStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                locked[1] |= wallet.lock.isLocked();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                locked[1] |= wallet.lock.isLocked();
+            }
+        });
+        assertFalse(locked[0]);
+        assertFalse(locked[1]);
+        assertTrue(wallet.getLastSaveLockTime(TimeUnit.NANOSECONDS) > 0);
+
+        // The snapshot isn't changed by what happens to the wallet after it's taken.
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.Snapshot snapshot = serializer.snapshot(wallet);
+        Transaction tx = wallet.getTransactions(false).iterator().next();
+        sendMoneyToWallet(Utils.toNanoCoins(2, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Protos.Wallet proto = serializer.walletToProto(snapshot);
+        assertEquals(1, proto.getTransactionCount());
+        assertEquals(1, proto.getTransaction(0).getConfidence().getDepth());
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -1329,6 +1451,38 @@ public class WalletTest extends TestWithWallet {
         assertTrue("Wallet is not an encrypted wallet", encryptedWallet.getEncryptionType() == EncryptionType.ENCRYPTED_SCRYPT_AES);
     }
 
+    @Test
+    public void keyLookupsFollowKeychain() throws Exception {
+        ECKey key = encryptedWallet.getKeys().get(0);
+        assertTrue(key.isEncrypted());
+        assertSame(key, encryptedWallet.findKeyFromPubKey(key.getPubKey()));
+        assertSame(key, encryptedWallet.findKeyFromPubHash(key.getPubKeyHash()));
+
+        // Decrypting and encrypting replaces the key objects, lookups should return the new ones.
+        encryptedWallet.decrypt(aesKey);
+        ECKey decryptedKey = encryptedWallet.findKeyFromPubHash(key.getPubKeyHash());
+        assertFalse(decryptedKey.isEncrypted());
+        assertSame(decryptedKey, encryptedWallet.findKeyFromPubKey(key.getPubKey()));
+        encryptedWallet.encrypt(keyCrypter, aesKey);
+        assertTrue(encryptedWallet.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+
+        // Compressed and uncompressed forms of a key are different keys as far as the wallet is concerned.
+        BigInteger priv = new BigInteger(1, new ECKey().getPrivKeyBytes());
+        ECKey uncompressed = new ECKey(priv, null, false);
+        ECKey compressed = new ECKey(priv, null, true);
+        assertTrue(wallet.addKey(uncompressed));
+        assertTrue(wallet.isPubKeyMine(uncompressed.getPubKey()));
+        assertFalse(wallet.isPubKeyMine(compressed.getPubKey()));
+        assertFalse(wallet.isPubKeyHashMine(compressed.getPubKeyHash()));
+        assertFalse(wallet.addKey(new ECKey(priv, null, false)));
+
+        assertTrue(wallet.removeKey(uncompressed));
+        assertFalse(wallet.hasKey(uncompressed));
+        assertNull(wallet.findKeyFromPubKey(uncompressed.getPubKey()));
+        assertNull(wallet.findKeyFromPubHash(uncompressed.getPubKeyHash()));
+        assertFalse(wallet.removeKey(uncompressed));
+    }
+
     @Test
     public void encryptionDecryptionBadPassword() throws Exception {
         // Check the wallet is currently encrypted
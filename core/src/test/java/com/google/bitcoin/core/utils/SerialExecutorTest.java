@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core.utils;
+
+import com.google.bitcoin.utils.SerialExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SerialExecutorTest {
+    @Test
+    public void runsInOrderOneAtATime() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final int numTasks = 1000;
+            final CountDownLatch done = new CountDownLatch(2 * numTasks);
+            final AtomicBoolean overlapped = new AtomicBoolean();
+            List<List<Integer>> results = new ArrayList<List<Integer>>();
+            // Two executors sharing the pool, each of which must run its own tasks serially and in order.
+            for (int e = 0; e < 2; e++) {
+                SerialExecutor executor = new SerialExecutor(pool, numTasks, null);
+                final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+                final AtomicInteger running = new AtomicInteger();
+                results.add(result);
+                for (int i = 0; i < numTasks; i++) {
+                    final int n = i;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (running.incrementAndGet() > 1)
+                                overlapped.set(true);
+                            result.add(n);
+                            running.decrementAndGet();
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertFalse(overlapped.get());
+            for (List<Integer> result : results) {
+                for (int i = 0; i < numTasks; i++)
+                    assertEquals(i, (int) result.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void fullQueue() throws Exception {
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        Executor manual = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        };
+        final List<String> events = new ArrayList<String>();
+        SerialExecutor executor = new SerialExecutor(manual, 4, new SerialExecutor.Listener() {
+            @Override
+            public void onQueueFull() {
+                events.add("full");
+            }
+
+            @Override
+            public void onQueueNotFull() {
+                events.add("not full");
+            }
+        });
+        for (int i = 0; i < 3; i++)
+            executor.execute(event(events, i));
+        assertEquals(0, events.size());
+        // The listener is told once the queue fills up, and execute doesn't wait even when it's over the limit.
+        executor.execute(event(events, 3));
+        executor.execute(event(events, 4));
+        assertEquals(Arrays.asList("full"), events);
+        assertEquals(5, executor.getQueuedCount());
+        // Only one task at a time is handed to the underlying executor.
+        assertEquals(1, pending.size());
+        pending.remove(0).run();
+        // Room is announced once half the maximum are left waiting.
+        assertEquals(Arrays.asList("full", "0", "1", "not full", "2", "3", "4"), events);
+        assertEquals(0, executor.getQueuedCount());
+
+        // And the same again once it refills.
+        events.clear();
+        for (int i = 0; i < 4; i++)
+            executor.execute(event(events, i));
+        assertEquals(Arrays.asList("full"), events);
+        assertEquals(1, pending.size());
+        pending.remove(0).run();
+        assertEquals(Arrays.asList("full", "0", "not full", "1", "2", "3"), events);
+    }
+
+    private static Runnable event(final List<String> events, final int n) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(Integer.toString(n));
+            }
+        };
+    }
+}
@@ -43,10 +43,13 @@ public class NetworkAbstractionTests {
     private AtomicBoolean fail;
     private final int clientType;
     private final ClientConnectionManager channels;
+    // Client type 4 also has the servers spread their connections over several threads
+    private final int serverThreads;
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -57,12 +60,16 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            channels = new ParallelNioClientManager(2);
+            channels.startAndWait();
         } else
             channels = null;
+        serverThreads = clientType == 4 ? 2 : 0;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -116,7 +123,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverThreads);
         server.startAndWait();
 
         ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
@@ -198,7 +205,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 10);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverThreads);
         server.startAndWait();
 
         openConnection(new InetSocketAddress("localhost", 4243), new ProtobufParser<Protos.TwoWayChannelMessage>(
@@ -288,7 +295,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverThreads);
         server.startAndWait();
 
         ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
@@ -450,7 +457,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverThreads);
         server.startAndWait();
 
         ProtobufParser<Protos.TwoWayChannelMessage> client1Handler = new ProtobufParser<Protos.TwoWayChannelMessage>(
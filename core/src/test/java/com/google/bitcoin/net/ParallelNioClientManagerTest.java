@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoin.paymentchannel.Protos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ParallelNioClientManagerTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("localhost", 4243);
+    private static final Protos.TwoWayChannelMessage MESSAGE = Protos.TwoWayChannelMessage.newBuilder()
+            .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+
+    private NioServer server;
+    private ParallelNioClientManager manager;
+    // The parsers for the server ends of the connections, in the order they opened.
+    private final LinkedBlockingQueue<ProtobufParser> serverParsers = new LinkedBlockingQueue<ProtobufParser>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {}
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        serverParsers.add(handler);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, ADDRESS, 2);
+        server.startAndWait();
+        manager = new ParallelNioClientManager(2);
+        manager.startAndWait();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stopAndWait();
+        server.stopAndWait();
+    }
+
+    private static class Client {
+        final SettableFuture<Thread> opened = SettableFuture.create();
+        final SettableFuture<Void> closed = SettableFuture.create();
+        final LinkedBlockingQueue<Protos.TwoWayChannelMessage> received =
+                new LinkedBlockingQueue<Protos.TwoWayChannelMessage>();
+        final ProtobufParser<Protos.TwoWayChannelMessage> parser = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                        received.add(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        opened.set(Thread.currentThread());
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        closed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+    }
+
+    @Test
+    public void spreadsConnections() throws Exception {
+        List<Client> clients = new ArrayList<Client>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Client client = new Client();
+            manager.openConnection(ADDRESS, client.parser);
+            // Wait for each to be counted before opening the next, so they are assigned predictably.
+            threads.add(client.opened.get(1, TimeUnit.SECONDS));
+            clients.add(client);
+        }
+        assertEquals(4, manager.getConnectedClientCount());
+        // Connections alternate between the two selector threads.
+        assertNotSame(threads.get(0), threads.get(1));
+        assertSame(threads.get(0), threads.get(2));
+        assertSame(threads.get(1), threads.get(3));
+
+        // Connections are closed from the busiest thread first, so one goes from each.
+        manager.closeConnections(2);
+        assertEquals(2, manager.getConnectedClientCount());
+        assertTrue(clients.get(0).closed.isDone() ^ clients.get(2).closed.isDone());
+        assertTrue(clients.get(1).closed.isDone() ^ clients.get(3).closed.isDone());
+    }
+
+    @Test
+    public void pauseReading() throws Exception {
+        Client client = new Client();
+        manager.openConnection(ADDRESS, client.parser);
+        client.opened.get(1, TimeUnit.SECONDS);
+        ProtobufParser serverParser = serverParsers.poll(1, TimeUnit.SECONDS);
+        ReadPausableTarget target = (ReadPausableTarget) client.parser.writeTarget.get();
+
+        // Nothing is read whilst reading is paused, and it all arrives once it restarts.
+        target.setReadingPaused(true);
+        serverParser.write(MESSAGE);
+        assertNull(client.received.poll(200, TimeUnit.MILLISECONDS));
+        target.setReadingPaused(false);
+        assertEquals(MESSAGE, client.received.poll(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChannelExpirySchedulerTest {
+    private static final long START = 1389000000000L;
+
+    private ChannelExpiryScheduler scheduler;
+    private List<Long> expiries;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new ChannelExpiryScheduler(Threading.SAME_THREAD, START);
+        expiries = new ArrayList<Long>();
+    }
+
+    private void schedule(final long time) {
+        scheduler.schedule(time, new Runnable() {
+            @Override
+            public void run() {
+                expiries.add(time);
+            }
+        });
+    }
+
+    @Test
+    public void expiresInOrder() throws Exception {
+        // Times that land in each level of the wheel.
+        long[] offsets = {1500, 63000, 64000, 100 * 1000, 5000 * 1000, 300000 * 1000L, 20000000 * 1000L};
+        for (int i = offsets.length - 1; i >= 0; i--)
+            schedule(START + offsets[i]);
+        assertEquals(offsets.length, scheduler.getScheduledCount());
+        for (int i = 0; i < offsets.length; i++) {
+            long time = START + offsets[i];
+            // Not a moment early.
+            scheduler.advance(time - 1000);
+            assertEquals(i, expiries.size());
+            scheduler.advance(time + 999);
+            assertEquals(i + 1, expiries.size());
+            assertEquals(time, (long) expiries.get(i));
+        }
+        assertEquals(0, scheduler.getScheduledCount());
+        assertEquals(offsets.length, scheduler.getExpiredCount());
+        assertEquals(0, scheduler.getOverdueCount());
+    }
+
+    @Test
+    public void sameTickAndPast() throws Exception {
+        // Everything expiring in the same tick is run together, and anything already expired is run straight away.
+        schedule(START - 5000);
+        assertEquals(1, expiries.size());
+        for (int i = 0; i < 250; i++)
+            schedule(START + 10000 + i);
+        scheduler.advance(START + 9000);
+        assertEquals(1, expiries.size());
+        scheduler.advance(START + 11000);
+        assertEquals(251, expiries.size());
+        assertEquals(251, scheduler.getExpiredCount());
+    }
+}
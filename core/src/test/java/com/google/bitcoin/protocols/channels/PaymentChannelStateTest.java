@@ -27,6 +27,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -810,4 +813,93 @@ public class PaymentChannelStateTest extends TestWithWallet {
             assertTrue(e.getMessage().contains("double-spent"));
         }
     }
+
+    @Test
+    public void serverStateFile() throws Exception {
+        // Channels kept in their own file survive a restart without the wallet being saved for each payment.
+        File file = File.createTempFile("channels", null);
+        file.delete();
+        file.deleteOnExit();
+        StoredPaymentChannelServerStates states = new StoredPaymentChannelServerStates(serverWallet, mockBroadcaster, file);
+        Transaction contract = createFakeTx(params, Utils.COIN, myAddress);
+        StoredServerChannel channel = new StoredServerChannel(null, contract, contract.getOutput(0),
+                Utils.currentTimeMillis() / 1000 + 60*60*24, serverKey, BigInteger.ZERO, null);
+        states.putChannel(channel);
+        byte[] signature = new byte[] {1, 2, 3};
+        for (int i = 1; i <= 10; i++) {
+            channel.updateValueToMe(BigInteger.valueOf(i), signature);
+            states.updatedChannel(contract.getHash(), BigInteger.valueOf(i), signature);
+        }
+        byte[] data = states.serializeWalletExtension();
+        states.close();
+        try {
+            states.updatedChannel(contract.getHash(), BigInteger.valueOf(11), signature);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // A record torn by a crash is ignored.
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] {0, 0, 1, 0, 0, 0, 0, 0, 2});
+        stream.close();
+
+        // The wallet only points to the file, which the channels are read from.
+        Wallet wallet2 = new Wallet(params);
+        StoredPaymentChannelServerStates states2 = new StoredPaymentChannelServerStates(wallet2, mockBroadcaster);
+        states2.deserializeWalletExtension(wallet2, data);
+        assertEquals(file.getAbsoluteFile(), states2.getStateFile());
+        StoredServerChannel channel2 = states2.getChannel(contract.getHash());
+        assertEquals(BigInteger.TEN, channel2.bestValueToMe);
+        assertArrayEquals(signature, channel2.bestValueSignature);
+        assertEquals(serverKey, channel2.myKey);
+    }
+
+    @Test
+    public void storageFailureStopsPayments() throws Exception {
+        Utils.rollMockClock(0); // Use mock clock
+        final long EXPIRE_TIME = Utils.currentTimeMillis()/1000 + 60*60*24;
+        File file = File.createTempFile("channels", null);
+        file.delete();
+        file.deleteOnExit();
+        StoredPaymentChannelServerStates states = new StoredPaymentChannelServerStates(serverWallet, mockBroadcaster, file);
+        serverWallet.addExtension(states);
+
+        serverState = new PaymentChannelServerState(mockBroadcaster, serverWallet, serverKey, EXPIRE_TIME);
+        clientState = new PaymentChannelClientState(wallet, myKey, new ECKey(null, serverKey.getPubKey()), halfCoin, EXPIRE_TIME);
+        clientState.initiate();
+        Transaction refund = new Transaction(params, clientState.getIncompleteRefundTransaction().bitcoinSerialize());
+        clientState.provideRefundSignature(serverState.provideRefundTransaction(refund, myKey.getPubKey()));
+        clientState.fakeSave();
+        Transaction multisigContract = new Transaction(params, clientState.getMultisigContract().bitcoinSerialize());
+        serverState.provideMultiSigContract(multisigContract);
+        final TxFuturePair pair = broadcasts.take();
+        pair.future.set(pair.tx);
+        assertEquals(PaymentChannelServerState.State.READY, serverState.getState());
+        serverState.storeChannelInWallet(null);
+
+        BigInteger size = halfCoin.divide(BigInteger.TEN).divide(BigInteger.TEN);
+        serverState.incrementPayment(halfCoin.subtract(size), clientState.incrementPaymentBy(size).signature.encodeToBitcoin());
+
+        // Once the file can't be written to, a payment isn't accepted and neither is any after it.
+        states.close();
+        try {
+            serverState.incrementPayment(halfCoin.subtract(size.multiply(BigInteger.valueOf(2))),
+                    clientState.incrementPaymentBy(size).signature.encodeToBitcoin());
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            serverState.incrementPayment(halfCoin.subtract(size.multiply(BigInteger.valueOf(3))), new byte[0]);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // The channel can still be settled.
+        serverState.close();
+        assertEquals(PaymentChannelServerState.State.CLOSING, serverState.getState());
+        assertNotNull(broadcasts.take().tx);
+    }
 }
@@ -24,8 +24,12 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -35,6 +39,7 @@ public class SPVBlockStoreTest {
         File f = File.createTempFile("spvblockstore", null);
         f.delete();
         f.deleteOnExit();
+        new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).deleteOnExit();
         SPVBlockStore store = new SPVBlockStore(params, f);
 
         Address to = new ECKey().toAddress(params);
@@ -58,4 +63,44 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void indexSurvivesWrapAndRebuild() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File index = new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX);
+        index.deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+
+        // Wrap around the ring a couple of times, so the earliest blocks are overwritten.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < 25; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        store.close();
+
+        // Check lookups after a clean reopen and after the index has been lost.
+        for (int pass = 0; pass < 2; pass++) {
+            store = new SPVBlockStore(params, f, capacity);
+            for (int i = 0; i < blocks.size(); i++) {
+                StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+                if (i < blocks.size() - capacity)
+                    assertNull(block);
+                else
+                    assertEquals(blocks.get(i), block);
+            }
+            assertEquals(prev, store.getChainHead());
+            store.close();
+            assertTrue(index.delete());
+        }
+    }
 }
@@ -9,6 +9,7 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.io.Files;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
 import org.junit.Before;
@@ -16,6 +17,8 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
@@ -279,6 +282,101 @@ public class WalletProtobufSerializerTest {
         assertTrue(wallet2.getTransaction(coinbase.getHash()).isCoinBase());
     }
 
+    @Test
+    public void streamedSpends() throws Exception {
+        // Transactions are read one at a time and connected together once they've all been seen.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        myWallet.receivePending(t1, null);
+        Transaction t2 = myWallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 10));
+        myWallet.commitTx(t2);
+        Wallet wallet1 = roundTrip(myWallet);
+        assertEquals(2, wallet1.getTransactions(true).size());
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        Transaction t2copy = wallet1.getTransaction(t2.getHash());
+        assertEquals(t2copy, t1copy.getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED),
+                wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Everything but the transactions can be read without parsing them.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        Protos.Wallet walletProto = WalletProtobufSerializer.parseToProtoWithoutTransactions(
+                new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(0, walletProto.getTransactionCount());
+        assertEquals(myWallet.getKeychainSize(), walletProto.getKeyCount());
+        assertEquals(WALLET_DESCRIPTION, walletProto.getDescription());
+        assertEquals(params.getId(), walletProto.getNetworkIdentifier());
+    }
+
+    @Test
+    public void journal() throws Exception {
+        File file = File.createTempFile("journal", ".wallet");
+        file.deleteOnExit();
+        File journalFile = WalletJournal.getJournalFile(file);
+        journalFile.deleteOnExit();
+        WalletJournal journal = new WalletJournal(file);
+        // The first save always writes the whole wallet.
+        myWallet.saveToJournal(journal);
+        long snapshotLength = file.length();
+        long journalLength = journalFile.length();
+
+        Address somebodyElse = new ECKey().toAddress(params);
+        Block b1 = params.getGenesisBlock().createNextBlockWithCoinbase(myKey.getPubKey(), Utils.toNanoCoins(50, 0));
+        Transaction coinbase = b1.getTransactions().get(0);
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        assertTrue(chain.add(b1));
+        myWallet.saveToJournal(journal);
+        Block b2 = b1.createNextBlock(somebodyElse);
+        Block b3 = b2.createNextBlock(somebodyElse);
+        assertTrue(chain.add(b2));
+        myWallet.saveToJournal(journal);
+        assertTrue(chain.add(b3));
+        ECKey key2 = new ECKey();
+        myWallet.addKey(key2);
+        myWallet.saveToJournal(journal);
+        // Only the journal was written to.
+        assertEquals(snapshotLength, file.length());
+        assertTrue(journalFile.length() > journalLength);
+
+        Wallet wallet1 = Wallet.loadFromFile(file);
+        assertEquals(1, wallet1.getTransactions(true).size());
+        assertEquals(3, wallet1.getTransaction(coinbase.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(b3.getHash(), wallet1.getLastBlockSeenHash());
+        assertEquals(3, wallet1.getLastBlockSeenHeight());
+        assertNotNull(wallet1.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(WALLET_DESCRIPTION, wallet1.getDescription());
+
+        // A record torn by a crash whilst appending is ignored.
+        byte[] journalBytes = Files.toByteArray(journalFile);
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] {0, 0, 1, 0, 0, 0, 0, 0, 1, 2, 3});
+        stream.close();
+        Wallet wallet2 = Wallet.loadFromFile(file);
+        assertEquals(3, wallet2.getTransaction(coinbase.getHash()).getConfidence().getDepthInBlocks());
+        assertNotNull(wallet2.findKeyFromPubKey(key2.getPubKey()));
+
+        // Removing a key makes the next save a snapshot, which the old journal no longer applies to even if a crash
+        // stops it from being truncated.
+        myWallet.removeKey(key2);
+        myWallet.saveToJournal(journal);
+        assertTrue(file.length() > snapshotLength);
+        Files.write(journalBytes, journalFile);
+        Wallet wallet3 = Wallet.loadFromFile(file);
+        assertNull(wallet3.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(3, wallet3.getTransaction(coinbase.getHash()).getConfidence().getDepthInBlocks());
+
+        // A transaction streamed from the snapshot is buried by the blocks the journal records after it.
+        journal = new WalletJournal(file);
+        myWallet.saveToJournal(journal);
+        snapshotLength = file.length();
+        assertTrue(chain.add(b3.createNextBlock(somebodyElse)));
+        myWallet.saveToJournal(journal);
+        assertEquals(snapshotLength, file.length());
+        Wallet wallet4 = new WalletProtobufSerializer().readWallet(file);
+        assertEquals(4, wallet4.getTransaction(coinbase.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(4, wallet4.getLastBlockSeenHeight());
+    }
+
     @Test
     public void testExtensions() throws Exception {
         myWallet.addExtension(new SomeFooExtension("com.whatever.required", true));
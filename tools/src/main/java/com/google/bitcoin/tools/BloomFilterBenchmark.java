@@ -0,0 +1,177 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.BloomFilter;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the speed of {@link BloomFilter} inserting and matching wallet sized sets of pubkeys and outpoints
+ * against the byte at a time implementation it replaced, which is kept below for reference. Both are checked to
+ * produce the same filter first.
+ */
+public class BloomFilterBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: BloomFilterBenchmark [seconds per run] [elements]");
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        // Half compressed pubkeys, half serialized outpoints, as a wallet's filter has.
+        Random random = new Random(1);
+        List<byte[]> elements = new ArrayList<byte[]>(count);
+        List<byte[]> others = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] element = new byte[i % 2 == 0 ? 33 : 36];
+            random.nextBytes(element);
+            elements.add(element);
+            byte[] other = new byte[element.length];
+            random.nextBytes(other);
+            others.add(other);
+        }
+        final double fpRate = 0.0005;
+        final long tweak = random.nextInt() & 0xFFFFFFFFL;
+
+        BloomFilter filter = new BloomFilter(count, fpRate, tweak);
+        filter.insertAll(elements);
+        ReferenceFilter reference = new ReferenceFilter(count, fpRate, tweak);
+        for (byte[] element : elements)
+            reference.insert(element);
+        int start = VarInt.sizeOf(reference.data.length);
+        byte[] bits = Arrays.copyOfRange(filter.bitcoinSerialize(), start, start + reference.data.length);
+        if (!Arrays.equals(reference.data, bits))
+            throw new IllegalStateException("Filters differ");
+        System.out.println(filter);
+
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long ops = 0;
+        while (System.nanoTime() < end) {
+            new ReferenceFilter(count, fpRate, tweak).insertAll(elements);
+            ops += count;
+        }
+        double referenceInserts = ops / (double) seconds;
+
+        end = System.nanoTime() + seconds * 1000000000L;
+        ops = 0;
+        while (System.nanoTime() < end) {
+            new BloomFilter(count, fpRate, tweak).insertAll(elements);
+            ops += count;
+        }
+        double inserts = ops / (double) seconds;
+
+        // Mostly misses, as when matching the transactions of a block against a filter.
+        end = System.nanoTime() + seconds * 1000000000L;
+        ops = 0;
+        long matches = 0;
+        while (System.nanoTime() < end) {
+            for (byte[] other : others)
+                if (reference.contains(other))
+                    matches++;
+            ops += count;
+        }
+        double referenceLookups = ops / (double) seconds;
+
+        end = System.nanoTime() + seconds * 1000000000L;
+        ops = 0;
+        while (System.nanoTime() < end) {
+            for (byte[] other : others)
+                if (filter.contains(other))
+                    matches++;
+            ops += count;
+        }
+        double lookups = ops / (double) seconds;
+
+        System.out.println(String.format("insert:   %,.0f/sec, was %,.0f/sec (%.2fx)", inserts, referenceInserts,
+                inserts / referenceInserts));
+        System.out.println(String.format("contains: %,.0f/sec, was %,.0f/sec (%.2fx)", lookups, referenceLookups,
+                lookups / referenceLookups));
+        // Printed so the lookups can't be optimized away.
+        System.out.println(matches + " false positives");
+    }
+
+    // BloomFilter's bits and hashing as they were before, hashing each object byte by byte once per hash function.
+    private static class ReferenceFilter {
+        final byte[] data;
+        final int hashFuncs;
+        final long nTweak;
+
+        ReferenceFilter(int elements, double falsePositiveRate, long nTweak) {
+            int size = Math.min((int)(-1  / (Math.pow(Math.log(2), 2)) * elements * Math.log(falsePositiveRate)),
+                                36000 * 8) / 8;
+            data = new byte[size <= 0 ? 1 : size];
+            hashFuncs = Math.min((int)(data.length * 8 / (double)elements * Math.log(2)), 50);
+            this.nTweak = nTweak;
+        }
+
+        void insertAll(List<byte[]> objects) {
+            for (byte[] object : objects)
+                insert(object);
+        }
+
+        void insert(byte[] object) {
+            for (int i = 0; i < hashFuncs; i++)
+                Utils.setBitLE(data, hash(i, object));
+        }
+
+        boolean contains(byte[] object) {
+            for (int i = 0; i < hashFuncs; i++) {
+                if (!Utils.checkBitLE(data, hash(i, object)))
+                    return false;
+            }
+            return true;
+        }
+
+        private static int rotateLeft32(int x, int r) {
+            return (x << r) | (x >>> (32 - r));
+        }
+
+        private int hash(int hashNum, byte[] object) {
+            int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+            final int c1 = 0xcc9e2d51;
+            final int c2 = 0x1b873593;
+
+            int numBlocks = (object.length / 4) * 4;
+            for(int i = 0; i < numBlocks; i += 4) {
+                int k1 = (object[i] & 0xFF) |
+                      ((object[i+1] & 0xFF) << 8) |
+                      ((object[i+2] & 0xFF) << 16) |
+                      ((object[i+3] & 0xFF) << 24);
+                k1 *= c1;
+                k1 = rotateLeft32(k1, 15);
+                k1 *= c2;
+                h1 ^= k1;
+                h1 = rotateLeft32(h1, 13);
+                h1 = h1*5+0xe6546b64;
+            }
+
+            int k1 = 0;
+            switch(object.length & 3)
+            {
+                case 3:
+                    k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                    // Fall through.
+                case 2:
+                    k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                    // Fall through.
+                case 1:
+                    k1 ^= (object[numBlocks] & 0xff);
+                    k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                    // Fall through.
+                default:
+                    break;
+            }
+
+            h1 ^= object.length;
+            h1 ^= h1 >>> 16;
+            h1 *= 0x85ebca6b;
+            h1 ^= h1 >>> 13;
+            h1 *= 0xc2b2ae35;
+            h1 ^= h1 >>> 16;
+
+            return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        }
+    }
+}
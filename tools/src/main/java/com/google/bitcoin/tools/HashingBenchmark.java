@@ -0,0 +1,68 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Utils;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures double SHA-256 throughput as the number of hashing threads grows, to show that hashing scales across
+ * cores rather than queueing behind a shared digest. Each thread repeatedly hashes a transaction sized buffer and a
+ * block header sized buffer for the given number of seconds.
+ */
+public class HashingBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: HashingBenchmark [seconds per run] [max threads]");
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        double singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double hashesPerSec = run(threads, seconds);
+            if (threads == 1)
+                singleThreaded = hashesPerSec;
+            System.out.println(String.format("%2d threads: %,.0f hashes/sec (%.2fx)", threads, hashesPerSec,
+                    hashesPerSec / singleThreaded));
+        }
+    }
+
+    private static double run(int threads, final int seconds) throws InterruptedException {
+        final AtomicLong hashes = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            new Thread("hasher " + i) {
+                @Override
+                public void run() {
+                    byte[] tx = new byte[250];
+                    byte[] header = new byte[80];
+                    byte[] out = new byte[32];
+                    random.nextBytes(tx);
+                    random.nextBytes(header);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    long count = 0;
+                    long end = System.nanoTime() + seconds * 1000000000L;
+                    while (System.nanoTime() < end) {
+                        for (int j = 0; j < 1000; j++) {
+                            Utils.doubleDigestInto(tx, 0, tx.length, out, 0);
+                            Utils.doubleDigestInto(header, 0, header.length, out, 0);
+                            header[j & 0x3F] ^= out[0];
+                        }
+                        count += 2000;
+                    }
+                    hashes.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return hashes.get() / (double) seconds;
+    }
+}
@@ -293,7 +293,7 @@ public class WalletTool {
             WalletProtobufSerializer loader = new WalletProtobufSerializer();
             if (options.has("ignore-mandatory-extensions"))
                 loader.setRequireMandatoryExtensions(false);
-            wallet = loader.readWallet(new BufferedInputStream(new FileInputStream(walletFile)));
+            wallet = loader.readWallet(walletFile);
             if (!wallet.getParams().equals(params)) {
                 System.err.println("Wallet does not match requested network parameters: " +
                         wallet.getParams().getId() + " vs " + params.getId());
@@ -733,6 +733,7 @@ public class WalletTool {
             if (peers == null) return;  // setup() never called so nothing to do.
             peers.stopAndWait();
             saveWallet(walletFile);
+            chain.close();
             store.close();
             wallet = null;
         } catch (BlockStoreException e) {